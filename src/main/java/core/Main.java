@@ -1,7 +1,9 @@
 package core;
 
 import learn.ClassifyUtil;
+import learn.ILPBackend;
 import learn.ILPInference;
+import learn.ModelReplay;
 import learn.Preprocess;
 import structures.Document;
 import structures.Mention;
@@ -110,6 +112,12 @@ public class Main
                 new String[]{"box_files", "box_feats", "cca_lists"},
                 null, "Exports cca preproeccsing files to --out", "Data");
         parser.setArgument("--boxFeatDir", "Box feature directory, used for --ccaPreproc", "Data");
+        parser.setArgument_flag("--binary_feats", "Whether to additionally write box feature "+
+                "matrices as little-endian float32 .bin files (with an id/label sidecar) "+
+                "during --extractFeats affinity and --ccaPreproc cca_lists", "Data");
+        parser.setArgument("--sample_seed", "Seed for the train-time box sampling "+
+                "of --extractFeats affinity and --ccaPreproc cca_lists",
+                Integer.class, 20170501, "NUM", false, "Data");
         parser.setArgument_flag("--for_neural", "Whether extracted features are to be "+
                                 "used in conjunction with word embeddings in a neural "+
                                 "network (in practice, turns off various high-dim features)",
@@ -153,6 +161,51 @@ public class Main
                 "ROOT", "Infer");
         parser.setArgument("--alpha", "[0,1] alpha value",
                 Double.class, 0.0, "NUM", false, "Infer");
+        String[] backendOpts = {"gurobi", "java"};
+        parser.setArgument_opts("--ilp_backend", backendOpts, "gurobi",
+                "ILP solver to use; java requires no native libraries (or license), "+
+                "but is much slower on large images", "Infer");
+        parser.setArgument_flag("--lazy_transitivity", "Whether to add relation transitivity "+
+                "constraints only as solutions violate them, re-solving until none are", "Infer");
+        parser.setArgument_flag("--decompose", "Whether to split each image's mentions into "+
+                "components with confidently null links between them, solving each separately", "Infer");
+        parser.setArgument_flag("--warm_start", "Whether to start each solve from a greedy "+
+                "solution (argmax links, repaired for consistency)", "Infer");
+        parser.setArgument_flag("--argmax_fast_path", "Whether to skip the solver for images "+
+                "whose argmax predictions already satisfy every constraint", "Infer");
+        parser.setArgument("--exact_max_mentions", "Solves images with at most NUM mentions "+
+                "(and --exact_max_boxes boxes) exactly by enumeration, without the solver; "+
+                "at most " + ILPInference.MAX_EXACT_MENTIONS,
+                Integer.class, null, "NUM", false, "Infer");
+        parser.setArgument("--exact_max_boxes", "Most boxes an image may have to be solved "+
+                "by enumeration (see --exact_max_mentions); at most " + ILPInference.MAX_EXACT_BOXES,
+                Integer.class, 3, "NUM", false, "Infer");
+        parser.setArgument("--time_limit", "Most seconds any one image may be given; images "+
+                "are budgeted time by size, up to this, and keep their best solution when out of time",
+                Integer.class, 600, "SEC", false, "Infer");
+        parser.setArgument("--time_budget", "Wall-clock seconds for all of inference; "+
+                "images reached once it runs out get only the minimum time per solve",
+                Integer.class, null, "SEC", false, "Infer");
+        parser.setArgument("--export_models", "Writes each image's built ILP programs to DIR "+
+                "(with a manifest.csv), for replay with the Replay module", "DIR", "Infer");
+        parser.setArgument_opts("--export_format", new String[]{"lp", "mps"}, "lp",
+                "Format of --export_models programs", "Infer");
+        parser.setArgument("--export_min_vars", "Exports only programs with at least NUM variables "+
+                "(or that meet --export_min_sec)", Integer.class, null, "NUM", false, "Infer");
+        parser.setArgument("--export_min_sec", "Exports only programs that took at least SEC to solve "+
+                "(or that meet --export_min_vars)", Integer.class, null, "SEC", false, "Infer");
+        parser.setArgument("--metrics", "Writes each image's program sizes (constraints by family), "+
+                "build and solve times, status, and gap to FILE (JSON lines if it ends in .jsonl, "+
+                "csv otherwise)", "FILE", "Infer");
+
+        /* Replay Group */
+        parser.addSubParser("Replay");
+        parser.setArgument("--model_dir", "Directory of ILP programs (as written by "+
+                "Infer --export_models) to re-solve", "DIR", "Replay");
+        parser.setArgument_opts("--replay_backend", backendOpts, "gurobi",
+                "ILP solver with which to re-solve the programs", "Replay");
+        parser.setArgument("--replay_time_limit", "Seconds each program may be given",
+                Integer.class, 600, "SEC", false, "Replay");
 
         //Actually parse the arguments
         parser.parseArgs(args);
@@ -234,7 +287,8 @@ public class Main
                             false, null);
                 }
                 else if(featsToExtract.equals("affinity")) {
-                    ClassifyUtil.exportFeatures_affinity(docSet, split);
+                    ClassifyUtil.exportFeatures_affinity(docSet, split,
+                            parser.getBoolean("binary_feats"), parser.getInt("sample_seed"));
                 } else if(featsToExtract.equals("nonvis")) {
                     ClassifyUtil.exportFeatures_nonvis(docSet, _outroot,
                             parser.getBoolean("for_neural"),
@@ -261,7 +315,8 @@ public class Main
             } else if(ccaPreproc != null){
                 switch(ccaPreproc){
                     case "cca_lists": Preprocess.export_phraseLocalization_ccaLists(docSet, split,
-                            parser.getString("boxFeatDir"), _outroot);
+                            parser.getString("boxFeatDir"), _outroot,
+                            parser.getBoolean("binary_feats"), parser.getInt("sample_seed"));
                         break;
                 }
             } else if(buildDB != null){
@@ -294,12 +349,57 @@ public class Main
                     parser.getBoolean("exclude_box_exigence"),
                     parser.getBoolean("exclude_subset"),
                     parser.getBoolean("only_keep_positive_links"));
+            inf.setBackendType(ILPBackend.BackendType.valueOf(
+                    parser.getString("ilp_backend").toUpperCase()));
+            if(parser.getBoolean("lazy_transitivity"))
+                inf.useLazyTransitivity();
+            if(parser.getBoolean("decompose"))
+                inf.decompose();
+            if(parser.getBoolean("warm_start"))
+                inf.useWarmStart();
+            if(parser.getBoolean("argmax_fast_path"))
+                inf.useArgmaxFastPath();
+            Integer exactMaxMentions = parser.getInt("exact_max_mentions");
+            if(exactMaxMentions != null){
+                int exactMaxBoxes = parser.getInt("exact_max_boxes");
+                if(exactMaxMentions < 0 || exactMaxMentions > ILPInference.MAX_EXACT_MENTIONS){
+                    Logger.log("ERROR: --exact_max_mentions must be between 0 and %d",
+                            ILPInference.MAX_EXACT_MENTIONS);
+                    System.exit(1);
+                }
+                if(exactMaxBoxes < 0 || exactMaxBoxes > ILPInference.MAX_EXACT_BOXES){
+                    Logger.log("ERROR: --exact_max_boxes must be between 0 and %d",
+                            ILPInference.MAX_EXACT_BOXES);
+                    System.exit(1);
+                }
+                inf.useExactEnumeration(exactMaxMentions, exactMaxBoxes);
+            }
+            inf.setDocTimeLimit(parser.getInt("time_limit"));
+            Integer timeBudget = parser.getInt("time_budget");
+            if(timeBudget != null)
+                inf.setTotalTimeBudget(timeBudget);
+            String exportDir = parser.getString("export_models");
+            if(exportDir != null){
+                Integer minVars = parser.getInt("export_min_vars");
+                Integer minSec = parser.getInt("export_min_sec");
+                inf.exportModels(exportDir, parser.getString("export_format"),
+                        minVars == null ? -1 : minVars, minSec == null ? -1 : minSec);
+            }
+            String metricsFile = parser.getString("metrics");
+            if(metricsFile != null)
+                inf.writeMetrics(metricsFile);
 
             //Do inference
             inf.infer(numThreads);
 
             //And evaluate it
             inf.evaluate(parser.getBoolean("export_files"));
+        } else if(argList.contains("Replay")) {
+            //Re-solve the exported programs, one at a time with all threads
+            ModelReplay.replay(parser.getString("model_dir"),
+                    ILPBackend.BackendType.valueOf(parser.getString("replay_backend").toUpperCase()),
+                    numThreads, parser.getInt("replay_time_limit"),
+                    _outroot == null ? null : _outroot + "_replay.csv");
         }
 	}
 
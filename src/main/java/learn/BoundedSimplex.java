@@ -0,0 +1,307 @@
+package learn;
+
+import java.util.Arrays;
+
+/**BoundedSimplex solves linear programs of the form
+ *      max c'x  s.t.  a_r'x (<=, =, >=) b_r,  lb <= x <= ub
+ * using a dense-tableau, bounded-variable primal simplex. Each row
+ * gets a slack whose bounds encode the row's sense, nonbasic
+ * variables sit at one of their bounds, and a first phase drives out
+ * artificials, which are added only for rows whose slack starts out
+ * of bounds. Intended for the small LP relaxations solved by
+ * BranchAndBoundBackend, where every structural variable is bounded
+ *
+ * @author ccervantes
+ */
+class BoundedSimplex
+{
+    static final int OPTIMAL = 0, INFEASIBLE = 1, UNBOUNDED = 2, ITERATION_LIMIT = 3;
+
+    private static final double PIVOT_TOL = 1e-9;
+    private static final double OPT_TOL = 1e-9;
+    private static final double FEAS_TOL = 1e-7;
+    private static final double TIE_TOL = 1e-12;
+    private static final int BLAND_AFTER = 50;
+
+    private int _numVars, _numRows, _numCols;
+    private double[][] _tableau;
+    private double[] _colLb, _colUb, _x, _beta, _d;
+    private int[] _basis, _basicRow;
+    private boolean[] _atUpper;
+    private double[] _solution;
+    private double _objVal;
+
+    /**Solves the given program, returning its status (OPTIMAL,
+     * INFEASIBLE, UNBOUNDED, or ITERATION_LIMIT); on OPTIMAL, the
+     * solution is available from getSolution()
+     *
+     * @param obj       - Objective coefficients, to be maximized
+     * @param rowIdx    - Variable indices of each row
+     * @param rowCoeffs - Coefficients of each row
+     * @param rowSenses - Sense of each row (<, =, >)
+     * @param rowRhs    - Right hand side of each row
+     * @param lb        - Variable lower bounds (finite)
+     * @param ub        - Variable upper bounds (finite)
+     * @return
+     */
+    int solve(double[] obj, int[][] rowIdx, double[][] rowCoeffs, char[] rowSenses,
+              double[] rowRhs, double[] lb, double[] ub)
+    {
+        _numVars = obj.length;
+        _numRows = rowIdx.length;
+        _numCols = _numVars + 2 * _numRows;
+        _solution = null;
+        boolean hasArtificials = _init(rowIdx, rowCoeffs, rowSenses, rowRhs, lb, ub);
+
+        //Phase one: minimize the artificials
+        if(hasArtificials){
+            double[] cost = new double[_numCols];
+            for(int r=0; r<_numRows; r++)
+                if(_colUb[_numVars + _numRows + r] > 0)
+                    cost[_numVars + _numRows + r] = -1;
+            int status = _run(cost);
+            if(status != OPTIMAL)
+                return status;
+            double artSum = 0.0;
+            for(int r=0; r<_numRows; r++){
+                int art = _numVars + _numRows + r;
+                artSum += _basicRow[art] >= 0 ? _beta[_basicRow[art]] : _x[art];
+                _colUb[art] = 0.0;
+                if(_basicRow[art] < 0)
+                    _x[art] = 0.0;
+            }
+            if(artSum > FEAS_TOL * Math.max(1, _numRows))
+                return INFEASIBLE;
+        }
+
+        //Phase two: maximize the objective
+        double[] cost = new double[_numCols];
+        System.arraycopy(obj, 0, cost, 0, _numVars);
+        int status = _run(cost);
+        if(status != OPTIMAL)
+            return status;
+
+        _solution = new double[_numVars];
+        _objVal = 0.0;
+        for(int j=0; j<_numVars; j++){
+            _solution[j] = _basicRow[j] >= 0 ? _beta[_basicRow[j]] : _x[j];
+            _solution[j] = Math.max(lb[j], Math.min(ub[j], _solution[j]));
+            _objVal += obj[j] * _solution[j];
+        }
+        return OPTIMAL;
+    }
+
+    /**Returns the solution found by the last (optimal) solve
+     *
+     * @return
+     */
+    double[] getSolution(){return _solution;}
+
+    /**Returns the objective value of the last (optimal) solve
+     *
+     * @return
+     */
+    double getObjectiveValue(){return _objVal;}
+
+    /**Builds the initial tableau and basis, with structurals at their
+     * lower bounds and each row's slack (or, where the slack would be
+     * out of bounds, an artificial) basic; returns whether any
+     * artificials were needed
+     */
+    private boolean _init(int[][] rowIdx, double[][] rowCoeffs, char[] rowSenses,
+                          double[] rowRhs, double[] lb, double[] ub)
+    {
+        _tableau = new double[_numRows][_numCols];
+        _colLb = new double[_numCols];
+        _colUb = new double[_numCols];
+        _x = new double[_numCols];
+        _beta = new double[_numRows];
+        _basis = new int[_numRows];
+        _basicRow = new int[_numCols];
+        _atUpper = new boolean[_numCols];
+        Arrays.fill(_basicRow, -1);
+
+        for(int j=0; j<_numVars; j++){
+            _colLb[j] = lb[j];
+            _colUb[j] = ub[j];
+            _x[j] = lb[j];
+        }
+
+        boolean hasArtificials = false;
+        for(int r=0; r<_numRows; r++){
+            double[] row = _tableau[r];
+            double residual = rowRhs[r];
+            for(int k=0; k<rowIdx[r].length; k++){
+                row[rowIdx[r][k]] += rowCoeffs[r][k];
+                residual -= rowCoeffs[r][k] * _x[rowIdx[r][k]];
+            }
+
+            int slack = _numVars + r, art = _numVars + _numRows + r;
+            row[slack] = 1.0;
+            switch(rowSenses[r]){
+                case BufferedILPBackend.SENSE_LE:
+                    _colLb[slack] = 0.0; _colUb[slack] = Double.POSITIVE_INFINITY;
+                    break;
+                case BufferedILPBackend.SENSE_GE:
+                    _colLb[slack] = Double.NEGATIVE_INFINITY; _colUb[slack] = 0.0;
+                    break;
+                default:
+                    _colLb[slack] = 0.0; _colUb[slack] = 0.0;
+            }
+
+            if(residual >= _colLb[slack] - FEAS_TOL && residual <= _colUb[slack] + FEAS_TOL){
+                _basis[r] = slack;
+                _basicRow[slack] = r;
+                _beta[r] = residual;
+            } else {
+                //Park the slack at its nearest bound and let an
+                //artificial absorb the rest
+                boolean upper = residual > _colUb[slack];
+                _x[slack] = upper ? _colUb[slack] : _colLb[slack];
+                _atUpper[slack] = upper;
+                double remainder = residual - _x[slack];
+                if(remainder < 0)
+                    for(int c=0; c<_numVars + _numRows; c++)
+                        row[c] = -row[c];
+                row[art] = 1.0;
+                _colUb[art] = Double.POSITIVE_INFINITY;
+                _basis[r] = art;
+                _basicRow[art] = r;
+                _beta[r] = Math.abs(remainder);
+                hasArtificials = true;
+            }
+        }
+        return hasArtificials;
+    }
+
+    /**Runs primal simplex iterations, maximizing the given costs
+     * from the current (feasible) basis
+     *
+     * @param cost
+     * @return
+     */
+    private int _run(double[] cost)
+    {
+        //Reduced costs: d = c - c_B' T
+        _d = Arrays.copyOf(cost, _numCols);
+        for(int r=0; r<_numRows; r++){
+            double cb = cost[_basis[r]];
+            if(cb != 0.0){
+                double[] row = _tableau[r];
+                for(int c=0; c<_numCols; c++)
+                    _d[c] -= cb * row[c];
+            }
+        }
+
+        int maxIter = 50 * _numCols + 1000;
+        int numDegenerate = 0;
+        for(int iter=0; iter<maxIter; iter++){
+            //Choose the entering column (Dantzig, or Bland's rule if
+            //we appear to be stalling)
+            boolean bland = numDegenerate > BLAND_AFTER;
+            int enter = -1;
+            double bestD = 0.0;
+            for(int c=0; c<_numCols; c++){
+                if(_basicRow[c] >= 0 || _colUb[c] - _colLb[c] <= 0.0)
+                    continue;
+                double dc = _d[c];
+                if(!_atUpper[c] && dc > OPT_TOL || _atUpper[c] && dc < -OPT_TOL){
+                    if(bland){
+                        enter = c;
+                        break;
+                    }
+                    if(Math.abs(dc) > bestD){
+                        bestD = Math.abs(dc);
+                        enter = c;
+                    }
+                }
+            }
+            if(enter < 0)
+                return OPTIMAL;
+
+            //Ratio test, including the entering variable's own bound flip
+            double delta = _atUpper[enter] ? -1.0 : 1.0;
+            double step = _colUb[enter] - _colLb[enter];
+            int leave = -1;
+            double leaveAlpha = 0.0;
+            for(int r=0; r<_numRows; r++){
+                double alpha = delta * _tableau[r][enter];
+                if(Math.abs(alpha) <= PIVOT_TOL)
+                    continue;
+                int b = _basis[r];
+                double limit = alpha > 0 ? (_beta[r] - _colLb[b]) / alpha :
+                                           (_colUb[b] - _beta[r]) / -alpha;
+                if(limit < 0)
+                    limit = 0.0;
+                if(limit < step - TIE_TOL ||
+                   leave >= 0 && limit <= step + TIE_TOL && Math.abs(alpha) > Math.abs(leaveAlpha)){
+                    step = limit;
+                    leave = r;
+                    leaveAlpha = alpha;
+                }
+            }
+            if(Double.isInfinite(step))
+                return UNBOUNDED;
+
+            if(step > 0.0)
+                for(int r=0; r<_numRows; r++)
+                    _beta[r] -= delta * step * _tableau[r][enter];
+            numDegenerate = step < TIE_TOL ? numDegenerate + 1 : 0;
+
+            if(leave < 0){
+                _atUpper[enter] = !_atUpper[enter];
+                _x[enter] = _atUpper[enter] ? _colUb[enter] : _colLb[enter];
+                continue;
+            }
+
+            int b = _basis[leave];
+            _atUpper[b] = leaveAlpha < 0;
+            _x[b] = _atUpper[b] ? _colUb[b] : _colLb[b];
+            _basicRow[b] = -1;
+            double enterVal = _x[enter] + delta * step;
+            _pivot(leave, enter);
+            _basis[leave] = enter;
+            _basicRow[enter] = leave;
+            _beta[leave] = enterVal;
+        }
+        return ITERATION_LIMIT;
+    }
+
+    /**Pivots the tableau (and reduced costs) on the given element
+     *
+     * @param pivotRow
+     * @param pivotCol
+     */
+    private void _pivot(int pivotRow, int pivotCol)
+    {
+        double[] prow = _tableau[pivotRow];
+        double piv = prow[pivotCol];
+        int[] nonzeros = new int[_numCols];
+        int numNonzeros = 0;
+        for(int c=0; c<_numCols; c++){
+            if(prow[c] != 0.0){
+                prow[c] /= piv;
+                nonzeros[numNonzeros++] = c;
+            }
+        }
+        prow[pivotCol] = 1.0;
+
+        for(int r=0; r<_numRows; r++){
+            if(r == pivotRow)
+                continue;
+            double[] row = _tableau[r];
+            double f = row[pivotCol];
+            if(f == 0.0)
+                continue;
+            for(int k=0; k<numNonzeros; k++)
+                row[nonzeros[k]] -= f * prow[nonzeros[k]];
+            row[pivotCol] = 0.0;
+        }
+        double f = _d[pivotCol];
+        if(f != 0.0){
+            for(int k=0; k<numNonzeros; k++)
+                _d[nonzeros[k]] -= f * prow[nonzeros[k]];
+            _d[pivotCol] = 0.0;
+        }
+    }
+}
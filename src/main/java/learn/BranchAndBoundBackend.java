@@ -0,0 +1,228 @@
+package learn;
+
+import utilities.Logger;
+
+import java.util.*;
+
+/**BranchAndBoundBackend is a self-contained (pure Java) backend,
+ * solving 0/1 programs by depth-first branch and bound over LP
+ * relaxations (see BoundedSimplex). Rather than handing every
+ * constraint to each relaxation, relaxations start from the
+ * equality constraints and add whichever inequalities the LP
+ * solution violates until none are, which keeps the LPs small for
+ * the (mostly slack) transitivity constraints inference generates.
+ *
+ * Intended for hosts without Gurobi and for testing; it is far
+ * slower than Gurobi on large documents
+ *
+ * @author ccervantes
+ */
+public class BranchAndBoundBackend extends BufferedILPBackend
+{
+    private static final double INT_TOL = 1e-6;
+    private static final double VIOLATION_TOL = 1e-6;
+    private static final int MAX_ROWS_PER_ROUND = 500;
+    private static final int MAX_NODES = 100000;
+    private static final int MAX_START_NODES = 1000;
+
+    private BoundedSimplex _simplex;
+    private boolean[] _isActive;
+    private List<Integer> _activeRows;
+    private boolean _lpFailed;
+    private boolean[] _incumbent;
+    private double _incumbentObj;
+    private int _numNodes;
+    private double _searchBound;
+    private long _startTime;
+
+    public BranchAndBoundBackend()
+    {
+        super();
+        _simplex = new BoundedSimplex();
+    }
+
+    /**Solves the program, returning whether a solution was found:
+     * the optimum if the search is exhausted, or otherwise -- when the
+     * node or time limit (or an LP failure) stops it -- the best
+     * incumbent found so far
+     *
+     * @return
+     */
+    public boolean solve()
+    {
+        int numConstr = _constrIndices.size();
+        double[] obj = new double[_numVars];
+        for(int i=0; i<_numVars; i++)
+            obj[i] = _maximize ? _objective[i] : -_objective[i];
+
+        _isActive = new boolean[numConstr];
+        _activeRows = new ArrayList<>();
+        for(int c=0; c<numConstr; c++)
+            if(_constrSenses.charAt(c) == SENSE_EQ)
+                _activate(c);
+        _lpFailed = false;
+        _incumbent = null;
+        _incumbentObj = Double.NEGATIVE_INFINITY;
+        _solution = null;
+        _optimal = false;
+        _numNodes = 0;
+        _startTime = System.currentTimeMillis();
+
+        //If given a start, search (briefly) with the variables it covers
+        //fixed, such that the full search begins with an incumbent
+        if(hasStart()){
+            double[] startLb = Arrays.copyOf(_lb, _numVars), startUb = Arrays.copyOf(_ub, _numVars);
+            for(int i=0; i<_numVars; i++)
+                if(!Double.isNaN(_start[i]) && startLb[i] != startUb[i])
+                    startLb[i] = startUb[i] = _start[i];
+            _search(obj, startLb, startUb, MAX_START_NODES);
+            _lpFailed = false;
+        }
+
+        double[] rootLb = Arrays.copyOf(_lb, _numVars), rootUb = Arrays.copyOf(_ub, _numVars);
+        _searchBound = Double.NaN;
+        boolean exhausted = _search(obj, rootLb, rootUb, MAX_NODES);
+        if(!exhausted)
+            Logger.log("Branch and bound stopped after %d nodes (%d of %d constraints active; %s)",
+                    _numNodes, _activeRows.size(), numConstr,
+                    _incumbent == null ? "no incumbent" : "keeping the incumbent");
+        _solution = _incumbent;
+        _optimal = exhausted;
+        _bound = _maximize ? _searchBound : -_searchBound;
+        return _incumbent != null;
+    }
+
+    /**Runs a depth-first search from the node with the given bounds,
+     * updating the incumbent, until the search is exhausted (returning
+     * true) or the node limit, time limit, or an LP failure stops it
+     *
+     * @param obj
+     * @param rootLb
+     * @param rootUb
+     * @param maxNodes
+     * @return
+     */
+    private boolean _search(double[] obj, double[] rootLb, double[] rootUb, int maxNodes)
+    {
+        //Each node is a pair of bound arrays
+        Deque<double[][]> stack = new ArrayDeque<>();
+        stack.push(new double[][]{rootLb, rootUb});
+        int numSearchNodes = 0;
+        while(!stack.isEmpty()){
+            if(numSearchNodes >= maxNodes || System.currentTimeMillis() - _startTime > _timeLimitSec * 1000)
+                return false;
+            double[][] node = stack.pop();
+            numSearchNodes++;
+            _numNodes++;
+
+            //The root relaxation bounds every solution in the search
+            double[] x = _solveRelaxation(obj, node[0], node[1]);
+            if(_lpFailed)
+                return false;
+            if(numSearchNodes == 1)
+                _searchBound = x == null ? Double.NEGATIVE_INFINITY : _simplex.getObjectiveValue();
+            if(x == null || _simplex.getObjectiveValue() <= _incumbentObj + INT_TOL)
+                continue;
+
+            //Branch on the most fractional variable
+            int branchIdx = -1;
+            double branchDist = INT_TOL;
+            for(int i=0; i<_numVars; i++){
+                double dist = Math.min(x[i], 1.0 - x[i]);
+                if(dist > branchDist){
+                    branchDist = dist;
+                    branchIdx = i;
+                }
+            }
+            if(branchIdx < 0){
+                _incumbent = new boolean[_numVars];
+                for(int i=0; i<_numVars; i++)
+                    _incumbent[i] = x[i] > 0.5;
+                _incumbentObj = _simplex.getObjectiveValue();
+                continue;
+            }
+
+            //Explore the side the relaxation leans toward first
+            double[] lb_0 = node[0], ub_0 = Arrays.copyOf(node[1], _numVars);
+            double[] lb_1 = Arrays.copyOf(node[0], _numVars), ub_1 = node[1];
+            ub_0[branchIdx] = 0.0;
+            lb_1[branchIdx] = 1.0;
+            if(x[branchIdx] >= 0.5){
+                stack.push(new double[][]{lb_0, ub_0});
+                stack.push(new double[][]{lb_1, ub_1});
+            } else {
+                stack.push(new double[][]{lb_1, ub_1});
+                stack.push(new double[][]{lb_0, ub_0});
+            }
+        }
+        return true;
+    }
+
+    /**Solves the LP relaxation under the given bounds, adding violated
+     * constraints to the active set until the LP solution satisfies
+     * all constraints; returns null if the relaxation is infeasible
+     *
+     * @param obj
+     * @param lb
+     * @param ub
+     * @return
+     */
+    private double[] _solveRelaxation(double[] obj, double[] lb, double[] ub)
+    {
+        while(true){
+            int numActive = _activeRows.size();
+            int[][] rowIdx = new int[numActive][];
+            double[][] rowCoeffs = new double[numActive][];
+            char[] rowSenses = new char[numActive];
+            double[] rowRhs = new double[numActive];
+            for(int r=0; r<numActive; r++){
+                int c = _activeRows.get(r);
+                rowIdx[r] = _constrIndices.get(c);
+                rowCoeffs[r] = _constrCoeffs.get(c);
+                rowSenses[r] = _constrSenses.charAt(c);
+                rowRhs[r] = _constrRhs[c];
+            }
+
+            int status = _simplex.solve(obj, rowIdx, rowCoeffs, rowSenses, rowRhs, lb, ub);
+            if(status == BoundedSimplex.INFEASIBLE)
+                return null;
+            if(status != BoundedSimplex.OPTIMAL){
+                _lpFailed = true;
+                return null;
+            }
+            double[] x = _simplex.getSolution();
+
+            //Find the inactive constraints this solution violates,
+            //activating the most violated
+            List<double[]> violations = new ArrayList<>();
+            for(int c=0; c<_constrIndices.size(); c++){
+                if(_isActive[c])
+                    continue;
+                double lhs = 0.0;
+                int[] indices = _constrIndices.get(c);
+                double[] coeffs = _constrCoeffs.get(c);
+                for(int k=0; k<indices.length; k++)
+                    lhs += coeffs[k] * x[indices[k]];
+                double violation = _constrSenses.charAt(c) == SENSE_GE ?
+                        _constrRhs[c] - lhs : lhs - _constrRhs[c];
+                if(violation > VIOLATION_TOL)
+                    violations.add(new double[]{violation, c});
+            }
+            if(violations.isEmpty())
+                return x;
+            violations.sort((v1, v2) -> Double.compare(v2[0], v1[0]));
+            for(int v=0; v<Math.min(violations.size(), MAX_ROWS_PER_ROUND); v++)
+                _activate((int)violations.get(v)[1]);
+        }
+    }
+
+    /**Adds the given constraint to the active set
+     *
+     * @param c
+     */
+    private void _activate(int c)
+    {
+        _isActive[c] = true;
+        _activeRows.add(c);
+    }
+}
@@ -0,0 +1,189 @@
+package learn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**BufferedILPBackend holds the variables and constraints of a
+ * program as they're added, leaving it to subclasses to hand the
+ * complete program to a solver in solve()
+ *
+ * @author ccervantes
+ */
+public abstract class BufferedILPBackend implements ILPBackend
+{
+    static final char SENSE_EQ = '=', SENSE_GE = '>', SENSE_LE = '<';
+    static final double DEFAULT_TIME_LIMIT_SEC = 600;
+
+    protected boolean _maximize;
+    protected double[] _objective;
+    protected double[] _start;
+    protected double[] _lb, _ub;
+    protected BitSet _modifiedVars;
+    protected int _numVars;
+    protected List<int[]> _constrIndices;
+    protected List<double[]> _constrCoeffs;
+    protected StringBuilder _constrSenses;
+    protected double[] _constrRhs;
+    protected boolean[] _solution;
+    protected boolean _optimal;
+    protected double _bound;
+    protected double _timeLimitSec;
+
+    protected BufferedILPBackend()
+    {
+        _maximize = false;
+        _objective = new double[64];
+        _start = new double[64];
+        Arrays.fill(_start, Double.NaN);
+        _lb = new double[64];
+        _ub = new double[64];
+        Arrays.fill(_ub, 1.0);
+        _modifiedVars = new BitSet();
+        _numVars = 0;
+        _constrIndices = new ArrayList<>();
+        _constrCoeffs = new ArrayList<>();
+        _constrSenses = new StringBuilder();
+        _constrRhs = new double[64];
+        _solution = null;
+        _optimal = false;
+        _bound = Double.NaN;
+        _timeLimitSec = DEFAULT_TIME_LIMIT_SEC;
+    }
+
+    public void setMaximize(boolean maximize){_maximize = maximize;}
+
+    public int addBooleanVariable(double coeff)
+    {
+        if(_numVars == _objective.length){
+            _objective = Arrays.copyOf(_objective, 2 * _objective.length);
+            _start = Arrays.copyOf(_start, 2 * _start.length);
+            Arrays.fill(_start, _numVars, _start.length, Double.NaN);
+            _lb = Arrays.copyOf(_lb, 2 * _lb.length);
+            _ub = Arrays.copyOf(_ub, 2 * _ub.length);
+            Arrays.fill(_ub, _numVars, _ub.length, 1.0);
+        }
+        _objective[_numVars] = coeff;
+        return _numVars++;
+    }
+
+    public void setObjectiveCoeff(int index, double coeff)
+    {
+        _objective[index] = coeff;
+        _modifiedVars.set(index);
+    }
+
+    public void fixVariable(int index, boolean value)
+    {
+        _lb[index] = _ub[index] = value ? 1.0 : 0.0;
+        _start[index] = _lb[index];
+        _modifiedVars.set(index);
+    }
+
+    public void addEqualityConstraint(int[] indices, double[] coeffs, double rhs)
+    {
+        _addConstraint(indices, coeffs, SENSE_EQ, rhs);
+    }
+
+    public void addGreaterThanConstraint(int[] indices, double[] coeffs, double rhs)
+    {
+        _addConstraint(indices, coeffs, SENSE_GE, rhs);
+    }
+
+    public void addLessThanConstraint(int[] indices, double[] coeffs, double rhs)
+    {
+        _addConstraint(indices, coeffs, SENSE_LE, rhs);
+    }
+
+    public void setTimeLimit(double timeLimitSec){_timeLimitSec = timeLimitSec;}
+
+    public boolean isOptimal(){return _solution != null && _optimal;}
+
+    /**Returns the relative gap between the last solution's objective
+     * and the bound (in the objective's sense) the subclass stored
+     * in _bound
+     *
+     * @return
+     */
+    public double getGap()
+    {
+        if(_solution == null)
+            return Double.NaN;
+        if(_optimal)
+            return 0.0;
+        double obj = getObjectiveValue();
+        return Math.abs(_bound - obj) / Math.max(Math.abs(obj), 1e-10);
+    }
+
+    public void setStart(int index, boolean value)
+    {
+        _start[index] = value ? 1.0 : 0.0;
+    }
+
+    public boolean getBooleanValue(int index)
+    {
+        return _solution != null && _solution[index];
+    }
+
+    public void dispose()
+    {
+        _constrIndices = null;
+        _constrCoeffs = null;
+        _objective = null;
+        _start = null;
+        _lb = null;
+        _ub = null;
+    }
+
+    /**Returns whether a start value was given for any variable
+     *
+     * @return
+     */
+    protected boolean hasStart()
+    {
+        for(int i=0; i<_numVars; i++)
+            if(!Double.isNaN(_start[i]))
+                return true;
+        return false;
+    }
+
+    public int getNumVariables(){return _numVars;}
+
+    /**Returns the objective value of the last solution found
+     * (or NaN, if none was)
+     *
+     * @return
+     */
+    public double getObjectiveValue()
+    {
+        if(_solution == null)
+            return Double.NaN;
+        double obj = 0.0;
+        for(int i=0; i<_numVars; i++)
+            if(_solution[i])
+                obj += _objective[i];
+        return obj;
+    }
+
+    public int getNumConstraints(){return _constrIndices.size();}
+
+    /**Copies and stores the given constraint, since callers are
+     * free to reuse their arrays
+     *
+     * @param indices
+     * @param coeffs
+     * @param sense
+     * @param rhs
+     */
+    private void _addConstraint(int[] indices, double[] coeffs, char sense, double rhs)
+    {
+        int c = _constrIndices.size();
+        if(c == _constrRhs.length)
+            _constrRhs = Arrays.copyOf(_constrRhs, 2 * _constrRhs.length);
+        _constrIndices.add(Arrays.copyOf(indices, indices.length));
+        _constrCoeffs.add(Arrays.copyOf(coeffs, coeffs.length));
+        _constrSenses.append(sense);
+        _constrRhs[c] = rhs;
+    }
+}
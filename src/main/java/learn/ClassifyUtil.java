@@ -5,6 +5,8 @@ import nlptools.StanfordAnnotator;
 import nlptools.Word2VecUtil;
 import nlptools.WordnetUtil;
 import org.apache.commons.lang.ArrayUtils;
+import out.BinaryMatrixWriter;
+import out.DoubleFormatter;
 import statistical.ScoreDict;
 import structures.*;
 import utilities.*;
@@ -761,23 +763,28 @@ public class ClassifyUtil {
     }
 
     /**Reads the given multiclass scores file into a mappng of IDs->scoreDistro;
-     * intended for use with pairwise and cardinality scores.
+     * intended for use with pairwise and cardinality scores. The file is
+     * memory-mapped and parsed in parallel (see ScoreFileReader)
      *
      * @param filename
      * @return
      */
     public static Map<String, double[]> readMccScoresFile(String filename)
     {
-        List<String> ll_scores = FileIO.readFile_lineList(filename);
-        Map<String, double[]> mccScores = new HashMap<>();
-        for(String line : ll_scores) {
-            String[] lineParts = line.split(",");
-            double[] scores = new double[lineParts.length-1];
-            for(int i=1; i<lineParts.length; i++)
-                scores[i-1] = Math.exp(Double.parseDouble(lineParts[i]));
-            mccScores.put(lineParts[0], scores);
-        }
-        return mccScores;
+        return ScoreFileReader.read(filename);
+    }
+
+    /**Reads a multiclass scores file as readMccScoresFile does, but
+     * by way of a binary sidecar (filename.bin) that is written on the
+     * first read and used in place of the text on later reads, so long
+     * as the source is unchanged (see ScoreFileReader.readCached)
+     *
+     * @param filename
+     * @return
+     */
+    public static Map<String, double[]> readMccScoresFile_cached(String filename)
+    {
+        return ScoreFileReader.readCached(filename);
     }
 
     /**Evalutes the given nonvis scores (produced by a model) against
@@ -1143,8 +1150,12 @@ public class ClassifyUtil {
      *
      * @param docSet
      * @param dataSplit
+     * @param binaryFeats   - Whether to additionally write the feature vectors
+     *                        as a float32 matrix (see BinaryMatrixWriter)
+     * @param seed          - Seed for the train box sampler
      */
-    public static void exportFeatures_affinity(Collection<Document> docSet, String dataSplit)
+    public static void exportFeatures_affinity(Collection<Document> docSet, String dataSplit,
+                                               boolean binaryFeats, long seed)
     {
         List<Document> docList = new ArrayList<>(docSet);
 
@@ -1173,9 +1184,13 @@ public class ClassifyUtil {
             if(f.isFile())
                 boxFiles.add(f.getName().replace(".feats", ""));
 
+        BinaryMatrixWriter matrixWriter = null;
+        if(binaryFeats)
+            matrixWriter = new BinaryMatrixWriter(Main.dataPath + "feats/affinity_feats_" + dataSplit);
+
         List<String> ll_affinity = new ArrayList<>();
         if(dataSplit.equals("train")){
-            ll_affinity.addAll(_exportFeatures_affinity_train(docSet, boxFiles));
+            ll_affinity.addAll(_exportFeatures_affinity_train(docSet, boxFiles, matrixWriter, seed));
         } else {
             List<String> ll_types = new ArrayList<>();
             int docIdx = 0;
@@ -1197,8 +1212,10 @@ public class ClassifyUtil {
                         List<Double> feats_affinity = new ArrayList<>();
                         fvDict.get(b.getUniqueID()).stream().forEachOrdered(v -> feats_affinity.add(v));
                         _w2vUtil.getVector(m.toString().toLowerCase().trim()).stream().forEachOrdered(v -> feats_affinity.add(v));
-                        ll_affinity.add(ID + "," + label + "," + StringUtil.listToString(feats_affinity, ","));
+                        ll_affinity.add(ID + "," + label + "," + DoubleFormatter.join(feats_affinity, ',', DoubleFormatter.Precision.FLOAT));
                         ll_types.add(ID + "," + m.getLexicalType());
+                        if(matrixWriter != null)
+                            matrixWriter.writeRow(ID, String.valueOf(label), feats_affinity);
                     }
                 }
                 docIdx++;
@@ -1211,6 +1228,8 @@ public class ClassifyUtil {
 
         FileIO.writeFile(ll_affinity, Main.dataPath +
                 "feats/affinity_feats_" + dataSplit, "feats", false);
+        if(matrixWriter != null)
+            matrixWriter.close();
     }
 
     /**Exports affiity features for train, where 10 random boxes are sampled per
@@ -1218,52 +1237,60 @@ public class ClassifyUtil {
      *
      * @param docSet
      * @param boxFiles
+     * @param matrixWriter  - Binary matrix writer to which rows are also written
+     *                        (may be null)
+     * @param seed          - Seed for the box sampler
      * @return
      */
-    private static List<String> _exportFeatures_affinity_train(Collection<Document> docSet, Set<String> boxFiles)
+    private static List<String> _exportFeatures_affinity_train(Collection<Document> docSet, Set<String> boxFiles,
+                                                               BinaryMatrixWriter matrixWriter, long seed)
     {
         List<String> ll_affinity = new ArrayList<>();
 
-        //Store a mapping of [docID -> [mention -> [bounding boxes] ] ]
-        Map<String, Map<Mention, Set<BoundingBox>>>
-                mentionBoxesDict = new HashMap<>();
+        //Sample (up to) 10 positive and 10 negative bounding boxes per
+        //unique mention string in a single pass over the mention/box pairs;
+        //documents are visited in ID order and boxes in index order, so
+        //a given seed always produces the same sample
+        Random rand = new Random(seed);
+        Map<String, ReservoirSampler<BoundingBox>> samplerDict_pos = new LinkedHashMap<>();
+        Map<String, ReservoirSampler<BoundingBox>> samplerDict_neg = new LinkedHashMap<>();
         Map<String, String> typeDict = new HashMap<>();
-        Map<Mention, Document> mentionDocDict = new HashMap<>();
-        for(Document d : docSet){
-            if(boxFiles.contains(d.getID().replace(".jpg", ""))){
-                for(Mention m : d.getMentionList()){
-                    mentionDocDict.put(m, d);
-                    String normText = m.toString().toLowerCase().trim();
-                    if(!mentionBoxesDict.containsKey(normText)) {
-                        mentionBoxesDict.put(normText, new HashMap<>());
-                        typeDict.put(normText, m.getLexicalType());
-                    }
-                    mentionBoxesDict.get(normText).put(m, d.getBoxSetForMention(m));
-                }
-            } else {
+        List<Document> docList = new ArrayList<>(docSet);
+        docList.sort(Comparator.comparing(Document::getID));
+        for(Document d : docList){
+            if(!boxFiles.contains(d.getID().replace(".jpg", ""))){
                 System.out.println("ERROR: found no box feats for " + d.getID());
+                continue;
+            }
+            List<BoundingBox> boxList = new ArrayList<>(d.getBoundingBoxSet());
+            boxList.sort(Comparator.comparingInt(BoundingBox::getIdx));
+            for(Mention m : d.getMentionList()){
+                String normText = m.toString().toLowerCase().trim();
+                if(!samplerDict_pos.containsKey(normText)) {
+                    samplerDict_pos.put(normText, new ReservoirSampler<>(10, rand));
+                    samplerDict_neg.put(normText, new ReservoirSampler<>(10, rand));
+                    typeDict.put(normText, m.getLexicalType());
+                }
+                Set<BoundingBox> assocBoxes = d.getBoxSetForMention(m);
+                for(BoundingBox b : boxList){
+                    if(assocBoxes.contains(b))
+                        samplerDict_pos.get(normText).offer(b);
+                    else
+                        samplerDict_neg.get(normText).offer(b);
+                }
             }
         }
 
-        //Randomly sample 10 bounding boxes from those that have boxes if
-        //we're subsampling
-        Map<String, Set<BoundingBox>> mentionBoxesDict_pos = new HashMap<>();
-        Map<String, Set<BoundingBox>> mentionBoxesDict_neg = new HashMap<>();
-        for(String normText : mentionBoxesDict.keySet()){
-            List<BoundingBox> boxList_pos = new ArrayList<>();
-            List<BoundingBox> boxList_neg = new ArrayList<>();
-            for(Mention m : mentionBoxesDict.get(normText).keySet()){
-                boxList_pos.addAll(mentionBoxesDict.get(normText).get(m));
-                Document d = mentionDocDict.get(m);
-                Set<BoundingBox> boxSet = new HashSet<>(d.getBoundingBoxSet());
-                boxSet.removeAll(d.getBoxSetForMention(m));
-                boxList_neg.addAll(boxSet);
-            }
-            if(!boxList_pos.isEmpty() && !boxList_neg.isEmpty()){
-                Collections.shuffle(boxList_pos);
-                Collections.shuffle(boxList_neg);
-                mentionBoxesDict_pos.put(normText, new HashSet<>(boxList_pos.subList(0, Math.min(boxList_pos.size()-1, 10))));
-                mentionBoxesDict_neg.put(normText, new HashSet<>(boxList_neg.subList(0, Math.min(boxList_neg.size()-1, 10))));
+        //Keep only those mention strings that have both positive and negative boxes
+        Map<String, Set<BoundingBox>> mentionBoxesDict_pos = new LinkedHashMap<>();
+        Map<String, Set<BoundingBox>> mentionBoxesDict_neg = new LinkedHashMap<>();
+        for(String normText : samplerDict_pos.keySet()){
+            if(!samplerDict_pos.get(normText).isEmpty() &&
+               !samplerDict_neg.get(normText).isEmpty()){
+                mentionBoxesDict_pos.put(normText,
+                        new LinkedHashSet<>(samplerDict_pos.get(normText).getSample()));
+                mentionBoxesDict_neg.put(normText,
+                        new LinkedHashSet<>(samplerDict_neg.get(normText).getSample()));
             }
         }
 
@@ -1305,7 +1332,9 @@ public class ClassifyUtil {
                 feats_img.stream().forEachOrdered(v -> feats_affinity.add(v));
                 feats_txt.stream().forEachOrdered(v -> feats_affinity.add(v));
                 String ID = typeDict.get(normText); //add the type instead of the ID, because train has no ID
-                ll_affinity.add(ID + ",1," + StringUtil.listToString(feats_affinity, ","));
+                ll_affinity.add(ID + ",1," + DoubleFormatter.join(feats_affinity, ',', DoubleFormatter.Precision.FLOAT));
+                if(matrixWriter != null)
+                    matrixWriter.writeRow(ID, "1", feats_affinity);
             }
         }
         for(String normText : mentionBoxesDict_neg.keySet()){
@@ -1313,7 +1342,7 @@ public class ClassifyUtil {
 
             //Since we don't know which image word's box will come from
             //a-priori, open the doc's file at each box (less efficient, but necessary)
-            for(BoundingBox b : mentionBoxesDict_pos.get(normText)){
+            for(BoundingBox b : mentionBoxesDict_neg.get(normText)){
                 List<Double> feats_img = null;
                 try {
                     BufferedReader br = new BufferedReader(new InputStreamReader(
@@ -1345,7 +1374,9 @@ public class ClassifyUtil {
                 feats_img.stream().forEachOrdered(v -> feats_affinity.add(v));
                 feats_txt.stream().forEachOrdered(v -> feats_affinity.add(v));
                 String ID = typeDict.get(normText); //add the type instead of the ID, because train has no ID
-                ll_affinity.add(ID + ",0," + StringUtil.listToString(feats_affinity, ","));
+                ll_affinity.add(ID + ",0," + DoubleFormatter.join(feats_affinity, ',', DoubleFormatter.Precision.FLOAT));
+                if(matrixWriter != null)
+                    matrixWriter.writeRow(ID, "0", feats_affinity);
             }
         }
         return ll_affinity;
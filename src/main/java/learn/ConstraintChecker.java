@@ -0,0 +1,205 @@
+package learn;
+
+import structures.BoundingBox;
+import structures.Document;
+import structures.Mention;
+
+import java.util.*;
+
+/**ConstraintChecker evaluates a complete assignment -- relation
+ * labels, groundings, and visual decisions -- against the constraints
+ * ILPSolverThread would add for it: pairwise symmetry, transitivity and
+ * entity consistency, fixed links, grounded coreference and subsets,
+ * box exigence, the type constraint, and visual links. Cardinality is
+ * implied by the groundings, and so is always consistent
+ *
+ * @author ccervantes
+ */
+class ConstraintChecker
+{
+    private List<Mention> _mentionList;
+    private List<BoundingBox> _boxList;
+    private boolean _includeSubset, _includeBoxExigence;
+    private Map<Mention, List<String>> _mentionCatDict;
+    private Map<String, Integer> _fixedRelationLinks, _fixedGroundingLinks, _fixedVisualMentions;
+
+    /**Creates a new checker for the given mentions and boxes
+     *
+     * @param mentionList
+     * @param boxList
+     * @param includeSubset       - Whether subset labels are permitted
+     * @param includeBoxExigence  - Whether every box must have a mention
+     * @param mentionCatDict      - Mention categories, if the type constraint
+     *                              is active (null otherwise)
+     * @param fixedRelationLinks
+     * @param fixedGroundingLinks
+     * @param fixedVisualMentions
+     */
+    ConstraintChecker(List<Mention> mentionList, List<BoundingBox> boxList,
+                      boolean includeSubset, boolean includeBoxExigence,
+                      Map<Mention, List<String>> mentionCatDict,
+                      Map<String, Integer> fixedRelationLinks,
+                      Map<String, Integer> fixedGroundingLinks,
+                      Map<String, Integer> fixedVisualMentions)
+    {
+        _mentionList = mentionList;
+        _boxList = boxList;
+        _includeSubset = includeSubset;
+        _includeBoxExigence = includeBoxExigence;
+        _mentionCatDict = mentionCatDict;
+        _fixedRelationLinks = fixedRelationLinks;
+        _fixedGroundingLinks = fixedGroundingLinks;
+        _fixedVisualMentions = fixedVisualMentions;
+    }
+
+    /**Returns whether the given assignment satisfies every constraint;
+     * any of labels, groundings, or visual may be null, when the
+     * program doesn't include those decisions
+     *
+     * @param labels     - [i][j] relation label of the i->j link
+     * @param groundings - [i][o] whether mention i is ground to box o
+     * @param visual     - [i] whether mention i is visual
+     * @return
+     */
+    boolean isFeasible(int[][] labels, boolean[][] groundings, boolean[] visual)
+    {
+        int numMentions = _mentionList.size(), numBoxes = _boxList.size();
+        if(labels != null){
+            for(int i=0; i<numMentions; i++){
+                Mention m_i = _mentionList.get(i);
+                for(int j=i+1; j<numMentions; j++){
+                    int label_ij = labels[i][j], label_ji = labels[j][i];
+                    if(!_includeSubset && (label_ij > 1 || label_ji > 1))
+                        return false;
+
+                    //Pairwise symmetry
+                    if((label_ij == 1) != (label_ji == 1) || (label_ij == 2) != (label_ji == 3) ||
+                       (label_ij == 3) != (label_ji == 2))
+                        return false;
+
+                    //Fixed links
+                    Mention m_j = _mentionList.get(j);
+                    Integer fixed_ij = _fixedRelationLinks.get(Document.getMentionPairStr(m_i, m_j));
+                    Integer fixed_ji = _fixedRelationLinks.get(Document.getMentionPairStr(m_j, m_i));
+                    if(fixed_ij != null && fixed_ij != label_ij || fixed_ji != null && fixed_ji != label_ji)
+                        return false;
+
+                    //Visual mentions
+                    if(visual != null && (label_ij > 0 || label_ji > 0) && !(visual[i] && visual[j]))
+                        return false;
+
+                    //Grounded coreference and subsets
+                    if(groundings != null && !_isGroundingConsistent(groundings[i], groundings[j],
+                            label_ij, label_ji))
+                        return false;
+                }
+            }
+            if(!getViolatedTriples(labels, _includeSubset).isEmpty())
+                return false;
+        }
+
+        if(groundings != null){
+            for(int i=0; i<numMentions; i++){
+                Mention m_i = _mentionList.get(i);
+                boolean hasBoxes = false;
+                for(int o=0; o<numBoxes; o++){
+                    BoundingBox b_o = _boxList.get(o);
+                    hasBoxes |= groundings[i][o];
+                    Integer fixed = _fixedGroundingLinks.get(Document.getMentionBoxStr(m_i, b_o));
+                    if(fixed != null && fixed == 1 != groundings[i][o])
+                        return false;
+                    if(groundings[i][o] && _mentionCatDict != null &&
+                       (!_mentionCatDict.containsKey(m_i) ||
+                        !_mentionCatDict.get(m_i).contains(b_o.getCategory())))
+                        return false;
+                }
+                if(hasBoxes && visual != null && !visual[i])
+                    return false;
+            }
+            if(_includeBoxExigence){
+                for(int o=0; o<numBoxes; o++){
+                    boolean hasMention = false;
+                    for(int i=0; i<numMentions && !hasMention; i++)
+                        hasMention = groundings[i][o];
+                    if(!hasMention)
+                        return false;
+                }
+            }
+        }
+
+        if(visual != null){
+            for(int i=0; i<numMentions; i++){
+                Integer fixed = _fixedVisualMentions.get(_mentionList.get(i).getUniqueID());
+                if(fixed != null && fixed == 1 != visual[i])
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**Returns whether mentions i and j -- with the given boxes and
+     * labels -- satisfy the grounded relation constraints: coreferent
+     * mentions share their boxes, and subsets have strictly fewer
+     * boxes than (and only boxes of) their supersets, where either
+     * has any boxes
+     *
+     * @param boxes_i
+     * @param boxes_j
+     * @param label_ij
+     * @param label_ji
+     * @return
+     */
+    private static boolean _isGroundingConsistent(boolean[] boxes_i, boolean[] boxes_j,
+                                                  int label_ij, int label_ji)
+    {
+        int numBoxes_i = 0, numBoxes_j = 0;
+        for(int o=0; o<boxes_i.length; o++){
+            if(boxes_i[o])
+                numBoxes_i++;
+            if(boxes_j[o])
+                numBoxes_j++;
+            if(label_ij == 1 && boxes_i[o] != boxes_j[o] ||
+               label_ij == 2 && boxes_i[o] && !boxes_j[o] ||
+               label_ji == 2 && boxes_j[o] && !boxes_i[o])
+                return false;
+        }
+        boolean hasBoxes = numBoxes_i > 0 || numBoxes_j > 0;
+        return !hasBoxes || (label_ij != 2 || numBoxes_i < numBoxes_j) &&
+                            (label_ji != 2 || numBoxes_j < numBoxes_i);
+    }
+
+    /**Returns the (i, j, k) triples -- where i < j -- for which the given
+     * labels violate any of the transitivity / entity consistency
+     * constraints; since each directed link takes exactly one label, the
+     * constraints reduce to comparisons between link labels
+     *
+     * @param labels
+     * @param includeSubset
+     * @return
+     */
+    static List<int[]> getViolatedTriples(int[][] labels, boolean includeSubset)
+    {
+        int numMentions = labels.length;
+        List<int[]> violatedTriples = new ArrayList<>();
+        for(int i=0; i<numMentions; i++){
+            for(int j=i+1; j<numMentions; j++){
+                for(int k=0; k<numMentions; k++){
+                    if(k == i || k == j)
+                        continue;
+                    boolean violated = false;
+                    if(labels[i][j] == 1)
+                        violated = labels[i][k] != labels[j][k] || labels[k][i] != labels[k][j];
+                    if(includeSubset && !violated){
+                        violated = labels[i][j] == 2 && labels[j][k] == 2 && labels[i][k] != 2 ||
+                                   labels[j][i] == 2 && labels[i][k] == 2 && labels[j][k] != 2 ||
+                                   labels[i][j] == 2 && labels[k][i] == 2 && labels[k][j] != 2 ||
+                                   labels[j][i] == 2 && labels[k][j] == 2 && labels[k][i] != 2;
+                    }
+                    if(violated)
+                        violatedTriples.add(new int[]{i, j, k});
+                }
+            }
+        }
+        return violatedTriples;
+    }
+}
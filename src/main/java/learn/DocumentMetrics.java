@@ -0,0 +1,228 @@
+package learn;
+
+import java.util.Locale;
+
+/**DocumentMetrics records what it took to solve one document: the size
+ * of the program(s) built for it -- variables, and constraints by the
+ * family that added them -- the time spent building and solving them,
+ * and how the solve came out. A document solved as components or by
+ * falling back to separate relation and grounding inference merges its
+ * sub-solvers' metrics into its own, such that build, solve, and solve
+ * counts are totals over all of its programs (and the gap the largest
+ * among them), while totalSec is the document's wall-clock time.
+ * Written as a csv line (see CSV_HEADER) or a JSON line
+ *
+ * @author ccervantes
+ */
+public class DocumentMetrics
+{
+    /**Family names the solver code that added a
+     * group of constraints
+     */
+    public enum Family
+    {
+        PAIRWISE, TRANSITIVITY, JOINT, CARDINALITY, EXIGENCE,
+        CATEGORY, VISUAL, FIXED, COMPLEMENT
+    }
+
+    public static final String CSV_HEADER;
+    static {
+        StringBuilder header = new StringBuilder("doc_id,inf_type,backend,num_mentions,num_boxes," +
+                "status,fallback,num_solves,num_argmax,num_exact,num_vars,num_constrs");
+        for(Family f : Family.values())
+            header.append(",constrs_").append(f.toString().toLowerCase());
+        header.append(",build_sec,solve_sec,total_sec,gap");
+        CSV_HEADER = header.toString();
+    }
+
+    private String _docID;
+    private ILPInference.InferenceType _infType;
+    private ILPBackend.BackendType _backendType;
+    private int _numMentions, _numBoxes;
+    private int _numVars;
+    private int[] _numConstrs;
+    private int _numSolves, _numArgmax, _numExact;
+    private double _buildSec, _solveSec, _totalSec;
+    private double _gap;
+    private boolean _foundSolution, _optimal, _fallback;
+
+    /**Creates empty metrics for the given document
+     *
+     * @param docID
+     * @param infType
+     * @param backendType
+     * @param numMentions
+     * @param numBoxes
+     */
+    public DocumentMetrics(String docID, ILPInference.InferenceType infType,
+                           ILPBackend.BackendType backendType, int numMentions, int numBoxes)
+    {
+        _docID = docID;
+        _infType = infType;
+        _backendType = backendType;
+        _numMentions = numMentions;
+        _numBoxes = numBoxes;
+        _numVars = 0;
+        _numConstrs = new int[Family.values().length];
+        _numSolves = 0;
+        _numArgmax = 0;
+        _numExact = 0;
+        _buildSec = 0.0;
+        _solveSec = 0.0;
+        _totalSec = 0.0;
+        _gap = Double.NaN;
+        _foundSolution = false;
+        _optimal = false;
+        _fallback = false;
+    }
+
+    /**Adds the given number of constraints to the given family
+     *
+     * @param family
+     * @param numConstrs
+     */
+    public void addConstraints(Family family, int numConstrs)
+    {
+        _numConstrs[family.ordinal()] += numConstrs;
+    }
+
+    /**Adds a solved program (or a program extended and solved
+     * again) to these metrics
+     *
+     * @param numVars    - Variables added since the last program
+     * @param buildSec
+     * @param solveSec
+     * @param gap        - The solver's relative gap (NaN if unknown)
+     */
+    public void addProgram(int numVars, double buildSec, double solveSec, double gap)
+    {
+        _numVars += numVars;
+        _buildSec += buildSec;
+        _solveSec += solveSec;
+        if(!Double.isNaN(gap))
+            _gap = Double.isNaN(_gap) ? gap : Math.max(_gap, gap);
+    }
+
+    /**Records a call to the solver
+     */
+    public void addSolve(){_numSolves++;}
+
+    /**Records that a program was solved by the argmax
+     * fast path, without being built
+     */
+    public void addArgmaxSolution(){_numArgmax++;}
+
+    /**Records that a program was solved by exact
+     * enumeration, without being built
+     */
+    public void addExactSolution(){_numExact++;}
+
+    /**Records how the document's inference came out
+     *
+     * @param foundSolution
+     * @param optimal       - Whether every part of the solution was proven optimal
+     * @param fallback
+     * @param totalSec
+     */
+    public void setOutcome(boolean foundSolution, boolean optimal, boolean fallback, double totalSec)
+    {
+        _foundSolution = foundSolution;
+        _optimal = optimal;
+        _fallback = fallback;
+        _totalSec = totalSec;
+    }
+
+    /**Adds the given (sub-solver's) program sizes, solves, and
+     * times to these metrics
+     *
+     * @param other
+     */
+    public void merge(DocumentMetrics other)
+    {
+        for(int f=0; f<_numConstrs.length; f++)
+            _numConstrs[f] += other._numConstrs[f];
+        _numSolves += other._numSolves;
+        _numArgmax += other._numArgmax;
+        _numExact += other._numExact;
+        addProgram(other._numVars, other._buildSec, other._solveSec, other._gap);
+    }
+
+    public String getDocID(){return _docID;}
+
+    public int getNumVariables(){return _numVars;}
+
+    /**Returns the number of constraints in the given family
+     *
+     * @param family
+     * @return
+     */
+    public int getNumConstraints(Family family){return _numConstrs[family.ordinal()];}
+
+    /**Returns the total number of constraints
+     *
+     * @return
+     */
+    public int getNumConstraints()
+    {
+        int numConstrs = 0;
+        for(int n : _numConstrs)
+            numConstrs += n;
+        return numConstrs;
+    }
+
+    public double getBuildSec(){return _buildSec;}
+
+    public double getSolveSec(){return _solveSec;}
+
+    /**Returns the document's status: optimal, incumbent (where
+     * some part of the solution was not proven optimal), or none
+     *
+     * @return
+     */
+    public String getStatus()
+    {
+        return !_foundSolution ? "none" : _optimal ? "optimal" : "incumbent";
+    }
+
+    /**Returns these metrics as a line of csv, with the
+     * columns in CSV_HEADER
+     *
+     * @return
+     */
+    public String toCsvLine()
+    {
+        StringBuilder line = new StringBuilder(String.format(Locale.ROOT, "%s,%s,%s,%d,%d,%s,%d,%d,%d,%d,%d,%d",
+                _docID, _infType.toString().toLowerCase(), _backendType.toString().toLowerCase(),
+                _numMentions, _numBoxes, getStatus(), _fallback ? 1 : 0, _numSolves, _numArgmax,
+                _numExact, _numVars, getNumConstraints()));
+        for(int n : _numConstrs)
+            line.append(",").append(n);
+        line.append(String.format(Locale.ROOT, ",%.3f,%.3f,%.3f,%s", _buildSec, _solveSec,
+                _totalSec, Double.isNaN(_gap) ? "" : String.format(Locale.ROOT, "%.6f", _gap)));
+        return line.toString();
+    }
+
+    /**Returns these metrics as a single-line JSON object, with
+     * the keys in CSV_HEADER (and a null gap, if it's unknown)
+     *
+     * @return
+     */
+    public String toJsonLine()
+    {
+        StringBuilder line = new StringBuilder("{");
+        line.append("\"doc_id\":\"").append(_docID.replace("\\", "\\\\").replace("\"", "\\\"")).append("\"");
+        line.append(",\"inf_type\":\"").append(_infType.toString().toLowerCase()).append("\"");
+        line.append(",\"backend\":\"").append(_backendType.toString().toLowerCase()).append("\"");
+        line.append(String.format(Locale.ROOT, ",\"num_mentions\":%d,\"num_boxes\":%d," +
+                "\"status\":\"%s\",\"fallback\":%s,\"num_solves\":%d,\"num_argmax\":%d," +
+                "\"num_exact\":%d,\"num_vars\":%d,\"num_constrs\":%d", _numMentions, _numBoxes,
+                getStatus(), _fallback, _numSolves, _numArgmax, _numExact, _numVars, getNumConstraints()));
+        for(Family f : Family.values())
+            line.append(",\"constrs_").append(f.toString().toLowerCase()).append("\":")
+                .append(_numConstrs[f.ordinal()]);
+        line.append(String.format(Locale.ROOT, ",\"build_sec\":%.3f,\"solve_sec\":%.3f," +
+                "\"total_sec\":%.3f,\"gap\":%s}", _buildSec, _solveSec, _totalSec,
+                Double.isNaN(_gap) ? "null" : String.format(Locale.ROOT, "%.6f", _gap)));
+        return line.toString();
+    }
+}
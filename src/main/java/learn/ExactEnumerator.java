@@ -0,0 +1,471 @@
+package learn;
+
+import java.util.*;
+
+/**ExactEnumerator solves tiny programs -- a few mentions and boxes --
+ * without a solver, by searching every assignment the program permits.
+ * Relation assignments are enumerated as partitions of the mentions
+ * into coreference chains, with subset / superset / null labels between
+ * chains that form a strict partial order (which is what transitivity
+ * and entity consistency permit); for each, groundings are searched
+ * chain by chain (coreferent mentions share their boxes), depth-first
+ * and bounded by the best remaining box scores, and each mention's
+ * visual decision is then its best value given its links and boxes.
+ * Every candidate that would improve on the best is checked against the
+ * program's constraints with a ConstraintChecker, and its objective is
+ * the program's objective, so the best is the ILP's optimum (up to ties)
+ *
+ * @author ccervantes
+ */
+class ExactEnumerator
+{
+    private static final double BOUND_TOL = 1e-9;
+    private static final int DEADLINE_CHECK_NODES = 1024;
+
+    private int _numMentions, _numBoxes;
+    private double[][][] _relationCoeffs;
+    private double[][] _maskScores;
+    private double[][] _visualCoeffs;
+    private double _visualBound;
+    private int[] _fixedVisual;
+    private ConstraintChecker _checker;
+
+    //The best assignment found, and its objective
+    private int[][] _bestLabels;
+    private boolean[][] _bestGroundings;
+    private boolean[] _bestVisual;
+    private double _bestScore;
+
+    //When the search must stop, the nodes searched
+    //so far, and whether it stopped early
+    private long _deadline;
+    private long _numNodes;
+    private boolean _timedOut;
+
+    //The relation candidate being searched: each mention's chain,
+    //the chains' members, the chain-level labels, and the chains'
+    //box masks (as assigned so far), with each chain's (and chain
+    //pair's) scores and the bounds they give
+    private int[][] _labels;
+    private int[] _chains;
+    private List<List<Integer>> _chainMembers;
+    private int[][] _chainLabels;
+    private int[] _chainMasks;
+    private double[] _chainBestMaskScores;
+    private int[] _chainLabelSet;
+    private List<int[]> _chainPairs;
+    private double[][] _chainPairScores;
+    private double[] _chainPairBounds;
+
+    /**Creates a new enumerator for a program over the given decisions,
+     * with the objective given by the coefficient arrays; relationCoeffs,
+     * affinityCoeffs / antiAffinityCoeffs / cardinalityCoeffs, and
+     * visualCoeffs are null when the program doesn't include relations,
+     * groundings, or visual decisions, respectively
+     *
+     * @param numMentions
+     * @param numBoxes
+     * @param includeSubset
+     * @param relationCoeffs      - [i][j][y] coefficient of the i->j link taking label y
+     * @param affinityCoeffs      - [i][o] coefficient of mention i grounding to box o
+     * @param antiAffinityCoeffs  - [i][o] coefficient of mention i _not_ grounding to box o
+     * @param cardinalityCoeffs   - [i][n] coefficient of mention i grounding to n boxes
+     * @param visualCoeffs        - [i][v] coefficient of mention i being nonvisual (0) or visual (1)
+     * @param fixedVisual         - [i] mention i's fixed visual decision (-1 if it has none)
+     * @param checker             - Checker for the program's constraints
+     */
+    ExactEnumerator(int numMentions, int numBoxes, boolean includeSubset,
+                    double[][][] relationCoeffs, double[][] affinityCoeffs,
+                    double[][] antiAffinityCoeffs, double[][] cardinalityCoeffs,
+                    double[][] visualCoeffs, int[] fixedVisual, ConstraintChecker checker)
+    {
+        _numMentions = numMentions;
+        _numBoxes = numBoxes;
+        _relationCoeffs = relationCoeffs;
+        _visualCoeffs = visualCoeffs;
+        _fixedVisual = fixedVisual;
+        _checker = checker;
+        _chainLabelSet = includeSubset ? new int[]{0, 2, 3} : new int[]{0};
+
+        //The most the visual decisions could add to the objective
+        _visualBound = 0.0;
+        if(_visualCoeffs != null)
+            for(int i=0; i<_numMentions; i++)
+                _visualBound += Math.max(_visualCoeffs[i][0], _visualCoeffs[i][1]);
+
+        //Each mention's box score for each set of boxes (as a bit mask)
+        _maskScores = null;
+        if(affinityCoeffs != null){
+            _maskScores = new double[_numMentions][1 << _numBoxes];
+            for(int i=0; i<_numMentions; i++){
+                for(int mask=0; mask<(1 << _numBoxes); mask++){
+                    double score = cardinalityCoeffs[i][Integer.bitCount(mask)];
+                    for(int o=0; o<_numBoxes; o++)
+                        score += (mask & (1 << o)) != 0 ? affinityCoeffs[i][o] : antiAffinityCoeffs[i][o];
+                    _maskScores[i][mask] = score;
+                }
+            }
+        }
+    }
+
+    /**Searches every assignment, returning whether any is feasible; if
+     * so, the best is available through getLabels(), getGroundings(),
+     * and getVisual(). A search still running at the given deadline
+     * stops, returning false, with timedOut() true
+     *
+     * @param deadline - Wall-clock time (in ms) at which to stop
+     * @return
+     */
+    boolean solve(long deadline)
+    {
+        _deadline = deadline;
+        _numNodes = 0;
+        _timedOut = false;
+        _bestLabels = null;
+        _bestGroundings = null;
+        _bestVisual = null;
+        _bestScore = Double.NEGATIVE_INFINITY;
+        if(_relationCoeffs != null){
+            _chains = new int[_numMentions];
+            _enumeratePartitions(0, 0);
+        } else {
+            //Without relations, every mention is its own chain
+            _labels = null;
+            _chains = new int[_numMentions];
+            for(int i=0; i<_numMentions; i++)
+                _chains[i] = i;
+            _setChains(_numMentions);
+            _chainLabels = new int[_numMentions][_numMentions];
+            _searchCandidate(0.0);
+        }
+        return !_timedOut && _bestScore > Double.NEGATIVE_INFINITY;
+    }
+
+    /**Returns whether the last search stopped at its deadline,
+     * before it was complete
+     *
+     * @return
+     */
+    boolean timedOut(){return _timedOut;}
+
+    /**Returns the best assignment's relation labels (null
+     * if the program has no relations)
+     *
+     * @return
+     */
+    int[][] getLabels(){return _bestLabels;}
+
+    /**Returns the best assignment's groundings (null
+     * if the program has no groundings)
+     *
+     * @return
+     */
+    boolean[][] getGroundings(){return _bestGroundings;}
+
+    /**Returns the best assignment's visual decisions (null
+     * if the program has no visual decisions)
+     *
+     * @return
+     */
+    boolean[] getVisual(){return _bestVisual;}
+
+    /**Assigns the given mention -- and, recursively, those after it -- to
+     * an existing chain or a new one (as a restricted growth string, such
+     * that each partition is enumerated once), and enumerates the chain
+     * labels of each complete partition
+     *
+     * @param mIdx
+     * @param numChains
+     */
+    private void _enumeratePartitions(int mIdx, int numChains)
+    {
+        if(_isOutOfTime())
+            return;
+        if(mIdx == _numMentions){
+            _setChains(numChains);
+            _setChainPairScores(numChains);
+            _chainLabels = new int[numChains][numChains];
+            double corefScore = 0.0;
+            for(int i=0; i<_numMentions; i++)
+                for(int j=0; j<_numMentions; j++)
+                    if(i != j && _chains[i] == _chains[j])
+                        corefScore += _relationCoeffs[i][j][1];
+            _enumerateChainLabels(0, corefScore);
+            return;
+        }
+        for(int c=0; c<=numChains; c++){
+            _chains[mIdx] = c;
+            _enumeratePartitions(mIdx + 1, Math.max(numChains, c + 1));
+        }
+    }
+
+    /**Sets the members of each of the given number of chains, and
+     * bounds each chain -- and those after it -- by its best set
+     * of boxes, ignoring constraints
+     *
+     * @param numChains
+     */
+    private void _setChains(int numChains)
+    {
+        _chainMembers = new ArrayList<>();
+        for(int c=0; c<numChains; c++)
+            _chainMembers.add(new ArrayList<>());
+        for(int i=0; i<_numMentions; i++)
+            _chainMembers.get(_chains[i]).add(i);
+        _chainMasks = new int[numChains];
+
+        _chainBestMaskScores = new double[numChains + 1];
+        if(_maskScores != null){
+            for(int c=numChains-1; c>=0; c--){
+                double best = Double.NEGATIVE_INFINITY;
+                for(int mask=0; mask<(1 << _numBoxes); mask++)
+                    best = Math.max(best, _getChainMaskScore(c, mask));
+                _chainBestMaskScores[c] = best + _chainBestMaskScores[c + 1];
+            }
+        }
+    }
+
+    /**Sets the relation score of each chain pair (a, b) taking each
+     * label -- that of every a->b link taking it, and every b->a link
+     * its inverse -- and bounds each pair, and those after it, by its
+     * best label
+     *
+     * @param numChains
+     */
+    private void _setChainPairScores(int numChains)
+    {
+        _chainPairs = new ArrayList<>();
+        for(int a=0; a<numChains; a++)
+            for(int b=a+1; b<numChains; b++)
+                _chainPairs.add(new int[]{a, b});
+        _chainPairScores = new double[_chainPairs.size()][4];
+        _chainPairBounds = new double[_chainPairs.size() + 1];
+        for(int p=_chainPairs.size()-1; p>=0; p--){
+            int[] pair = _chainPairs.get(p);
+            double best = Double.NEGATIVE_INFINITY;
+            for(int y : _chainLabelSet){
+                for(int i : _chainMembers.get(pair[0])){
+                    for(int j : _chainMembers.get(pair[1])){
+                        _chainPairScores[p][y] += _relationCoeffs[i][j][y] +
+                                _relationCoeffs[j][i][_getInverseLabel(y)];
+                    }
+                }
+                best = Math.max(best, _chainPairScores[p][y]);
+            }
+            _chainPairBounds[p] = best + _chainPairBounds[p + 1];
+        }
+    }
+
+    /**Labels the given chain pair (a, b) -- and, recursively, those after
+     * it -- as null, a subset of b, or a superset of b, and searches each
+     * complete labeling that's transitively closed, unless no labeling
+     * can improve on the best; pairs are labeled in order, so the triples
+     * a pair completes are those with chains before a, and each triple is
+     * checked as soon as it's complete
+     *
+     * @param p
+     * @param score
+     */
+    private void _enumerateChainLabels(int p, double score)
+    {
+        if(_isOutOfTime())
+            return;
+        if(score + _chainPairBounds[p] + _chainBestMaskScores[0] +
+           _visualBound < _bestScore - BOUND_TOL)
+            return;
+        if(p == _chainPairs.size()){
+            _searchRelationCandidate(score);
+            return;
+        }
+        int a = _chainPairs.get(p)[0], b = _chainPairs.get(p)[1];
+        for(int y : _chainLabelSet){
+            _chainLabels[a][b] = y;
+            _chainLabels[b][a] = _getInverseLabel(y);
+            if(_isTransitive(a, b))
+                _enumerateChainLabels(p + 1, score + _chainPairScores[p][y]);
+        }
+    }
+
+    /**Returns the inverse of the given label (subset for
+     * superset, and vice versa)
+     *
+     * @param y
+     * @return
+     */
+    private static int _getInverseLabel(int y)
+    {
+        return y < 2 ? y : 5 - y;
+    }
+
+    /**Returns whether the subset labels among chains a, b, and each
+     * chain c before a are transitive
+     *
+     * @param a
+     * @param b
+     * @return
+     */
+    private boolean _isTransitive(int a, int b)
+    {
+        for(int c=0; c<a; c++){
+            int[] triple = {a, b, c};
+            for(int x : triple)
+                for(int y : triple)
+                    for(int z : triple)
+                        if(x != y && y != z && x != z && _chainLabels[x][y] == 2 &&
+                           _chainLabels[y][z] == 2 && _chainLabels[x][z] != 2)
+                            return false;
+        }
+        return true;
+    }
+
+    /**Expands the current partition and chain labels into mention
+     * labels and, if they satisfy the relation constraints, searches
+     * the rest of the assignment
+     *
+     * @param relationScore
+     */
+    private void _searchRelationCandidate(double relationScore)
+    {
+        _labels = new int[_numMentions][_numMentions];
+        for(int i=0; i<_numMentions; i++)
+            for(int j=0; j<_numMentions; j++)
+                if(i != j)
+                    _labels[i][j] = _chains[i] == _chains[j] ? 1 : _chainLabels[_chains[i]][_chains[j]];
+        if(_checker.isFeasible(_labels, null, null))
+            _searchCandidate(relationScore);
+    }
+
+    /**Searches the groundings (if any) and visual decisions given
+     * the current relation candidate, with the given score
+     *
+     * @param relationScore
+     */
+    private void _searchCandidate(double relationScore)
+    {
+        if(_maskScores == null)
+            _evaluateLeaf(relationScore);
+        else
+            _searchGroundings(0, relationScore);
+    }
+
+    /**Assigns a set of boxes to the given chain -- and, recursively,
+     * those after it -- where the chain's boxes are consistent with the
+     * chains already assigned, unless no such assignment can improve
+     * on the best
+     *
+     * @param c
+     * @param score
+     */
+    private void _searchGroundings(int c, double score)
+    {
+        if(_isOutOfTime())
+            return;
+        if(c == _chainMasks.length){
+            _evaluateLeaf(score);
+            return;
+        }
+        if(score + _chainBestMaskScores[c] + _visualBound < _bestScore - BOUND_TOL)
+            return;
+        for(int mask=0; mask<(1 << _numBoxes); mask++){
+            if(!_isMaskConsistent(c, mask))
+                continue;
+            _chainMasks[c] = mask;
+            _searchGroundings(c + 1, score + _getChainMaskScore(c, mask));
+        }
+    }
+
+    /**Counts a search node, returning whether the search is past its
+     * deadline (checked every DEADLINE_CHECK_NODES nodes)
+     *
+     * @return
+     */
+    private boolean _isOutOfTime()
+    {
+        if(!_timedOut && ++_numNodes % DEADLINE_CHECK_NODES == 0)
+            _timedOut = System.currentTimeMillis() >= _deadline;
+        return _timedOut;
+    }
+
+    /**Returns whether the given chain may take the given boxes, given
+     * the boxes of the chains before it: subsets must have strictly
+     * fewer boxes than -- and only boxes of -- their supersets, where
+     * either has any boxes
+     *
+     * @param c
+     * @param mask
+     * @return
+     */
+    private boolean _isMaskConsistent(int c, int mask)
+    {
+        if(_labels == null)
+            return true;
+        for(int d=0; d<c; d++){
+            int sub = -1, sup = -1;
+            if(_chainLabels[c][d] == 2){
+                sub = mask;
+                sup = _chainMasks[d];
+            } else if(_chainLabels[c][d] == 3){
+                sub = _chainMasks[d];
+                sup = mask;
+            }
+            if(sub >= 0 && (sub | sup) != 0 && ((sub & ~sup) != 0 || sub == sup))
+                return false;
+        }
+        return true;
+    }
+
+    /**Returns the box score of the given chain's mentions
+     * taking the given boxes
+     *
+     * @param c
+     * @param mask
+     * @return
+     */
+    private double _getChainMaskScore(int c, int mask)
+    {
+        double score = 0.0;
+        for(int i : _chainMembers.get(c))
+            score += _maskScores[i][mask];
+        return score;
+    }
+
+    /**Completes the current candidate with each mention's best visual
+     * decision -- fixed, if it's fixed; visual, if it has any links or
+     * boxes; or otherwise whichever scores higher -- and keeps it if it
+     * improves on the best and satisfies every constraint
+     *
+     * @param score
+     */
+    private void _evaluateLeaf(double score)
+    {
+        boolean[][] groundings = null;
+        if(_maskScores != null){
+            groundings = new boolean[_numMentions][_numBoxes];
+            for(int i=0; i<_numMentions; i++)
+                for(int o=0; o<_numBoxes; o++)
+                    groundings[i][o] = (_chainMasks[_chains[i]] & (1 << o)) != 0;
+        }
+
+        boolean[] visual = null;
+        if(_visualCoeffs != null){
+            visual = new boolean[_numMentions];
+            for(int i=0; i<_numMentions; i++){
+                boolean needsVisual = _maskScores != null && _chainMasks[_chains[i]] != 0;
+                for(int j=0; j<_numMentions && _labels != null && !needsVisual; j++)
+                    needsVisual = i != j && (_labels[i][j] > 0 || _labels[j][i] > 0);
+                if(_fixedVisual[i] >= 0)
+                    visual[i] = _fixedVisual[i] == 1;
+                else
+                    visual[i] = needsVisual || _visualCoeffs[i][1] >= _visualCoeffs[i][0];
+                score += _visualCoeffs[i][visual[i] ? 1 : 0];
+            }
+        }
+
+        if(score > _bestScore && _checker.isFeasible(_labels, groundings, visual)){
+            _bestScore = score;
+            _bestLabels = _labels;
+            _bestGroundings = groundings;
+            _bestVisual = visual;
+        }
+    }
+}
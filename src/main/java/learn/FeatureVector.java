@@ -1,5 +1,7 @@
 package learn;
 
+import out.DoubleFormatter;
+
 import java.util.*;
 
 /**A holdover from when learning took place in Java,
@@ -155,7 +157,11 @@ public class FeatureVector
             sb.append(" ");
             sb.append(idx);
             sb.append(":");
-            sb.append(_featureValueDict.get(idx));
+            Double val = _featureValueDict.get(idx);
+            if(val == null)
+                sb.append(val);
+            else
+                DoubleFormatter.append(val, sb);
         }
 
         //and finally append any comments, if present
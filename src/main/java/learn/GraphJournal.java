@@ -0,0 +1,200 @@
+package learn;
+
+import utilities.FileIO;
+import utilities.Logger;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**GraphJournal persists solved inference graphs as they come in, by
+ * appending one record per document to ROOT_graphs.journal (rather
+ * than rewriting every graph solved so far). The journal is periodically
+ * compacted into the snapshot ROOT_graphs.obj and emptied; compacting
+ * only once the journal holds as many records as the snapshot holds
+ * documents keeps total checkpoint I/O linear in the number of
+ * documents. A restart loads the snapshot and replays the journal on
+ * top of it. Records (big-endian) are
+ *      payload length (int), payload CRC32 (long), payload
+ * where the payload is the document's SolvedGraph.
+ * Replay stops at the first short or corrupt record -- the remains of
+ * an interrupted append -- and truncates the journal there
+ *
+ * @author ccervantes
+ */
+public class GraphJournal
+{
+    private static final String JOURNAL_SUFFIX = "_graphs.journal";
+    private static final String SNAPSHOT_SUFFIX = "_graphs.obj";
+    private static final int MIN_RECORDS_BEFORE_COMPACT = 500;
+
+    private String _graphRoot;
+    private File _journalFile;
+    private DataOutputStream _journalStream;
+    private int _numJournalRecords;
+
+    /**Creates a new journal for graphs under the given root
+     *
+     * @param graphRoot
+     */
+    public GraphJournal(String graphRoot)
+    {
+        _graphRoot = graphRoot;
+        _journalFile = new File(_graphRoot + JOURNAL_SUFFIX);
+        _journalStream = null;
+        _numJournalRecords = 0;
+    }
+
+    /**Returns whether a snapshot exists
+     *
+     * @return
+     */
+    public boolean hasSnapshot(){return new File(_graphRoot + SNAPSHOT_SUFFIX).exists();}
+
+    /**Loads the snapshot, returning an empty map if there is none
+     *
+     * @return
+     */
+    public Map<String, SolvedGraph> loadSnapshot()
+    {
+        Map<String, SolvedGraph> graphs = null;
+        if(hasSnapshot())
+            graphs = (Map<String, SolvedGraph>)FileIO.readObject(Map.class, _graphRoot + SNAPSHOT_SUFFIX);
+        return graphs == null ? new HashMap<>() : graphs;
+    }
+
+    /**Replays the journal into the given graphs, where graphs already
+     * present for a document are kept (as when they were first solved);
+     * returns the number of records replayed
+     *
+     * @param graphs
+     * @return
+     */
+    public int replay(Map<String, SolvedGraph> graphs)
+    {
+        if(!_journalFile.exists())
+            return 0;
+
+        long validBytes = 0;
+        int numRecords = 0;
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(_journalFile)))){
+            long fileBytes = _journalFile.length();
+            while(validBytes + 12 <= fileBytes){
+                int payloadLen = in.readInt();
+                long crcValue = in.readLong();
+                if(payloadLen < 0 || validBytes + 12 + payloadLen > fileBytes)
+                    break;
+                byte[] payload = new byte[payloadLen];
+                in.readFully(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload, 0, payloadLen);
+                if(crc.getValue() != crcValue)
+                    break;
+
+                SolvedGraph graph = SolvedGraph.read(new DataInputStream(
+                        new ByteArrayInputStream(payload)));
+                graphs.putIfAbsent(graph.getDocID(), graph);
+                validBytes += 12 + payloadLen;
+                numRecords++;
+            }
+        } catch(Exception ex) {
+            Logger.log(ex);
+        }
+
+        //Drop whatever partial record an interrupted run left behind
+        if(validBytes < _journalFile.length()){
+            Logger.log("WARNING: Truncating %s after %d records (%d trailing bytes unreadable)",
+                    _journalFile.getName(), numRecords, _journalFile.length() - validBytes);
+            try(RandomAccessFile raf = new RandomAccessFile(_journalFile, "rw")){
+                raf.setLength(validBytes);
+            } catch(IOException ioEx) {
+                Logger.log(ioEx);
+            }
+        }
+        _numJournalRecords = numRecords;
+        return numRecords;
+    }
+
+    /**Appends the given document graph to the journal
+     *
+     * @param graph
+     */
+    public void append(SolvedGraph graph)
+    {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream record = new DataOutputStream(bytes);
+            graph.write(record);
+            record.flush();
+            byte[] payload = bytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(payload, 0, payload.length);
+
+            if(_journalStream == null)
+                _journalStream = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(_journalFile, true)));
+            _journalStream.writeInt(payload.length);
+            _journalStream.writeLong(crc.getValue());
+            _journalStream.write(payload);
+            _journalStream.flush();
+            _numJournalRecords++;
+        } catch(IOException ioEx) {
+            Logger.log(ioEx);
+        }
+    }
+
+    /**Returns whether the journal has grown enough, relative to the
+     * given number of solved documents, to be worth compacting
+     *
+     * @param numDocs
+     * @return
+     */
+    public boolean shouldCompact(int numDocs)
+    {
+        return _numJournalRecords >= Math.max(MIN_RECORDS_BEFORE_COMPACT,
+                numDocs - _numJournalRecords);
+    }
+
+    /**Writes the given graphs as the snapshot and empties the journal;
+     * the snapshot is replaced atomically, and the journal is emptied
+     * only once it's written, so an interruption at any point loses
+     * nothing
+     *
+     * @param graphs
+     */
+    public void compact(Map<String, SolvedGraph> graphs)
+    {
+        try {
+            if(!graphs.isEmpty()){
+                File snapshot = new File(_graphRoot + SNAPSHOT_SUFFIX);
+                File tmp = new File(snapshot.getPath() + ".tmp");
+                FileIO.writeObject(graphs, tmp.getPath());
+                Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            }
+            close();
+            new FileOutputStream(_journalFile, false).close();
+            _numJournalRecords = 0;
+        } catch(IOException ioEx) {
+            Logger.log(ioEx);
+        }
+    }
+
+    /**Closes the journal (which is reopened by the next append)
+     */
+    public void close()
+    {
+        if(_journalStream == null)
+            return;
+        try {
+            _journalStream.close();
+        } catch(IOException ioEx) {
+            Logger.log(ioEx);
+        }
+        _journalStream = null;
+    }
+}
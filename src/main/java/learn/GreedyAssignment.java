@@ -0,0 +1,393 @@
+package learn;
+
+import structures.BoundingBox;
+import structures.Document;
+import structures.Mention;
+
+import java.util.*;
+
+/**GreedyAssignment builds a quick, (usually) feasible solution for a
+ * document from its scores, intended as a start for the ILP solver.
+ * Relations are clustered into coreference chains with union-find
+ * (merging pairs in order of their preference for coreference), chains
+ * are given whichever pairwise label they prefer in aggregate, and
+ * subset links between chains are added (most preferred first) only
+ * where they keep the subset relation acyclic, and then closed
+ * transitively. Groundings take each mention's top affinity boxes up
+ * to its argmax cardinality, and are then shared across chains and
+ * passed up to supersets; boxes no mention claims (under box exigence)
+ * go to their highest-affinity mention. Visual mentions are those with
+ * a low nonvisual score or any relation or grounding
+ *
+ * @author ccervantes
+ */
+class GreedyAssignment
+{
+    private ScoreTable.DocumentScores _scores;
+    private List<Mention> _mentionList;
+    private List<BoundingBox> _boxList;
+    private int _maxRelationLabel;
+    private Map<String, Integer> _fixedRelationLinks, _fixedGroundingLinks, _fixedVisualMentions;
+    private Map<Mention, List<String>> _mentionCatDict;
+
+    private int[][] _relationLabels;
+    private boolean[][] _groundings;
+    private boolean[] _visual;
+
+    /**Builds the greedy assignment for the given scores
+     *
+     * @param scores
+     * @param includeRelations    - Whether to assign relation labels
+     * @param includeGroundings   - Whether to assign groundings
+     * @param maxRelationLabel    - 1 when subsets are excluded; 3 otherwise
+     * @param includeBoxExigence  - Whether every box must have a mention
+     * @param mentionCatDict      - Mention categories, if the type constraint
+     *                              is active (null otherwise)
+     * @param fixedRelationLinks
+     * @param fixedGroundingLinks
+     * @param fixedVisualMentions
+     */
+    GreedyAssignment(ScoreTable.DocumentScores scores, boolean includeRelations,
+                     boolean includeGroundings, int maxRelationLabel,
+                     boolean includeBoxExigence, Map<Mention, List<String>> mentionCatDict,
+                     Map<String, Integer> fixedRelationLinks,
+                     Map<String, Integer> fixedGroundingLinks,
+                     Map<String, Integer> fixedVisualMentions)
+    {
+        _scores = scores;
+        _mentionList = scores.getMentionList();
+        _boxList = scores.getBoxList();
+        _maxRelationLabel = maxRelationLabel;
+        _mentionCatDict = mentionCatDict;
+        _fixedRelationLinks = fixedRelationLinks;
+        _fixedGroundingLinks = fixedGroundingLinks;
+        _fixedVisualMentions = fixedVisualMentions;
+
+        int numMentions = _mentionList.size();
+        _relationLabels = new int[numMentions][numMentions];
+        _groundings = new boolean[numMentions][_boxList.size()];
+        _visual = new boolean[numMentions];
+
+        //Without relations, every mention is its own chain
+        int[] chainIDs = new int[numMentions];
+        for(int i=0; i<numMentions; i++)
+            chainIDs[i] = i;
+        boolean[][] isSubset = new boolean[numMentions][numMentions];
+        if(includeRelations){
+            chainIDs = _buildChains();
+            isSubset = _buildSubsets(chainIDs);
+            for(int i=0; i<numMentions; i++){
+                for(int j=0; j<numMentions; j++){
+                    if(i == j)
+                        _relationLabels[i][j] = -1;
+                    else if(chainIDs[i] == chainIDs[j])
+                        _relationLabels[i][j] = 1;
+                    else if(isSubset[chainIDs[i]][chainIDs[j]])
+                        _relationLabels[i][j] = 2;
+                    else if(isSubset[chainIDs[j]][chainIDs[i]])
+                        _relationLabels[i][j] = 3;
+                }
+            }
+        }
+        if(includeGroundings)
+            _buildGroundings(chainIDs, isSubset, includeBoxExigence);
+
+        for(int i=0; i<numMentions; i++){
+            Integer fixedVis = _fixedVisualMentions.get(_mentionList.get(i).getUniqueID());
+            boolean hasLinks = false;
+            for(int j=0; j<numMentions && !hasLinks; j++)
+                hasLinks = i != j && _relationLabels[i][j] > 0;
+            for(int o=0; o<_boxList.size() && !hasLinks; o++)
+                hasLinks = _groundings[i][o];
+            if(fixedVis != null)
+                _visual[i] = fixedVis == 1;
+            else
+                _visual[i] = hasLinks || !_scores.hasNonvisScore(i) ||
+                             _scores.getNonvisScore(i) < 0.5;
+        }
+    }
+
+    /**Returns the relation label of the i->j link
+     *
+     * @param i
+     * @param j
+     * @return
+     */
+    int getRelationLabel(int i, int j){return _relationLabels[i][j];}
+
+    /**Returns whether mention i is ground to box o
+     *
+     * @param i
+     * @param o
+     * @return
+     */
+    boolean isGround(int i, int o){return _groundings[i][o];}
+
+    /**Returns whether mention i is visual
+     *
+     * @param i
+     * @return
+     */
+    boolean isVisual(int i){return _visual[i];}
+
+    /**Clusters mentions into chains, merging pairs in order of how much
+     * more they score as coreferent than as any other label; pairs with
+     * a fixed label are merged (or kept apart) accordingly. Returns
+     * each mention's chain ID
+     *
+     * @return
+     */
+    private int[] _buildChains()
+    {
+        int numMentions = _mentionList.size();
+        List<double[]> corefPairs = new ArrayList<>();
+        Set<Long> forbidden = new HashSet<>();
+        for(int i=0; i<numMentions; i++){
+            for(int j=i+1; j<numMentions; j++){
+                Integer fixed = _getFixedLabel(i, j);
+                if(fixed == null)
+                    fixed = _getFixedLabel(j, i);
+                if(fixed != null){
+                    if(fixed == 1)
+                        corefPairs.add(new double[]{Double.POSITIVE_INFINITY, i, j});
+                    else
+                        forbidden.add((long)i * numMentions + j);
+                    continue;
+                }
+                double corefScore = _getPairScore(i, j, 1, 1);
+                double bestOther = _getPairScore(i, j, 0, 0);
+                if(_maxRelationLabel >= 3)
+                    bestOther = Math.max(bestOther, Math.max(_getPairScore(i, j, 2, 3),
+                            _getPairScore(i, j, 3, 2)));
+                if(corefScore > bestOther)
+                    corefPairs.add(new double[]{corefScore - bestOther, i, j});
+            }
+        }
+        corefPairs.sort((p1, p2) -> Double.compare(p2[0], p1[0]));
+
+        int[] parents = new int[numMentions];
+        for(int i=0; i<numMentions; i++)
+            parents[i] = i;
+        for(double[] pair : corefPairs){
+            int root_i = findRoot(parents, (int)pair[1]);
+            int root_j = findRoot(parents, (int)pair[2]);
+            if(root_i == root_j)
+                continue;
+
+            //Don't merge chains with a pair fixed as non-coreferent
+            boolean canMerge = true;
+            for(int i=0; i<numMentions && canMerge && !forbidden.isEmpty(); i++){
+                if(findRoot(parents, i) != root_i)
+                    continue;
+                for(int j=0; j<numMentions && canMerge; j++)
+                    if(findRoot(parents, j) == root_j)
+                        canMerge = !forbidden.contains((long)Math.min(i,j) * numMentions + Math.max(i,j));
+            }
+            if(canMerge)
+                parents[root_i] = root_j;
+        }
+        int[] chainIDs = new int[numMentions];
+        for(int i=0; i<numMentions; i++)
+            chainIDs[i] = findRoot(parents, i);
+        return chainIDs;
+    }
+
+    /**Returns the transitively closed subset relation between chains,
+     * as isSubset[a][b] when chain a is a subset of chain b (indexed by
+     * chain ID); subset links are added in order of preference over
+     * null, skipping those that would form a cycle
+     *
+     * @param chainIDs
+     * @return
+     */
+    private boolean[][] _buildSubsets(int[] chainIDs)
+    {
+        int numMentions = _mentionList.size();
+        boolean[][] isSubset = new boolean[numMentions][numMentions];
+        if(_maxRelationLabel < 3)
+            return isSubset;
+
+        //Aggregate the pairwise scores by chain pair
+        double[][] nullScores = new double[numMentions][numMentions];
+        double[][] subsetScores = new double[numMentions][numMentions];
+        List<int[]> fixedSubsets = new ArrayList<>();
+        for(int i=0; i<numMentions; i++){
+            for(int j=0; j<numMentions; j++){
+                int a = chainIDs[i], b = chainIDs[j];
+                if(a == b)
+                    continue;
+                Integer fixed = _getFixedLabel(i, j);
+                if(fixed != null && fixed == 2)
+                    fixedSubsets.add(new int[]{a, b});
+                else if(fixed != null && fixed == 3)
+                    fixedSubsets.add(new int[]{b, a});
+                nullScores[a][b] += _getScore(i, j, 0);
+                subsetScores[a][b] += _getScore(i, j, 2) + _getScore(j, i, 3);
+            }
+        }
+        List<double[]> subsetLinks = new ArrayList<>();
+        for(int[] link : fixedSubsets)
+            subsetLinks.add(new double[]{Double.POSITIVE_INFINITY, link[0], link[1]});
+        for(int a=0; a<numMentions; a++){
+            for(int b=0; b<numMentions; b++){
+                //Compare a subset b against null in both directions
+                double gain = subsetScores[a][b] - nullScores[a][b] - nullScores[b][a];
+                if(a != b && gain > 0 && subsetScores[a][b] >= subsetScores[b][a])
+                    subsetLinks.add(new double[]{gain, a, b});
+            }
+        }
+        subsetLinks.sort((l1, l2) -> Double.compare(l2[0], l1[0]));
+
+        for(double[] link : subsetLinks){
+            int a = (int)link[1], b = (int)link[2];
+            if(isSubset[a][b] || isSubset[b][a])
+                continue;
+
+            //Everything under a (and a) is now under everything over b (and b)
+            for(int x=0; x<numMentions; x++){
+                if(x != a && !isSubset[x][a])
+                    continue;
+                for(int y=0; y<numMentions; y++)
+                    if(y == b || isSubset[b][y])
+                        isSubset[x][y] = true;
+            }
+        }
+        return isSubset;
+    }
+
+    /**Assigns each mention its top affinity boxes, up to its argmax
+     * cardinality, then has chains share their boxes and supersets
+     * take on their subsets' boxes
+     *
+     * @param chainIDs
+     * @param isSubset
+     * @param includeBoxExigence
+     */
+    private void _buildGroundings(int[] chainIDs, boolean[][] isSubset, boolean includeBoxExigence)
+    {
+        int numMentions = _mentionList.size(), numBoxes = _boxList.size();
+        boolean[][] allowed = new boolean[numMentions][numBoxes];
+        for(int i=0; i<numMentions; i++){
+            Mention m_i = _mentionList.get(i);
+            List<Integer> boxIndices = new ArrayList<>();
+            int numAffine = 0;
+            for(int o=0; o<numBoxes; o++){
+                BoundingBox b_o = _boxList.get(o);
+                allowed[i][o] = _mentionCatDict == null ||
+                        _mentionCatDict.containsKey(m_i) &&
+                        _mentionCatDict.get(m_i).contains(b_o.getCategory());
+                if(allowed[i][o]){
+                    boxIndices.add(o);
+                    if(_scores.getAffinityLabel(i, o) == 1)
+                        numAffine++;
+                }
+            }
+
+            //Take the mention's best boxes, as many as its cardinality
+            //calls for (where the top label means "at least that many")
+            int numToGround = numAffine;
+            int cardLabel = _scores.getCardinalityLabel(i);
+            if(cardLabel >= 0)
+                numToGround = cardLabel < 11 ? cardLabel : Math.max(cardLabel, numAffine);
+            final int mIdx = i;
+            boxIndices.sort((o1, o2) -> Double.compare(_getAffinityScore(mIdx, o2),
+                    _getAffinityScore(mIdx, o1)));
+            for(int k=0; k<Math.min(numToGround, boxIndices.size()); k++)
+                _groundings[i][boxIndices.get(k)] = true;
+
+            for(int o=0; o<numBoxes; o++){
+                Integer fixed = _fixedGroundingLinks.get(Document.getMentionBoxStr(m_i, _boxList.get(o)));
+                if(fixed != null)
+                    _groundings[i][o] = fixed == 1;
+            }
+        }
+
+        //Give unclaimed boxes to their best (permitted) mention
+        if(includeBoxExigence){
+            for(int o=0; o<numBoxes; o++){
+                int bestIdx = -1;
+                for(int i=0; i<numMentions; i++){
+                    if(_groundings[i][o]){
+                        bestIdx = -1;
+                        break;
+                    }
+                    if(allowed[i][o] && (bestIdx < 0 ||
+                       _getAffinityScore(i, o) > _getAffinityScore(bestIdx, o)))
+                        bestIdx = i;
+                }
+                if(bestIdx >= 0)
+                    _groundings[bestIdx][o] = true;
+            }
+        }
+
+        //Chains share the union of their mentions' boxes, and supersets
+        //take on the boxes of everything under them
+        boolean[][] chainBoxes = new boolean[numMentions][numBoxes];
+        for(int i=0; i<numMentions; i++)
+            for(int o=0; o<numBoxes; o++)
+                chainBoxes[chainIDs[i]][o] |= _groundings[i][o];
+        boolean[][] closedBoxes = new boolean[numMentions][numBoxes];
+        for(int a=0; a<numMentions; a++){
+            for(int b=0; b<numMentions; b++)
+                if(a == b || isSubset[b][a])
+                    for(int o=0; o<numBoxes; o++)
+                        closedBoxes[a][o] |= chainBoxes[b][o];
+        }
+        for(int i=0; i<numMentions; i++)
+            _groundings[i] = Arrays.copyOf(closedBoxes[chainIDs[i]], numBoxes);
+    }
+
+    /**Returns the sum of the scores of i->j taking label_ij
+     * and j->i taking label_ji
+     */
+    private double _getPairScore(int i, int j, int label_ij, int label_ji)
+    {
+        return _getScore(i, j, label_ij) + _getScore(j, i, label_ji);
+    }
+
+    /**Returns the score of the i->j link taking the given label
+     * (0, if there are no scores for the link)
+     */
+    private double _getScore(int i, int j, int label)
+    {
+        if(!_scores.hasRelationScores(i, j))
+            return 0.0;
+        return _scores.getRelationScore(i, j, label);
+    }
+
+    /**Returns the score of mention i being ground to box o
+     * (0, if there are no scores for them)
+     */
+    private double _getAffinityScore(int i, int o)
+    {
+        if(!_scores.hasAffinityScores(i, o))
+            return 0.0;
+        return _scores.getAffinityScore(i, o, 1);
+    }
+
+    /**Returns the fixed label of the i->j link, or null if
+     * the link isn't fixed
+     */
+    private Integer _getFixedLabel(int i, int j)
+    {
+        return _fixedRelationLinks.get(Document.getMentionPairStr(_mentionList.get(i),
+                _mentionList.get(j)));
+    }
+
+    /**Returns the root of the given element's set in the given
+     * union-find parents (halving the path to it); shared with
+     * ILPSolverThread's component decomposition
+     *
+     * @param parents
+     * @param i
+     * @return
+     */
+    static int findRoot(int[] parents, int i)
+    {
+        while(parents[i] != i){
+            parents[i] = parents[parents[i]];
+            i = parents[i];
+        }
+        return i;
+    }
+}
@@ -0,0 +1,133 @@
+package learn;
+
+import gurobi.*;
+import utilities.Logger;
+
+import java.util.Arrays;
+
+/**GurobiBackend solves programs with Gurobi, building the
+ * GRBModel directly from the buffered program at solve time
+ * (such that all variables are added with a single update), in
+ * an environment borrowed from the GurobiEnvPool. The model is kept
+ * until the backend is disposed, so a program that's solved, extended,
+ * and solved again only adds what's new to the model. A solve stopped
+ * by the time limit keeps Gurobi's best incumbent, if it has one
+ *
+ * @author ccervantes
+ */
+public class GurobiBackend extends BufferedILPBackend
+{
+    private int _solverThreads;
+    private GRBEnv _env;
+    private GRBModel _model;
+    private GRBVar[] _vars;
+    private int _numModelVars, _numModelConstrs;
+
+    /**Creates a new Gurobi backend, which will solve using the
+     * specified number of threads
+     *
+     * @param solverThreads
+     */
+    public GurobiBackend(int solverThreads)
+    {
+        super();
+        _solverThreads = solverThreads;
+        _env = null;
+        _model = null;
+        _vars = new GRBVar[0];
+        _numModelVars = 0;
+        _numModelConstrs = 0;
+    }
+
+    /**Builds (or extends) and optimizes the Gurobi model, returning
+     * whether an optimal solution -- or, at a limit, any feasible
+     * incumbent -- was found
+     *
+     * @return
+     * @throws GRBException
+     */
+    public boolean solve() throws GRBException
+    {
+        if(_model == null){
+            _env = GurobiEnvPool.borrow(_solverThreads, _timeLimitSec);
+            try {
+                _model = new GRBModel(_env);
+            } catch(GRBException grEx) {
+                GurobiEnvPool.release(_env);
+                _env = null;
+                throw grEx;
+            }
+        }
+
+        //Add the variables since the last solve, and update the objective
+        //coefficients / bounds of any earlier variables that changed
+        if(_vars.length < _numVars)
+            _vars = Arrays.copyOf(_vars, _numVars);
+        for(int i=_numModelVars; i<_numVars; i++)
+            _vars[i] = _model.addVar(_lb[i], _ub[i], _objective[i], GRB.BINARY, null);
+        _model.set(GRB.IntAttr.ModelSense, _maximize ? GRB.MAXIMIZE : GRB.MINIMIZE);
+        _model.update();
+        for(int i=_modifiedVars.nextSetBit(0); i>=0 && i<_numModelVars; i=_modifiedVars.nextSetBit(i+1)){
+            _vars[i].set(GRB.DoubleAttr.Obj, _objective[i]);
+            _vars[i].set(GRB.DoubleAttr.LB, _lb[i]);
+            _vars[i].set(GRB.DoubleAttr.UB, _ub[i]);
+        }
+        _modifiedVars.clear();
+        _numModelVars = _numVars;
+        for(int i=0; i<_numVars; i++)
+            if(!Double.isNaN(_start[i]))
+                _vars[i].set(GRB.DoubleAttr.Start, _start[i]);
+
+        //Add the constraints since the last solve
+        for(int c=_numModelConstrs; c<_constrIndices.size(); c++){
+            int[] indices = _constrIndices.get(c);
+            GRBVar[] constrVars = new GRBVar[indices.length];
+            for(int k=0; k<indices.length; k++)
+                constrVars[k] = _vars[indices[k]];
+            GRBLinExpr expr = new GRBLinExpr();
+            expr.addTerms(_constrCoeffs.get(c), constrVars);
+            char sense = GRB.EQUAL;
+            if(_constrSenses.charAt(c) == SENSE_GE)
+                sense = GRB.GREATER_EQUAL;
+            else if(_constrSenses.charAt(c) == SENSE_LE)
+                sense = GRB.LESS_EQUAL;
+            _model.addConstr(expr, sense, _constrRhs[c], null);
+        }
+        _numModelConstrs = _constrIndices.size();
+
+        _solution = null;
+        _bound = Double.NaN;
+        _model.set(GRB.DoubleParam.TimeLimit, _timeLimitSec);
+        _model.optimize();
+        int status = _model.get(GRB.IntAttr.Status);
+        _optimal = status == GRB.Status.OPTIMAL;
+        boolean solved = status != GRB.Status.INFEASIBLE && status != GRB.Status.INF_OR_UNBD &&
+                         status != GRB.Status.UNBOUNDED && _model.get(GRB.IntAttr.SolCount) > 0;
+        if(solved){
+            _solution = new boolean[_numVars];
+            for(int i=0; i<_numVars; i++)
+                _solution[i] = _vars[i].get(GRB.DoubleAttr.X) > 0.5;
+            _bound = _model.get(GRB.DoubleAttr.ObjBound);
+        }
+        return solved;
+    }
+
+    /**Disposes of the model and returns its environment to the pool
+     */
+    @Override
+    public void dispose()
+    {
+        if(_model != null){
+            try {
+                _model.dispose();
+            } catch(Exception ex) {
+                Logger.log(ex);
+            }
+            GurobiEnvPool.release(_env);
+            _model = null;
+            _env = null;
+        }
+        _vars = null;
+        super.dispose();
+    }
+}
@@ -0,0 +1,106 @@
+package learn;
+
+import gurobi.GRB;
+import gurobi.GRBEnv;
+import gurobi.GRBException;
+import utilities.Logger;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**GurobiEnvPool holds Gurobi environments for reuse across solves,
+ * since creating an environment (a license check and log setup) can
+ * take longer than solving a small document outright. Solvers borrow
+ * an environment, which is reconfigured for that solve, and return
+ * it when done; an environment is never shared by two solvers at
+ * once, and the pool grows to however many solvers run concurrently
+ *
+ * @author ccervantes
+ */
+public class GurobiEnvPool
+{
+    private static final String LOG_FILE = "gurobi.log";
+    private static final Deque<GRBEnv> _idleEnvs = new ArrayDeque<>();
+
+    /**Creates environments until at least numEnvs are idle,
+     * such that workers needn't create their own
+     *
+     * @param numEnvs
+     */
+    public static void init(int numEnvs)
+    {
+        try {
+            int numToCreate;
+            synchronized(GurobiEnvPool.class){
+                numToCreate = numEnvs - _idleEnvs.size();
+            }
+            for(int i=0; i<numToCreate; i++)
+                release(_createEnv());
+        } catch(GRBException grEx) {
+            Logger.log(grEx);
+        }
+    }
+
+    /**Returns an idle environment (creating one, if none are idle)
+     * configured with the given thread count and time limit; the
+     * environment must be given back with release()
+     *
+     * @param solverThreads
+     * @param timeLimitSec
+     * @return
+     * @throws GRBException
+     */
+    public static GRBEnv borrow(int solverThreads, double timeLimitSec) throws GRBException
+    {
+        GRBEnv env;
+        synchronized(GurobiEnvPool.class){
+            env = _idleEnvs.poll();
+        }
+        if(env == null)
+            env = _createEnv();
+        env.set(GRB.IntParam.Threads, solverThreads);
+        env.set(GRB.DoubleParam.TimeLimit, timeLimitSec);
+        return env;
+    }
+
+    /**Returns the given environment to the pool
+     *
+     * @param env
+     */
+    public static void release(GRBEnv env)
+    {
+        synchronized(GurobiEnvPool.class){
+            _idleEnvs.push(env);
+        }
+    }
+
+    /**Disposes of all idle environments
+     */
+    public static void disposeAll()
+    {
+        synchronized(GurobiEnvPool.class){
+            for(GRBEnv env : _idleEnvs){
+                try {
+                    env.dispose();
+                } catch(GRBException grEx) {
+                    Logger.log(grEx);
+                }
+            }
+            if(!_idleEnvs.isEmpty())
+                Logger.log("Disposed of %d Gurobi environments", _idleEnvs.size());
+            _idleEnvs.clear();
+        }
+    }
+
+    /**Creates a new, quiet environment
+     *
+     * @return
+     * @throws GRBException
+     */
+    private static GRBEnv _createEnv() throws GRBException
+    {
+        GRBEnv env = new GRBEnv(LOG_FILE);
+        env.set(GRB.IntParam.OutputFlag, 0);
+        return env;
+    }
+}
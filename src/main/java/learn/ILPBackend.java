@@ -0,0 +1,156 @@
+package learn;
+
+/**An ILPBackend is a 0/1 integer linear program solver, covering
+ * the subset of functionality ILPSolverThread needs: boolean
+ * variables, linear (in)equality constraints, and solving for the
+ * max (or min) objective. Implementations are either the Gurobi
+ * solver or a self-contained branch and bound, selected by
+ * BackendType
+ *
+ * @author ccervantes
+ */
+public interface ILPBackend
+{
+    /**Specifies whether the objective should be maximized
+     * (or minimized)
+     *
+     * @param maximize
+     */
+    void setMaximize(boolean maximize);
+
+    /**Adds a boolean variable with the given objective coefficient,
+     * returning its index
+     *
+     * @param coeff
+     * @return
+     */
+    int addBooleanVariable(double coeff);
+
+    /**Sets the objective coefficient of the given variable
+     *
+     * @param index
+     * @param coeff
+     */
+    void setObjectiveCoeff(int index, double coeff);
+
+    /**Fixes the given variable to the given value through its bounds
+     * (which also makes that value its start)
+     *
+     * @param index
+     * @param value
+     */
+    void fixVariable(int index, boolean value);
+
+    /**Returns the number of variables added so far
+     *
+     * @return
+     */
+    int getNumVariables();
+
+    /**Returns the number of constraints added so far
+     *
+     * @return
+     */
+    int getNumConstraints();
+
+    /**Adds the constraint sum_k coeffs[k] * x_{indices[k]} = rhs
+     *
+     * @param indices
+     * @param coeffs
+     * @param rhs
+     */
+    void addEqualityConstraint(int[] indices, double[] coeffs, double rhs);
+
+    /**Adds the constraint sum_k coeffs[k] * x_{indices[k]} >= rhs
+     *
+     * @param indices
+     * @param coeffs
+     * @param rhs
+     */
+    void addGreaterThanConstraint(int[] indices, double[] coeffs, double rhs);
+
+    /**Adds the constraint sum_k coeffs[k] * x_{indices[k]} <= rhs
+     *
+     * @param indices
+     * @param coeffs
+     * @param rhs
+     */
+    void addLessThanConstraint(int[] indices, double[] coeffs, double rhs);
+
+    /**Suggests a value for the given variable in the first solution
+     * the solver considers; a start may be partial (in which case
+     * the solver may complete it) and is ignored if infeasible
+     *
+     * @param index
+     * @param value
+     */
+    void setStart(int index, boolean value);
+
+    /**Sets the wall-clock limit, in seconds, for each subsequent solve
+     *
+     * @param timeLimitSec
+     */
+    void setTimeLimit(double timeLimitSec);
+
+    /**Solves the program, returning whether a solution was found --
+     * the optimum or, if a limit stopped the solver first, the best
+     * feasible solution it had (see isOptimal()); a program may be
+     * solved, extended (with variables, constraints, objective
+     * coefficients, or fixed variables), and solved again
+     *
+     * @return
+     * @throws Exception
+     */
+    boolean solve() throws Exception;
+
+    /**Returns whether the solution found by the last solve is proven
+     * optimal, rather than the best incumbent at a limit
+     *
+     * @return
+     */
+    boolean isOptimal();
+
+    /**Returns the relative gap between the last solution's objective
+     * and the best bound the solver proved on the optimum: 0 if
+     * the solution is optimal, and NaN if there is no solution (or
+     * the solver has no bound)
+     *
+     * @return
+     */
+    double getGap();
+
+    /**Returns the value of the given variable in the solution
+     *
+     * @param index
+     * @return
+     */
+    boolean getBooleanValue(int index);
+
+    /**Releases any resources held by the backend; the backend
+     * is not to be used afterwards
+     */
+    void dispose();
+
+    /**Returns a new backend of the given type
+     *
+     * @param type
+     * @param solverThreads - Threads the backend may use, if it's multithreaded
+     * @return
+     */
+    static ILPBackend create(BackendType type, int solverThreads)
+    {
+        switch(type){
+            case JAVA: return new BranchAndBoundBackend();
+            default: return new GurobiBackend(solverThreads);
+        }
+    }
+
+    /**BackendType specifies the solver used for inference;
+     * GUROBI requires the native Gurobi libraries (and a license),
+     * while JAVA runs anywhere
+     */
+    enum BackendType
+    {
+        GUROBI, JAVA
+    }
+}
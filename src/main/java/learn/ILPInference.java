@@ -2,14 +2,21 @@ package learn;
 
 import core.Main;
 import core.Misc;
-import org.apache.commons.lang.ArrayUtils;
 import out.OutTable;
 import statistical.ScoreDict;
 import structures.*;
 import utilities.*;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static learn.ILPInference.InferenceType.RELATION;
 import static learn.ILPInference.InferenceType.VISUAL_RELATION;
@@ -22,17 +29,35 @@ import static learn.ILPInference.InferenceType.VISUAL_RELATION;
  */
 public class ILPInference
 {
-    private Map<String, Map<String, Integer>> _relationGraphs, _groundingGraphs, _visualGraphs;
+    //A document's time budget is BASE_DOC_SEC plus SEC_PER_LINK for
+    //each link it decides (see _estimateCost), up to the per-document limit
+    private static final double BASE_DOC_SEC = 60.0;
+    private static final double SEC_PER_LINK = 0.25;
+
+    //Exact enumeration searches every partition of the mentions and
+    //every set of boxes, so documents with more than these are
+    //never enumerated
+    public static final int MAX_EXACT_MENTIONS = 8;
+    public static final int MAX_EXACT_BOXES = 16;
+
+    private Map<String, SolvedGraph> _solvedGraphs;
     private Map<String, Document> _docDict;
     private Map<String, Set<Chain>> _predChains;
     private InferenceType _infType;
-    private Map<String, List<BoundingBox>> _boxDict;
-    private Map<String, double[]> _relationScores, _affinityScores, _cardinalityScores;
-    private Map<String, Double> _nonvisScores;
-    private Set<String> _failedImgs, _fallbackImgs;
+    private ScoreTable _scoreTable;
+    private Set<String> _failedImgs, _fallbackImgs, _incumbentImgs;
     private String _graphRoot;
+    private GraphJournal _graphJournal;
     private DoubleDict<String> _groundingAccuracies, _relationAccuracies;
     private boolean _includeTypeConstr, _excludeBoxExigence, _excludeSubset, _onlyKeepPositiveLinks;
+    private ILPBackend.BackendType _backendType;
+    private boolean _lazyTransitivity, _decompose, _warmStart, _argmaxFastPath;
+    private int _exactMaxMentions, _exactMaxBoxes;
+    private double _docTimeLimitSec, _totalTimeBudgetSec;
+    private long _inferenceDeadline;
+    private ModelExporter _modelExporter;
+    private BufferedWriter _metricsWriter;
+    private boolean _metricsAsJson;
 
     /**Creates a new ILPInference module, using the specified
      * docSet and nonvisual scores file; Performs combined inference
@@ -66,18 +91,28 @@ public class ILPInference
         _excludeBoxExigence = excludeBoxExigence;
         _excludeSubset = excludeSubset;
         _infType = infType;
-
-        //If specified, load the last graph attempts
-        _relationGraphs = new HashMap<>();
-        _groundingGraphs = new HashMap<>();
-        _visualGraphs = new HashMap<>();
+        _backendType = ILPBackend.BackendType.GUROBI;
+        _lazyTransitivity = false;
+        _decompose = false;
+        _warmStart = false;
+        _argmaxFastPath = false;
+        _exactMaxMentions = -1;
+        _exactMaxBoxes = -1;
+        _docTimeLimitSec = BufferedILPBackend.DEFAULT_TIME_LIMIT_SEC;
+        _totalTimeBudgetSec = -1;
+        _inferenceDeadline = -1;
+        _modelExporter = null;
+        _metricsWriter = null;
+        _metricsAsJson = false;
+
+        _solvedGraphs = new HashMap<>();
         _graphRoot = graphRoot;
-        if(_graphRoot != null)
-            _loadGraphs();
+        _graphJournal = new GraphJournal(_graphRoot);
 
         //initialize everything
         _groundingAccuracies = new DoubleDict<>(); _relationAccuracies = new DoubleDict<>();
         _predChains = new HashMap<>(); _failedImgs = new HashSet<>(); _fallbackImgs = new HashSet<>();
+        _incumbentImgs = new HashSet<>();
 
         //map the documents to their IDs
         _docDict = new HashMap<>();
@@ -88,24 +123,152 @@ public class ILPInference
         _loadAndEvalScores(relationScoresFile, affinityScoresFile,
                 cardinalityScoresFile, nonvisScoresFile);
 
-        //store our bounding boxes unless this is a
+        //If specified, load the last graph attempts (which are
+        //indexed by the score table's mention / box ordinals)
+        if(_graphRoot != null)
+            _loadGraphs();
+
+        //warn about images without boxes unless this is a
         //relation inference object
-        _boxDict = new HashMap<>();
-        if(_infType != InferenceType.RELATION){
-            for(Document d : _docDict.values()){
-                List<BoundingBox> boxes = new ArrayList<>(d.getBoundingBoxSet());
-                if(boxes.isEmpty())
+        if(_infType != InferenceType.RELATION)
+            for(Document d : _docDict.values())
+                if(_scoreTable.get(d.getID()).getBoxList().isEmpty())
                     Logger.log("WARNING: Image " + d.getID() + " has no boxes");
-                _boxDict.put(d.getID(), boxes);
-            }
+    }
+
+    /**Specifies which ILP solver backend to use during inference
+     * (Gurobi, by default)
+     *
+     * @param backendType
+     */
+    public void setBackendType(ILPBackend.BackendType backendType)
+    {
+        _backendType = backendType;
+    }
+
+    /**Specifies that relation transitivity constraints should be
+     * added only as solutions violate them, rather than up front
+     */
+    public void useLazyTransitivity()
+    {
+        _lazyTransitivity = true;
+    }
+
+    /**Specifies that each document should be partitioned into
+     * components that cannot interact, each solved separately
+     */
+    public void decompose()
+    {
+        _decompose = true;
+    }
+
+    /**Specifies that solves should start from a greedy solution
+     */
+    public void useWarmStart()
+    {
+        _warmStart = true;
+    }
+
+    /**Specifies that documents whose argmax predictions already satisfy
+     * every constraint should take those predictions without solving
+     */
+    public void useArgmaxFastPath()
+    {
+        _argmaxFastPath = true;
+    }
+
+    /**Specifies that documents with at most maxMentions mentions (and,
+     * where inference includes groundings, at most maxBoxes boxes) should
+     * be solved exactly by enumeration, without the solver; maxMentions
+     * may be no more than MAX_EXACT_MENTIONS, and maxBoxes no more
+     * than MAX_EXACT_BOXES
+     *
+     * @param maxMentions
+     * @param maxBoxes
+     */
+    public void useExactEnumeration(int maxMentions, int maxBoxes)
+    {
+        if(maxMentions < 0 || maxMentions > MAX_EXACT_MENTIONS){
+            Logger.log("ERROR: exact enumeration allows 0 to %d mentions (given %d); not enumerating",
+                    MAX_EXACT_MENTIONS, maxMentions);
+            return;
+        }
+        if(maxBoxes < 0 || maxBoxes > MAX_EXACT_BOXES){
+            Logger.log("ERROR: exact enumeration allows 0 to %d boxes (given %d); not enumerating",
+                    MAX_EXACT_BOXES, maxBoxes);
+            return;
+        }
+        _exactMaxMentions = maxMentions;
+        _exactMaxBoxes = maxBoxes;
+    }
+
+    /**Sets the most time, in seconds, any one document may be given
+     * (600, by default); documents are budgeted time by their size,
+     * up to this limit, and keep the best solution found when their
+     * budget runs out
+     *
+     * @param docTimeLimitSec
+     */
+    public void setDocTimeLimit(double docTimeLimitSec)
+    {
+        _docTimeLimitSec = docTimeLimitSec;
+    }
+
+    /**Sets a wall-clock budget, in seconds, for all of inference;
+     * no document's budget extends past it, such that documents
+     * reached late get only the minimum time per solve
+     *
+     * @param totalTimeBudgetSec
+     */
+    public void setTotalTimeBudget(double totalTimeBudgetSec)
+    {
+        _totalTimeBudgetSec = totalTimeBudgetSec;
+    }
+
+    /**Specifies that the programs built during inference should be
+     * written to the given directory as LP or MPS files, with a
+     * manifest (see ModelExporter); if either threshold is non-negative,
+     * only programs with at least minVariables variables or that took
+     * at least minSolveSec to solve are written
+     *
+     * @param outDir
+     * @param format       - lp or mps
+     * @param minVariables
+     * @param minSolveSec
+     */
+    public void exportModels(String outDir, String format, int minVariables, double minSolveSec)
+    {
+        _modelExporter = new ModelExporter(outDir, format, minVariables, minSolveSec);
+    }
+
+    /**Specifies that each document's metrics -- program sizes (with
+     * constraints by family), build and solve times, status, and gap;
+     * see DocumentMetrics -- should be written to the given file as
+     * documents finish: as JSON lines if the file ends in .jsonl,
+     * and as csv otherwise
+     *
+     * @param filename
+     */
+    public void writeMetrics(String filename)
+    {
+        _metricsAsJson = filename.toLowerCase().endsWith(".jsonl");
+        try {
+            _metricsWriter = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(filename), StandardCharsets.UTF_8));
+            if(!_metricsAsJson)
+                _metricsWriter.write(DocumentMetrics.CSV_HEADER + "\n");
+        } catch(IOException ioEx) {
+            Logger.log(ioEx);
+            _metricsWriter = null;
         }
     }
 
     /* File loading methods */
 
-    /**Loads the specified scores files into internal
-     * dictionaries, evaluating each as an easy point
-     * of comparison in the log file
+    /**Loads the specified scores files into a score table,
+     * partitioned by document, evaluating each as an easy point
+     * of comparison in the log file; the ID-keyed maps read from
+     * the files are discarded once the table is built
      *
      * @param relationScoresFile
      * @param affinityScoresFile
@@ -114,18 +277,18 @@ public class ILPInference
     private void _loadAndEvalScores(String relationScoresFile,
             String affinityScoresFile, String cardScoresFile, String nonvisScoresFile)
     {
-        _relationScores = new HashMap<>();
-        _affinityScores = new HashMap<>();
-        _cardinalityScores = new HashMap<>();
-        _nonvisScores = new HashMap<>();
+        Map<String, double[]> relationScores = new HashMap<>();
+        Map<String, double[]> affinityScores = new HashMap<>();
+        Map<String, double[]> cardinalityScores = new HashMap<>();
+        Map<String, Double> nonvisScores = new HashMap<>();
 
         /* Load the appropriate scores; bail if there's a mismatch */
         Logger.log("Reading scores file(s)");
         if(relationScoresFile != null){
-            _relationScores = ClassifyUtil.readMccScoresFile(relationScoresFile);
+            relationScores = ClassifyUtil.readMccScoresFile_cached(relationScoresFile);
         }
         if(affinityScoresFile != null && cardScoresFile != null){
-            _affinityScores = ClassifyUtil.readMccScoresFile(affinityScoresFile);
+            affinityScores = ClassifyUtil.readMccScoresFile_cached(affinityScoresFile);
 
             for(Document d : _docDict.values()){
                 Set<String> heuristicLinks = d.getHeuristicGroundingIDs();
@@ -133,19 +296,19 @@ public class ILPInference
                     for(BoundingBox b : d.getBoundingBoxSet()){
                         String pairID = Document.getMentionBoxStr(m, b);
 
-                        double[] affinityScores_model = _affinityScores.get(pairID);
+                        double[] affinityScores_model = affinityScores.get(pairID);
                         double[] affinityScores_heur = {1.0 - Double.MIN_VALUE, Double.MIN_VALUE};
                         if(heuristicLinks.contains(pairID))
                             affinityScores_heur = new double[]{Double.MIN_VALUE, 1.0 - Double.MIN_VALUE};
                         double[] affinityScores_avg = new double[2];
                         for(int i=0; i<affinityScores_avg.length; i++)
                             affinityScores_avg[i] = (affinityScores_model[i] + affinityScores_heur[i]) / 2.0;
-                        _affinityScores.put(pairID, affinityScores_avg);
+                        affinityScores.put(pairID, affinityScores_avg);
                     }
                 }
             }
 
-            _cardinalityScores = ClassifyUtil.readMccScoresFile(cardScoresFile);
+            cardinalityScores = ClassifyUtil.readMccScoresFile_cached(cardScoresFile);
         }
         Set<String> freqNonvisHeads = new HashSet<>();
         if(nonvisScoresFile != null){
@@ -158,106 +321,245 @@ public class ILPInference
             //Store the nonvis scores only (since this is a binary classifier,
             //we can just do 1-nonvis to get the vis score)
             Map<String, double[]> nonvisScoreDict =
-                    ClassifyUtil.readMccScoresFile(nonvisScoresFile);
+                    ClassifyUtil.readMccScoresFile_cached(nonvisScoresFile);
             for(String id : nonvisScoreDict.keySet())
-                _nonvisScores.put(id, nonvisScoreDict.get(id)[1]);
+                nonvisScores.put(id, nonvisScoreDict.get(id)[1]);
         }
 
-        /* To easily compare to all downstream tasks, print scores as
-         * we read them from their files
+        //Partition the scores by document, into dense tables that
+        //each solver can look up by mention / box index
+        _scoreTable = new ScoreTable(_docDict.values(), relationScores,
+                affinityScores, cardinalityScores, nonvisScores);
+        boolean hasRelationScores = !relationScores.isEmpty();
+        boolean hasAffinityScores = !affinityScores.isEmpty();
+        boolean hasCardinalityScores = !cardinalityScores.isEmpty();
+        boolean hasNonvisScores = !nonvisScores.isEmpty();
+
+        /* To easily compare to all downstream tasks, evaluate scores as
+         * we read them from their files; the evaluations are computed in
+         * parallel (with each other and across documents) and then
+         * printed in turn, with the pairwise conll files handed off to
+         * a writer thread rather than holding up inference
          */
-        Map<String, Integer> predLabelDict_vis = new HashMap<>();
-        if(!_nonvisScores.isEmpty()){
-            Logger.log("---------- Visual Scores ----------");
-            //NOTE: these predicted label dicts should store _visual_ as 1
-
-            //Log our heuristic results, as a baseline
-            Map<String, Integer> predLabelDict_heur = new HashMap<>();
-            for(Document d : _docDict.values()){
-                for(Mention m : d.getMentionList()){
-                    int pred = 1;
-                    if(freqNonvisHeads.contains(m.getHead().toString().toLowerCase()))
-                        pred = 0;
-                    predLabelDict_heur.put(m.getUniqueID(), pred);
-                }
-            }
-            _evaluateVisual(predLabelDict_heur, "heuristic");
-
-            //Log the results of our classifier
-            _nonvisScores.forEach((k,v) -> predLabelDict_vis.put(k, v < 0.5 ? 1 : 0));
-
-            //Add any mentions that we don't have labels for as predicted visual
-            //(the dominant class)
-            Set<Mention> unknownMentions = new HashSet<>();
+        Map<String, SolvedGraph> pairwiseGraphs = _docDict.values().parallelStream().collect(
+                Collectors.toConcurrentMap(Document::getID, d ->
+                        _getArgmaxGraph(_scoreTable.get(d.getID()), hasNonvisScores)));
+        int numUnknownMentions = 0;
+        if(hasNonvisScores)
             for(Document d : _docDict.values())
-                for(Mention m : d.getMentionList())
-                    if(!predLabelDict_vis.containsKey(m.getUniqueID()))
-                        unknownMentions.add(m);
-            Logger.log("WARNING: Found " + unknownMentions.size() + " mentions without predicted nonvis labels; assigning as visual");
-            unknownMentions.forEach(m -> predLabelDict_vis.put(m.getUniqueID(), 1));
-
-            _evaluateVisual(predLabelDict_vis, "pairwise");
+                for(int i=0; i<d.getMentionList().size(); i++)
+                    if(!_scoreTable.get(d.getID()).hasNonvisScore(i))
+                        numUnknownMentions++;
+
+        CompletableFuture<Map<Document, DocumentEvaluation>> visEval_heur = null, visEval = null;
+        CompletableFuture<Map<Document, DocumentEvaluation>> relEval = null, affEval = null, cardEval = null;
+        CompletableFuture<Map<String, Set<Chain>>> relChains = null;
+        if(hasNonvisScores){
+            //Our heuristic results serve as a baseline
+            Set<String> freqNonvisHeads_final = freqNonvisHeads;
+            visEval_heur = CompletableFuture.supplyAsync(() -> {
+                Map<String, SolvedGraph> heurGraphs = new HashMap<>();
+                for(Document d : _docDict.values()){
+                    List<Mention> mentions = _scoreTable.get(d.getID()).getMentionList();
+                    SolvedGraph graph = new SolvedGraph(d.getID(), mentions.size(), 0);
+                    for(int i=0; i<mentions.size(); i++){
+                        int pred = 1;
+                        if(freqNonvisHeads_final.contains(mentions.get(i).getHead().toString().toLowerCase()))
+                            pred = 0;
+                        graph.setVisualLabel(i, pred);
+                    }
+                    heurGraphs.put(d.getID(), graph);
+                }
+                return _evaluateDocuments(d -> _evaluateVisual(d, heurGraphs.get(d.getID())));
+            });
+            visEval = CompletableFuture.supplyAsync(() ->
+                    _evaluateDocuments(d -> _evaluateVisual(d, pairwiseGraphs.get(d.getID()))));
+        }
+        if(hasRelationScores){
+            relEval = CompletableFuture.supplyAsync(() ->
+                    _evaluateDocuments(d -> _evaluateRelations(d, pairwiseGraphs.get(d.getID()))));
+            relChains = CompletableFuture.supplyAsync(() ->
+                    _buildChainsFromGraphs(pairwiseGraphs, hasNonvisScores));
+        }
+        if(hasAffinityScores){
+            affEval = CompletableFuture.supplyAsync(() ->
+                    _evaluateDocuments(d -> _evaluateGroundings(d, pairwiseGraphs.get(d.getID()))));
+        }
+        if(hasCardinalityScores){
+            cardEval = CompletableFuture.supplyAsync(() -> {
+                Map<String, Integer> predLabelDict = new HashMap<>();
+                for(Document d : _docDict.values()){
+                    ScoreTable.DocumentScores scores = _scoreTable.get(d.getID());
+                    List<Mention> mentions = scores.getMentionList();
+                    for(int i=0; i<mentions.size(); i++)
+                        if(scores.hasCardinalityScores(i))
+                            predLabelDict.put(mentions.get(i).getUniqueID(),
+                                    scores.getCardinalityLabel(i));
+                }
+                return _evaluateDocuments(d -> _evaluateCardinality(d, predLabelDict));
+            });
         }
 
-        if(!_relationScores.isEmpty()){
+        ExecutorService conllWriter = null;
+        Map<String, Future<?>> conllWriteDict = new HashMap<>();
+        if(hasNonvisScores){
+            Logger.log("---------- Visual Scores ----------");
+            _printVisualEvaluation(visEval_heur.join(), "heuristic");
+            Logger.log("WARNING: Found " + numUnknownMentions + " mentions without predicted nonvis labels; assigning as visual");
+            _printVisualEvaluation(visEval.join(), "pairwise");
+        }
+        if(hasRelationScores){
             Logger.log("---------- Relation Scores ----------");
-            Map<String, Integer> predLabelDict = new HashMap<>();
-            _relationScores.forEach((k,v) ->
-                    predLabelDict.put(k, Util.getMaxIdx(ArrayUtils.toObject(v))));
-            _evaluateRelations(predLabelDict, "out/pre_inf_rel");
-            Map<String, Set<Chain>> predChains = _buildChainsFromPredLabels(predLabelDict, predLabelDict_vis);
-            for(Document d : _docDict.values())
-                _exportConllFile(d, predChains.get(d.getID()), "pairwise");
+            _printRelationEvaluation(relEval.join(), "out/pre_inf_rel");
+            Map<String, Set<Chain>> predChains = relChains.join();
+            conllWriter = Executors.newSingleThreadExecutor();
+            for(Document d : _docDict.values()){
+                conllWriteDict.put(d.getID(), conllWriter.submit(() ->
+                        _exportConllFile(d, predChains.get(d.getID()), "pairwise")));
+            }
+            //already-submitted files are still written, while
+            //the other evaluations are printed
+            conllWriter.shutdown();
         }
-        if(!_affinityScores.isEmpty()){
+        if(hasAffinityScores){
             Logger.log("---------- Affinity Scores ----------");
-            Map<String, Integer> predLabelDict = new HashMap<>();
-            _affinityScores.forEach((k,v) ->
-                    predLabelDict.put(k, Util.getMaxIdx(ArrayUtils.toObject(v))));
-            _evaluateGroundings(predLabelDict, "out/pre_inf_affinity");
+            _printGroundingEvaluation(affEval.join(), "out/pre_inf_affinity");
         }
-        if(!_cardinalityScores.isEmpty()){
+        if(hasCardinalityScores){
             Logger.log("---------- Cardinality Scores ----------");
-            Map<String, Integer> predLabelDict = new HashMap<>();
-            _cardinalityScores.forEach((k,v) ->
-                    predLabelDict.put(k, Util.getMaxIdx(ArrayUtils.toObject(v))));
-            ScoreDict<Integer> scores = _evaluateCardinality(predLabelDict);
+            ScoreDict<Integer> scores = _mergeCardinalityEvaluation(cardEval.join());
             scores.printCompleteScores();
             System.out.printf("RMSE: %.2f\n", scores.getRMSE());
         }
+
+        //Wait for the CoNLL files, so none is read before it's written
+        if(conllWriter != null){
+            try {
+                conllWriter.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                for(Map.Entry<String, Future<?>> write : conllWriteDict.entrySet()){
+                    try {
+                        write.getValue().get();
+                    } catch(ExecutionException exEx) {
+                        Logger.log("ERROR: failed to write the pairwise CoNLL file for " +
+                                   write.getKey() + ": " + exEx.getCause());
+                    }
+                }
+            } catch(InterruptedException iEx) {
+                Logger.log(iEx);
+            }
+        }
     }
 
-    /**Loads the previous attempt's solved graphs so we can make
-     * incremental progress
+    /**Returns a graph of the argmax predictions in the given scores,
+     * for those links that have scores; if specified, the graph includes
+     * visual predictions (as 1, where mentions without nonvis scores are
+     * predicted visual, the dominant class)
+     *
+     * @param scores
+     * @param includeVisual
+     * @return
+     */
+    private SolvedGraph _getArgmaxGraph(ScoreTable.DocumentScores scores, boolean includeVisual)
+    {
+        int numMentions = scores.getMentionList().size(), numBoxes = scores.getBoxList().size();
+        SolvedGraph graph = new SolvedGraph(scores.getDocID(), numMentions, numBoxes);
+        for(int i=0; i<numMentions; i++){
+            for(int j=0; j<numMentions; j++)
+                if(scores.hasRelationScores(i, j))
+                    graph.setRelationLabel(i, j, scores.getRelationLabel(i, j));
+            for(int o=0; o<numBoxes; o++)
+                if(scores.hasAffinityScores(i, o))
+                    graph.setGroundingLabel(i, o, scores.getAffinityLabel(i, o));
+            if(includeVisual)
+                graph.setVisualLabel(i, !scores.hasNonvisScore(i) ||
+                                        scores.getNonvisScore(i) < 0.5 ? 1 : 0);
+        }
+        return graph;
+    }
+
+    /**Loads the previous attempt's solved graphs -- the last
+     * snapshot, and whatever was journaled since -- so we can
+     * make incremental progress; graphs that don't fit the current
+     * documents are dropped (see _dropStaleGraphs), and re-solved
      */
     private void _loadGraphs()
     {
-        String filename_relation = _graphRoot + "_REL.obj";
-        String filename_grounding = _graphRoot + "_GRND.obj";
-        String filename_visual = _graphRoot + "_VIS.obj";
-        File f_rel = new File(filename_relation);
-        File f_grnd = new File(filename_grounding);
-        File f_vis = new File(filename_visual);
-
-        if(f_rel.exists())
-            _relationGraphs = (Map<String, Map<String, Integer>>)
-                    FileIO.readObject(Map.class, filename_relation);
-        if(f_grnd.exists())
-            _groundingGraphs = (Map<String, Map<String, Integer>>)
-                    FileIO.readObject(Map.class, filename_grounding);
-        if(f_vis.exists())
-            _visualGraphs = (Map<String, Map<String, Integer>>)
-                    FileIO.readObject(Map.class, filename_visual);
-
-        if(_relationGraphs == null)
-            _relationGraphs = new HashMap<>();
-        if(_groundingGraphs == null)
-            _groundingGraphs = new HashMap<>();
-        if(_visualGraphs == null)
-            _visualGraphs = new HashMap<>();
-
-        Logger.log("Loaded %d relation graphs; %d grounding graphs; %d nonvis graphs",
-                   _relationGraphs.size(), _groundingGraphs.size(), _visualGraphs.size());
+        if(_graphJournal.hasSnapshot()){
+            _solvedGraphs = _graphJournal.loadSnapshot();
+            //Dropped before the replay, so the journal's graphs can take their place
+            _dropStaleGraphs();
+        } else {
+            //Graphs saved before the compact representation were kept as
+            //ID-keyed label dicts, in one file per graph type
+            Map<String, Map<String, Integer>> relationGraphs = _loadLabelDicts(_graphRoot + "_REL.obj");
+            Map<String, Map<String, Integer>> groundingGraphs = _loadLabelDicts(_graphRoot + "_GRND.obj");
+            Map<String, Map<String, Integer>> visualGraphs = _loadLabelDicts(_graphRoot + "_VIS.obj");
+            Set<String> docIds = new HashSet<>(relationGraphs.keySet());
+            docIds.addAll(groundingGraphs.keySet());
+            docIds.addAll(visualGraphs.keySet());
+            docIds.retainAll(_docDict.keySet());
+            docIds.removeIf(docID -> _scoreTable.get(docID) == null);
+            for(String docID : docIds){
+                SolvedGraph graph = SolvedGraph.fromLabelDicts(_scoreTable.get(docID),
+                        relationGraphs.get(docID), groundingGraphs.get(docID), visualGraphs.get(docID));
+                if(!graph.isEmpty())
+                    _solvedGraphs.put(docID, graph);
+            }
+        }
+        int numReplayed = _graphJournal.replay(_solvedGraphs);
+        _dropStaleGraphs();
+
+        Logger.log("Loaded %d relation graphs; %d grounding graphs; %d nonvis graphs " +
+                   "(%d documents from the journal)",
+                   _solvedGraphs.values().stream().filter(SolvedGraph::hasRelations).count(),
+                   _solvedGraphs.values().stream().filter(SolvedGraph::hasGroundings).count(),
+                   _solvedGraphs.values().stream().filter(SolvedGraph::hasVisual).count(),
+                   numReplayed);
+    }
+
+    /**Drops the solved graphs that don't fit the current documents:
+     * those for documents no longer in the set (or without scores), and
+     * those whose mention or box counts differ from the score table's,
+     * whose labels -- indexed by the table's ordinals -- would otherwise
+     * land on the wrong links (as after a change of split or features)
+     */
+    private void _dropStaleGraphs()
+    {
+        int numDropped = 0;
+        Iterator<Map.Entry<String, SolvedGraph>> graphIter = _solvedGraphs.entrySet().iterator();
+        while(graphIter.hasNext()){
+            Map.Entry<String, SolvedGraph> entry = graphIter.next();
+            String docID = entry.getKey();
+            SolvedGraph graph = entry.getValue();
+            ScoreTable.DocumentScores scores = _docDict.containsKey(docID) ? _scoreTable.get(docID) : null;
+            if(scores == null){
+                graphIter.remove();
+                numDropped++;
+            } else if(!docID.equals(graph.getDocID()) ||
+                      graph.getNumMentions() != scores.getMentionList().size() ||
+                      graph.getNumBoxes() != scores.getBoxList().size()){
+                Logger.log("WARNING: Dropping the solved graph for %s (%d mentions, %d boxes; " +
+                           "expected %d, %d); it will be re-solved", docID, graph.getNumMentions(),
+                           graph.getNumBoxes(), scores.getMentionList().size(), scores.getBoxList().size());
+                graphIter.remove();
+                numDropped++;
+            }
+        }
+        if(numDropped > 0)
+            Logger.log("WARNING: Dropped %d solved graphs that don't fit the current documents", numDropped);
+    }
+
+    /**Loads the ID-keyed label dicts in the given file, if it exists
+     *
+     * @param filename
+     * @return
+     */
+    private Map<String, Map<String, Integer>> _loadLabelDicts(String filename)
+    {
+        Map<String, Map<String, Integer>> labelDicts = null;
+        if(new File(filename).exists())
+            labelDicts = (Map<String, Map<String, Integer>>)FileIO.readObject(Map.class, filename);
+        return labelDicts == null ? new HashMap<>() : labelDicts;
     }
 
     /* Evaluation methods */
@@ -340,67 +642,72 @@ public class ILPInference
                 100.0 * (double)perfects_total / (double)_docDict.size());
     }
 
-    private void _evaluateGroundings(Map<String, Integer> predLabelDict, String filename)
+    /**Evaluates the given grounding predictions, computing each document's
+     * scores in parallel before printing them
+     *
+     * @param graphs
+     * @param filename
+     */
+    private void _evaluateGroundings(Map<String, SolvedGraph> graphs, String filename)
     {
-        Map<Document, ScoreDict<String>> scoreDict = new HashMap<>();
-        DoubleDict<Document> groundingDict = new DoubleDict<>();
-        Map<String, ScoreDict<String>> scoreDict_byCat = new HashMap<>();
-        DoubleDict<String> catDistro = new DoubleDict<>();
-        for (Document d : _docDict.values()) {
-            List<Mention> mentions = d.getMentionList();
-            Set<BoundingBox> boxes = d.getBoundingBoxSet();
-            ScoreDict<String> scores = new ScoreDict<>();
-            for (Mention m : mentions) {
-                Set<BoundingBox> assocBoxes = d.getBoxSetForMention(m);
-                boolean nonvisMention = m.getChainID().equals("0");
-
-                //if (_usePredictedNonvis)
-                //    nonvisMention = _nonvisMentions.contains(m.getUniqueID());
-
-                boolean foundConflictingLink = false;
-                for (BoundingBox b : boxes) {
-                    int gold = assocBoxes.contains(b) ? 1 : 0;
-
-                    //if this is a nonvisual mention according to
-                    //our scheme, it's always pred 0
-                    int pred = 0;
-                    if (!nonvisMention) {
-                        String id = m.getUniqueID() + "|" + b.getUniqueID();
-                        if (predLabelDict.containsKey(id))
-                            pred = predLabelDict.get(id);
-                    }
-                    scores.increment(String.valueOf(gold), String.valueOf(pred));
-                    if(gold != pred)
-                        foundConflictingLink = true;
-
-
-                    if(!scoreDict_byCat.containsKey(b.getCategory()))
-                        scoreDict_byCat.put(b.getCategory(), new ScoreDict<>());
-                    scoreDict_byCat.get(b.getCategory()).increment(String.valueOf(gold),
-                            String.valueOf(pred));
-                    catDistro.increment(b.getCategory());
-                    catDistro.increment("total");
-                }
+        _printGroundingEvaluation(_evaluateDocuments(d ->
+                _evaluateGroundings(d, graphs.get(d.getID()))), filename);
+    }
 
-                if(!foundConflictingLink)
-                    groundingDict.increment(d);
+    /**Returns the grounding scores for the given document, where the
+     * number correct is the number of perfectly grounded mentions
+     *
+     * @param d
+     * @param graph
+     * @return
+     */
+    private DocumentEvaluation _evaluateGroundings(Document d, SolvedGraph graph)
+    {
+        DocumentEvaluation eval = new DocumentEvaluation();
+        ScoreTable.DocumentScores scores = _scoreTable.get(d.getID());
+        List<Mention> mentions = scores.getMentionList();
+        List<BoundingBox> boxes = scores.getBoxList();
+        if(graph == null)
+            graph = new SolvedGraph(d.getID(), mentions.size(), boxes.size());
+        for (int i = 0; i < mentions.size(); i++) {
+            Mention m = mentions.get(i);
+            Set<BoundingBox> assocBoxes = d.getBoxSetForMention(m);
+            boolean nonvisMention = m.getChainID().equals("0");
+
+            //if (_usePredictedNonvis)
+            //    nonvisMention = _nonvisMentions.contains(m.getUniqueID());
+
+            boolean foundConflictingLink = false;
+            for (int o = 0; o < boxes.size(); o++) {
+                int gold = assocBoxes.contains(boxes.get(o)) ? 1 : 0;
+
+                //if this is a nonvisual mention according to
+                //our scheme, it's always pred 0
+                int pred = 0;
+                if (!nonvisMention && graph.getGroundingLabel(i, o) != SolvedGraph.UNSET)
+                    pred = graph.getGroundingLabel(i, o);
+                eval.scores.increment(String.valueOf(gold), String.valueOf(pred));
+                if(gold != pred)
+                    foundConflictingLink = true;
             }
-            scoreDict.put(d, scores);
-        }
-        _printDocumentScoreDict(scoreDict, filename);
-
 
-        /*
-        System.out.println("-----------------");
-        for(String s : scoreDict_byCat.keySet()) {
-            Score sc = scoreDict_byCat.get(s).getScore("1");
-            System.out.printf("%s,%d,%.2f,%.2f,%.2f,%.2f\n", s,
-                    (int)catDistro.get(s), catDistro.get(s)/catDistro.get("total"),
-                    sc.getPrecision(), sc.getRecall(), sc.getF1());
+            if(!foundConflictingLink)
+                eval.numCorrect++;
         }
-        System.out.println("-----------------");
-        */
+        return eval;
+    }
 
+    /**Prints the given per-document grounding evaluations
+     *
+     * @param docEvalDict
+     * @param filename
+     */
+    private void _printGroundingEvaluation(Map<Document, DocumentEvaluation> docEvalDict,
+                                           String filename)
+    {
+        Map<Document, ScoreDict<String>> scoreDict = new HashMap<>();
+        docEvalDict.forEach((d, eval) -> scoreDict.put(d, eval.scores));
+        _printDocumentScoreDict(scoreDict, filename);
 
         //Store these image accuracies; otherwise store their difference
         //and print the 50 most improved images
@@ -427,98 +734,186 @@ public class ILPInference
         }
 
         /* We also want to evaluate how often we get groundings perfectly correct */
-        double perfectMentions = groundingDict.getSum();
-        double totalMentions = 0;
-        for(Document d : groundingDict.keySet())
-            totalMentions += d.getMentionList().size();
+        double perfectMentions = 0, totalMentions = 0;
+        for(Document d : docEvalDict.keySet()){
+            int numCorrect = docEvalDict.get(d).numCorrect;
+            perfectMentions += numCorrect;
+            if(numCorrect > 0)
+                totalMentions += d.getMentionList().size();
+        }
 
         System.out.printf("Found %d (%.2f%%) correctly grounded mentions\n",
                 (int)perfectMentions, 100.0 * perfectMentions / totalMentions);
     }
 
-    private void _evaluateRelations(Map<String, Integer> predLabelDict, String filename)
+    /**Evaluates the given relation predictions, computing each document's
+     * scores in parallel before printing them
+     *
+     * @param graphs
+     * @param filename
+     */
+    private void _evaluateRelations(Map<String, SolvedGraph> graphs, String filename)
     {
-        Map<Document, ScoreDict<String>> docScoreDict = new HashMap<>();
-        Map<Document, ScoreDict<String>> docScoreDict_intra = new HashMap<>();
-        Map<Document, ScoreDict<String>> docScoreDict_inter = new HashMap<>();
-        for(Document d : _docDict.values()) {
-            ScoreDict<String> scores = new ScoreDict<>();
-            ScoreDict<String> scores_intra = new ScoreDict<>(), scores_inter = new ScoreDict<>();
-            Set<String> subsetMentions = d.getSubsetMentions();
-            List<Mention> mentionList = d.getMentionList();
+        _printRelationEvaluation(_evaluateDocuments(d ->
+                _evaluateRelations(d, graphs.get(d.getID()))), filename);
+    }
+
+    /**Returns the relation scores (overall, intra-caption, and cross-caption)
+     * for the given document, where the number correct is the number of
+     * entities for which all links to / from their mentions are correct
+     *
+     * @param d
+     * @param graph
+     * @return
+     */
+    private DocumentEvaluation _evaluateRelations(Document d, SolvedGraph graph)
+    {
+        DocumentEvaluation eval = new DocumentEvaluation();
+        Set<String> subsetMentions = d.getSubsetMentions();
+        List<Mention> mentionList = _scoreTable.get(d.getID()).getMentionList();
+        if(graph == null)
+            graph = new SolvedGraph(d.getID(), mentionList.size(), 0);
+
+        for (int i = 0; i < mentionList.size(); i++) {
+            Mention m_i = mentionList.get(i);
+            for (int j = i + 1; j < mentionList.size(); j++) {
+                Mention m_j = mentionList.get(j);
+
+                String id_ij = Document.getMentionPairStr(m_i, m_j);
+                String id_ji = Document.getMentionPairStr(m_j, m_i);
+                boolean nonvisMention = m_i.getChainID().equals("0") || m_j.getChainID().equals("0");
+
+                String gold = "null";
+                if(!nonvisMention){
+                    if(m_i.getChainID().equals(m_j.getChainID())){
+                        gold = "coref";
+                    } else if(subsetMentions.contains(id_ij)) {
+                        gold = "subset_ij";
+                    } else if(subsetMentions.contains(id_ji)){
+                        gold = "subset_ji";
+                    }
+                }
+
+                String pred = "-invalid-";
+                int pred_ij = graph.getRelationLabel(i, j);
+                int pred_ji = graph.getRelationLabel(j, i);
+                if(pred_ij != SolvedGraph.UNSET && pred_ji != SolvedGraph.UNSET){
+                    if(pred_ij == pred_ji && pred_ij == 0){
+                        pred = "null";
+                    } else if(pred_ij == pred_ji && pred_ij == 1){
+                        pred = "coref";
+                    }
+                    else if(pred_ij == 2 && pred_ji == 3 ||
+                              pred_ij == 3 && pred_ji == 2){
+                        if(pred_ij == 2)
+                            pred = "subset_ij";
+                        else
+                            pred = "subset_ji";
+                    }
+                }
+
+                //Handle subset pairs according to whether the direction
+                //is correct
+                if(gold.startsWith("subset_") && pred.startsWith("subset_")){
+                    //If both links are subset and their direction matches
+                    //drop the direction (since they're a match)
+                    if(gold.equals(pred)){
+                        gold = "subset"; pred = "subset";
+                    }
+                    //If both links are subset and their direction does
+                    //_not_ match, drop gold's direction and drop pred's
+                    //label entirely (since they're not a match)
+                    else {
+                        gold = "subset"; pred = "-reverse_sub-";
+                    }
+                }
+
+                //In all other subset cases, drop the direction
+                if(gold.startsWith("subset_"))
+                    gold = "subset";
+                if(pred.startsWith("subset_"))
+                    pred = "subset";
+
+                //Increment the appropriate scores, skipping gold nonvisual pairs
+                eval.scores.increment(gold, pred);
+                if(m_i.getCaptionIdx() == m_j.getCaptionIdx())
+                    eval.scores_intra.increment(gold, pred);
+                else
+                    eval.scores_inter.increment(gold, pred);
+            }
+        }
 
-            for (int i = 0; i < mentionList.size(); i++) {
-                Mention m_i = mentionList.get(i);
-                for (int j = i + 1; j < mentionList.size(); j++) {
+        //Additionally, let's evaluate to what the percentage of perfect
+        //entities have been predicted; an entity is said to be correct
+        //when all links to/from all mentions within that entity are correct
+        Map<Mention, Integer> mentionIndices = _getMentionIndices(mentionList);
+        for(Chain c : d.getChainSet()){
+            boolean foundConflict = false;
+            for(Mention m_i : c.getMentionSet()){
+                int i = mentionIndices.get(m_i);
+                for(int j=0; j<mentionList.size(); j++){
                     Mention m_j = mentionList.get(j);
+                    if(m_i.equals(m_j))
+                        continue;
 
                     String id_ij = Document.getMentionPairStr(m_i, m_j);
                     String id_ji = Document.getMentionPairStr(m_j, m_i);
-                    boolean nonvisMention = m_i.getChainID().equals("0") || m_j.getChainID().equals("0");
 
-                    String gold = "null";
-                    if(!nonvisMention){
-                        if(m_i.getChainID().equals(m_j.getChainID())){
-                            gold = "coref";
-                        } else if(subsetMentions.contains(id_ij)) {
-                            gold = "subset_ij";
-                        } else if(subsetMentions.contains(id_ji)){
-                            gold = "subset_ji";
-                        }
+                    boolean nonvis_j = m_j.getChainID().equals("0");
+
+                    int gold = 0;
+                    if(!nonvis_j){
+                        if(m_i.getChainID().equals(m_j.getChainID()))
+                            gold = 1;
+                        else if(subsetMentions.contains(id_ij))
+                            gold = 2;
+                        else if(subsetMentions.contains(id_ji))
+                            gold = 3;
                     }
 
-                    String pred = "-invalid-";
-                    if(predLabelDict.containsKey(id_ij) && predLabelDict.containsKey(id_ji)){
-                        int pred_ij = predLabelDict.get(id_ij);
-                        int pred_ji = predLabelDict.get(id_ji);
+                    int pred = -1;
+                    int pred_ij = graph.getRelationLabel(i, j);
+                    int pred_ji = graph.getRelationLabel(j, i);
+                    if(pred_ij != SolvedGraph.UNSET && pred_ji != SolvedGraph.UNSET){
                         if(pred_ij == pred_ji && pred_ij == 0){
-                            pred = "null";
+                            pred = 0;
                         } else if(pred_ij == pred_ji && pred_ij == 1){
-                            pred = "coref";
-                        }
-                        else if(pred_ij == 2 && pred_ji == 3 ||
+                            pred = 1;
+                        } else if(pred_ij == 2 && pred_ji == 3 &&
                                   pred_ij == 3 && pred_ji == 2){
                             if(pred_ij == 2)
-                                pred = "subset_ij";
+                                pred = 2;
                             else
-                                pred = "subset_ji";
-                        }
-                    }
-
-                    //Handle subset pairs according to whether the direction
-                    //is correct
-                    if(gold.startsWith("subset_") && pred.startsWith("subset_")){
-                        //If both links are subset and their direction matches
-                        //drop the direction (since they're a match)
-                        if(gold.equals(pred)){
-                            gold = "subset"; pred = "subset";
-                        }
-                        //If both links are subset and their direction does
-                        //_not_ match, drop gold's direction and drop pred's
-                        //label entirely (since they're not a match)
-                        else {
-                            gold = "subset"; pred = "-reverse_sub-";
+                                pred = 3;
                         }
                     }
 
-                    //In all other subset cases, drop the direction
-                    if(gold.startsWith("subset_"))
-                        gold = "subset";
-                    if(pred.startsWith("subset_"))
-                        pred = "subset";
-
-                    //Increment the appropriate scores, skipping gold nonvisual pairs
-                    scores.increment(gold, pred);
-                    if(m_i.getCaptionIdx() == m_j.getCaptionIdx())
-                        scores_intra.increment(gold, pred);
-                    else
-                        scores_inter.increment(gold, pred);
+                    foundConflict |= gold != pred;
                 }
             }
-            docScoreDict.put(d, scores);
-            docScoreDict_intra.put(d, scores_intra);
-            docScoreDict_inter.put(d, scores_inter);
+
+            if(!foundConflict)
+                eval.numCorrect++;
         }
+        return eval;
+    }
+
+    /**Prints the given per-document relation evaluations
+     *
+     * @param docEvalDict
+     * @param filename
+     */
+    private void _printRelationEvaluation(Map<Document, DocumentEvaluation> docEvalDict,
+                                          String filename)
+    {
+        Map<Document, ScoreDict<String>> docScoreDict = new HashMap<>();
+        Map<Document, ScoreDict<String>> docScoreDict_intra = new HashMap<>();
+        Map<Document, ScoreDict<String>> docScoreDict_inter = new HashMap<>();
+        docEvalDict.forEach((d, eval) -> {
+            docScoreDict.put(d, eval.scores);
+            docScoreDict_intra.put(d, eval.scores_intra);
+            docScoreDict_inter.put(d, eval.scores_inter);
+        });
 
         Logger.log("----- Overall Scores ------");
         _printDocumentScoreDict(docScoreDict, filename);
@@ -555,94 +950,58 @@ public class ILPInference
             }
         }
 
-        //Additionally, let's evaluate to what the percentage of perfect
-        //entities have been predicted
-        Map<Document, Integer> correctEntityCounts = new HashMap<>();
-        for(Document d : _docDict.values()){
-            int numEntitiesFound = 0;
-            List<Mention> mentions = d.getMentionList();
-            Set<String> subsetMentions = d.getSubsetMentions();
-
-            //An entity is said to be correct when all links to/from all
-            //mentions within that entity are correct
-            for(Chain c : d.getChainSet()){
-                boolean foundConflict = false;
-                for(Mention m_i : c.getMentionSet()){
-                    for(Mention m_j : mentions){
-                        if(m_i.equals(m_j))
-                            continue;
-
-                        String id_ij = Document.getMentionPairStr(m_i, m_j);
-                        String id_ji = Document.getMentionPairStr(m_j, m_i);
-
-                        boolean nonvis_j = m_j.getChainID().equals("0");
-
-                        int gold = 0;
-                        if(!nonvis_j){
-                            if(m_i.getChainID().equals(m_j.getChainID()))
-                                gold = 1;
-                            else if(subsetMentions.contains(id_ij))
-                                gold = 2;
-                            else if(subsetMentions.contains(id_ji))
-                                gold = 3;
-                        }
-
-                        int pred = -1;
-                        if(predLabelDict.containsKey(id_ij) && predLabelDict.containsKey(id_ji)){
-                            int pred_ij = predLabelDict.get(id_ij);
-                            int pred_ji = predLabelDict.get(id_ji);
-                            if(pred_ij == pred_ji && pred_ij == 0){
-                                pred = 0;
-                            } else if(pred_ij == pred_ji && pred_ij == 1){
-                                pred = 1;
-                            } else if(pred_ij == 2 && pred_ji == 3 &&
-                                      pred_ij == 3 && pred_ji == 2){
-                                if(pred_ij == 2)
-                                    pred = 2;
-                                else
-                                    pred = 3;
-                            }
-                        }
-
-                        foundConflict |= gold != pred;
-                    }
-                }
-
-                if(!foundConflict)
-                    numEntitiesFound++;
-            }
-
-            correctEntityCounts.put(d, numEntitiesFound);
-        }
-
         double correctEntities = 0.0, totalEntities = 0.0;
-        DoubleDict<String> entityAverages = new DoubleDict<>();
-        for(Document d : correctEntityCounts.keySet()){
-            correctEntities += correctEntityCounts.get(d);
+        for(Document d : docEvalDict.keySet()){
+            correctEntities += docEvalDict.get(d).numCorrect;
             totalEntities += d.getChainSet().size();
-
-            double microAverage = (double)correctEntityCounts.get(d) / (double)d.getChainSet().size();
-            entityAverages.increment(d.getID(), microAverage);
         }
 
         System.out.printf("Found %d (%.2f%%) correct entities\n",
                 (int)correctEntities, 100.0 * correctEntities / totalEntities);
     }
 
-    private void _evaluateVisual(Map<String, Integer> predLabelDict, String predType)
+    /**Evaluates the given visual predictions, computing each document's
+     * scores in parallel before printing them
+     *
+     * @param graphs
+     * @param predType
+     */
+    private void _evaluateVisual(Map<String, SolvedGraph> graphs, String predType)
     {
-        Map<Document, ScoreDict<String>> scoreDict = new HashMap<>();
-        for(Document d : _docDict.values()){
-            ScoreDict<String> scores = new ScoreDict<>();
-            for(Mention m : d.getMentionList()){
-                int gold = m.getChainID().equals("0") ? 0 : 1;
-                int pred = 1;
-                if(predLabelDict.containsKey(m.getUniqueID()))
-                    pred = predLabelDict.get(m.getUniqueID());
-                scores.increment(String.valueOf(gold), String.valueOf(pred));
-            }
-            scoreDict.put(d, scores);
+        _printVisualEvaluation(_evaluateDocuments(d ->
+                _evaluateVisual(d, graphs.get(d.getID()))), predType);
+    }
+
+    /**Returns the visual scores for the given document
+     *
+     * @param d
+     * @param graph
+     * @return
+     */
+    private DocumentEvaluation _evaluateVisual(Document d, SolvedGraph graph)
+    {
+        DocumentEvaluation eval = new DocumentEvaluation();
+        List<Mention> mentions = _scoreTable.get(d.getID()).getMentionList();
+        for(int i=0; i<mentions.size(); i++){
+            int gold = mentions.get(i).getChainID().equals("0") ? 0 : 1;
+            int pred = 1;
+            if(graph != null && graph.getVisualLabel(i) != SolvedGraph.UNSET)
+                pred = graph.getVisualLabel(i);
+            eval.scores.increment(String.valueOf(gold), String.valueOf(pred));
         }
+        return eval;
+    }
+
+    /**Prints the given per-document visual evaluations
+     *
+     * @param docEvalDict
+     * @param predType
+     */
+    private void _printVisualEvaluation(Map<Document, DocumentEvaluation> docEvalDict,
+                                        String predType)
+    {
+        Map<Document, ScoreDict<String>> scoreDict = new HashMap<>();
+        docEvalDict.forEach((d, eval) -> scoreDict.put(d, eval.scores));
         System.out.println(predType);
         _printDocumentScoreDict(scoreDict, null);
     }
@@ -654,30 +1013,64 @@ public class ILPInference
      */
     private ScoreDict<Integer> _evaluateCardinality(Map<String, Integer> predLabelDict)
     {
-        ScoreDict<Integer> scores = new ScoreDict<>();
-        for(Document d : _docDict.values()){
-            List<Mention> mentions = d.getMentionList();
-            for(Mention m : mentions){
-                //get the boxes for this mention and whether
-                //this is a nonvis mention (according to our scheme)
-                Set<BoundingBox> assocBoxes = d.getBoxSetForMention(m);
-                boolean nonvisMention = m.getChainID().equals("0");
-
-                //Treat all >10 boxes equally
-                int gold = Math.min(assocBoxes.size(), 11);
+        return _mergeCardinalityEvaluation(_evaluateDocuments(d ->
+                _evaluateCardinality(d, predLabelDict)));
+    }
 
-                //predicted nonvisual mentions are always pred 0
-                int pred = 0;
-                if(!nonvisMention)
-                    if(predLabelDict.containsKey(m.getUniqueID()))
-                        pred = predLabelDict.get(m.getUniqueID());
+    /**Returns the cardinality scores for the given document
+     *
+     * @param d
+     * @param predLabelDict
+     * @return
+     */
+    private DocumentEvaluation _evaluateCardinality(Document d, Map<String, Integer> predLabelDict)
+    {
+        DocumentEvaluation eval = new DocumentEvaluation();
+        for(Mention m : d.getMentionList()){
+            //get the boxes for this mention and whether
+            //this is a nonvis mention (according to our scheme)
+            Set<BoundingBox> assocBoxes = d.getBoxSetForMention(m);
+            boolean nonvisMention = m.getChainID().equals("0");
+
+            //Treat all >10 boxes equally
+            int gold = Math.min(assocBoxes.size(), 11);
+
+            //predicted nonvisual mentions are always pred 0
+            int pred = 0;
+            if(!nonvisMention)
+                if(predLabelDict.containsKey(m.getUniqueID()))
+                    pred = predLabelDict.get(m.getUniqueID());
 
-                scores.increment(gold, pred);
-            }
+            eval.scores_card.increment(gold, pred);
         }
+        return eval;
+    }
+
+    /**Merges the given per-document cardinality evaluations
+     *
+     * @param docEvalDict
+     * @return
+     */
+    private ScoreDict<Integer> _mergeCardinalityEvaluation(Map<Document, DocumentEvaluation> docEvalDict)
+    {
+        ScoreDict<Integer> scores = new ScoreDict<>();
+        docEvalDict.values().forEach(eval -> scores.increment(eval.scores_card));
         return scores;
     }
 
+    /**Applies the given evaluation function to each document in parallel,
+     * returning the mapping of documents to their evaluations
+     *
+     * @param evalFunc
+     * @return
+     */
+    private Map<Document, DocumentEvaluation> _evaluateDocuments(
+            Function<Document, DocumentEvaluation> evalFunc)
+    {
+        return _docDict.values().parallelStream().collect(
+                Collectors.toConcurrentMap(d -> d, evalFunc));
+    }
+
     /**Performs post-inference evaluation, including writing
      * conll and htm output files, if specified
      *
@@ -687,24 +1080,15 @@ public class ILPInference
     {
         if(InferenceType.isVisualType(_infType)){
             Logger.log("Evaluating visual graphs");
-            Map<String, Integer> predLabels_vis = new HashMap<>();
-            for(Map<String, Integer> labelDict : _visualGraphs.values())
-                labelDict.forEach((k,v) -> predLabels_vis.put(k, v));
-            _evaluateVisual(predLabels_vis, "inf");
+            _evaluateVisual(_solvedGraphs, "inf");
         }
         if(InferenceType.isRelationType(_infType)){
             Logger.log("Evaluating relation graphs");
-            Map<String, Integer> predLabels = new HashMap<>();
-            for(Map<String, Integer> labelDict : _relationGraphs.values())
-                labelDict.forEach((k,v) -> predLabels.put(k, v));
-            _evaluateRelations(predLabels, "out/post_inf_rel");
+            _evaluateRelations(_solvedGraphs, "out/post_inf_rel");
         }
         if(InferenceType.isGroundingType(_infType)){
             Logger.log("Evaluating grounding graphs");
-            Map<String, Integer> predLabels = new HashMap<>();
-            for(Map<String, Integer> labelDict : _groundingGraphs.values())
-                labelDict.forEach((k,v) -> predLabels.put(k, v));
-            _evaluateGroundings(predLabels, "out/post_inf_ground");
+            _evaluateGroundings(_solvedGraphs, "out/post_inf_ground");
         }
 
         //Export files, if specified
@@ -736,11 +1120,8 @@ public class ILPInference
             }
             if(InferenceType.isGroundingType(_infType)){
                 Logger.log("Exporting grounding files");
-                Map<String, Integer> predLabels = new HashMap<>();
-                for(Map<String, Integer> labelDict : _groundingGraphs.values())
-                    labelDict.forEach((k,v) -> predLabels.put(k, v));
                 for(Document d : _docDict.values())
-                    _exportGroundingFile(d, predLabels);
+                    _exportGroundingFile(d, _solvedGraphs.get(d.getID()));
             }
         }
     }
@@ -831,16 +1212,18 @@ public class ILPInference
         FileIO.writeFile(ll, outDir + d.getID().replace(".jpg", ""), "txt", false);
     }
 
-    /**Export a grounding file for a given document and predicted label dict;
+    /**Export a grounding file for a given document and predicted graph;
      * the exported file is placed in a different directory, depending on
      * the inference type
      *
      * @param d
-     * @param groundingPredLabelDict
+     * @param graph
      */
-    private void _exportGroundingFile(Document d, Map<String, Integer> groundingPredLabelDict)
+    private void _exportGroundingFile(Document d, SolvedGraph graph)
     {
-        List<BoundingBox> boxes = new ArrayList<>(d.getBoundingBoxSet());
+        ScoreTable.DocumentScores scores = _scoreTable.get(d.getID());
+        List<BoundingBox> boxes = scores.getBoxList();
+        Map<Mention, Integer> mentionIndices = _getMentionIndices(scores.getMentionList());
 
         //Colors may be too distracting for bounding boxes
         //boxes.forEach(b -> boxIds.add("b-"+b.getIdx()));
@@ -866,13 +1249,11 @@ public class ILPInference
                 /*
                 if (_usePredictedNonvis)
                     nonvisMention = _nonvisMentions.contains(m.getUniqueID());*/
-                if (!nonvisMention) {
-                    for (int o = 0; o < boxes.size(); o++) {
-                        BoundingBox b = boxes.get(o);
-                        String id = m.getUniqueID() + "|" + b.getUniqueID();
-                        if (groundingPredLabelDict.containsKey(id) && groundingPredLabelDict.get(id) == 1)
-                            assocBoxIds_pred.add("b-" + b.getIdx());
-                    }
+                if (!nonvisMention && graph != null) {
+                    int i = mentionIndices.get(m);
+                    for (int o = 0; o < boxes.size(); o++)
+                        if (graph.getGroundingLabel(i, o) == 1)
+                            assocBoxIds_pred.add("b-" + boxes.get(o).getIdx());
                 }
                 mentionBoxDict_pred.put(m.getUniqueID(), StringUtil.listToString(assocBoxIds_pred, ", "));
             }
@@ -891,92 +1272,103 @@ public class ILPInference
 
     /* Graph conversion functions */
 
-    /**Builds predicted chains from a given label dict
+    /**Builds predicted chains from the given graphs, building
+     * each document's chains in parallel
+     *
+     * @param graphs
+     * @param includeVisual - Whether to exclude predicted nonvisual mentions
+     * @return
      */
-    private Map<String, Set<Chain>> _buildChainsFromPredLabels(Map<String, Integer> predLabelDict_rel,
-                                                               Map<String, Integer> predLabelDict_vis)
+    private Map<String, Set<Chain>> _buildChainsFromGraphs(Map<String, SolvedGraph> graphs,
+                                                           boolean includeVisual)
     {
-        Map<String, Set<Chain>> predChains = new HashMap<>();
-        for(Document d : _docDict.values()){
-            Map<Mention, String> mentionChainIdDict = new HashMap<>();
-            int chainIdx = 1;
-            List<Mention> mentions = new ArrayList<>(d.getMentionList());
-            for(int i=0; i<mentions.size(); i++){
-                Mention m_i = mentions.get(i);
-
-                //Skip all predicted nonvisual mentions
-                if(predLabelDict_vis.containsKey(m_i.getUniqueID()) &&
-                   predLabelDict_vis.get(m_i.getUniqueID()) != 1)
-                    continue;
+        return _docDict.values().parallelStream().collect(Collectors.toConcurrentMap(
+                Document::getID, d -> _buildChainsFromGraph(d, graphs.get(d.getID()), includeVisual)));
+    }
 
-                for(int j=i+1; j<mentions.size(); j++){
-                    Mention m_j = mentions.get(j);
-                    if(predLabelDict_vis.containsKey(m_j.getUniqueID()) &&
-                       predLabelDict_vis.get(m_j.getUniqueID()) != 1)
-                        continue;
+    /**Builds the given document's predicted chains from the given graph
+     *
+     * @param d
+     * @param graph
+     * @param includeVisual - Whether to exclude predicted nonvisual mentions
+     * @return
+     */
+    private Set<Chain> _buildChainsFromGraph(Document d, SolvedGraph graph, boolean includeVisual)
+    {
+        Map<Mention, String> mentionChainIdDict = new HashMap<>();
+        int chainIdx = 1;
+        List<Mention> mentions = _scoreTable.get(d.getID()).getMentionList();
+        if(graph == null)
+            graph = new SolvedGraph(d.getID(), mentions.size(), 0);
+
+        //Predicted nonvisual mentions are any with a non-visual label
+        boolean[] nonvis = new boolean[mentions.size()];
+        for(int i=0; i<mentions.size(); i++)
+            nonvis[i] = includeVisual && graph.getVisualLabel(i) != SolvedGraph.UNSET &&
+                        graph.getVisualLabel(i) != 1;
+
+        for(int i=0; i<mentions.size(); i++){
+            Mention m_i = mentions.get(i);
+
+            //Skip all predicted nonvisual mentions
+            if(nonvis[i])
+                continue;
+
+            for(int j=i+1; j<mentions.size(); j++){
+                Mention m_j = mentions.get(j);
+                if(nonvis[j])
+                    continue;
 
-                    String id_ij = Document.getMentionPairStr(m_i, m_j);
-                    String id_ji = Document.getMentionPairStr(m_j, m_i);
-                    if(predLabelDict_rel.containsKey(id_ij) && predLabelDict_rel.get(id_ij) == 1 ||
-                       predLabelDict_rel.containsKey(id_ji) && predLabelDict_rel.get(id_ji) == 1) {
-                        String chainID_i = mentionChainIdDict.get(m_i);
-                        String chainID_j = mentionChainIdDict.get(m_j);
-
-                        //a) if one of the mentions has an ID already and the other doesn't, copy the ID
-                        if(chainID_i != null && chainID_j == null){
-                            mentionChainIdDict.put(m_j, chainID_i);
-                        } else if (chainID_i == null && chainID_j != null) {
-                            mentionChainIdDict.put(m_i, chainID_j);
-                        } //b) if neither m1 nor m2 have a chain ID, put them both in a new chain
-                        else if(chainID_i == null){
-                            mentionChainIdDict.put(m_i, String.valueOf(chainIdx));
-                            mentionChainIdDict.put(m_j, String.valueOf(chainIdx));
-                            chainIdx++;
-                        } //c) if both m1 and m2 have ID's and they aren't the same, merge
-                        else {
-                            Set<Mention> reassigMentionSet = new HashSet<>();
-                            for(Mention m : mentionChainIdDict.keySet())
-                                if(mentionChainIdDict.get(m).equals(chainID_j))
-                                    reassigMentionSet.add(m);
-                            reassigMentionSet.forEach(m -> mentionChainIdDict.put(m, chainID_i));
-                        }
+                if(graph.getRelationLabel(i, j) == 1 || graph.getRelationLabel(j, i) == 1) {
+                    String chainID_i = mentionChainIdDict.get(m_i);
+                    String chainID_j = mentionChainIdDict.get(m_j);
+
+                    //a) if one of the mentions has an ID already and the other doesn't, copy the ID
+                    if(chainID_i != null && chainID_j == null){
+                        mentionChainIdDict.put(m_j, chainID_i);
+                    } else if (chainID_i == null && chainID_j != null) {
+                        mentionChainIdDict.put(m_i, chainID_j);
+                    } //b) if neither m1 nor m2 have a chain ID, put them both in a new chain
+                    else if(chainID_i == null){
+                        mentionChainIdDict.put(m_i, String.valueOf(chainIdx));
+                        mentionChainIdDict.put(m_j, String.valueOf(chainIdx));
+                        chainIdx++;
+                    } //c) if both m1 and m2 have ID's and they aren't the same, merge
+                    else {
+                        Set<Mention> reassigMentionSet = new HashSet<>();
+                        for(Mention m : mentionChainIdDict.keySet())
+                            if(mentionChainIdDict.get(m).equals(chainID_j))
+                                reassigMentionSet.add(m);
+                        reassigMentionSet.forEach(m -> mentionChainIdDict.put(m, chainID_i));
                     }
                 }
             }
+        }
 
 
-            //Add all unassigned visual mentions as singleton chains
-            mentions.removeAll(mentionChainIdDict.keySet());
-            for(Mention m : mentions) {
-                if(!predLabelDict_vis.containsKey(m.getUniqueID()) ||
-                    predLabelDict_vis.get(m.getUniqueID()) == 1)
-                    mentionChainIdDict.put(m, String.valueOf(chainIdx++));
-            }
-
-            //Invert the mention / chainID dict and store the chains
-            Map<String, Set<Mention>> chainMentionDict = Util.invertMap(mentionChainIdDict);
-            Set<Chain> chainSet = new HashSet<>();
-            for(String chainID : chainMentionDict.keySet()){
-                Chain c = new Chain(d.getID(), chainID);
-                for(Mention m : chainMentionDict.get(chainID))
-                    c.addMention(m);
-                chainSet.add(c);
-            }
+        //Add all unassigned visual mentions as singleton chains
+        for(int i=0; i<mentions.size(); i++)
+            if(!nonvis[i] && !mentionChainIdDict.containsKey(mentions.get(i)))
+                mentionChainIdDict.put(mentions.get(i), String.valueOf(chainIdx++));
 
-            //In order to make the display look correct (with nonvisuals)
-            //we want to add all predicted nonvisual mentions as chain 0
-            Chain nonvisChain = new Chain(d.getID(), "0");
-            for(Mention m : d.getMentionList())
-                if(predLabelDict_vis.containsKey(m.getUniqueID()) &&
-                   predLabelDict_vis.get(m.getUniqueID()) == 0)
-                    nonvisChain.addMention(m);
-            chainSet.add(nonvisChain);
-
-            if(!chainSet.isEmpty())
-                predChains.put(d.getID(), chainSet);
+        //Invert the mention / chainID dict and store the chains
+        Map<String, Set<Mention>> chainMentionDict = Util.invertMap(mentionChainIdDict);
+        Set<Chain> chainSet = new HashSet<>();
+        for(String chainID : chainMentionDict.keySet()){
+            Chain c = new Chain(d.getID(), chainID);
+            for(Mention m : chainMentionDict.get(chainID))
+                c.addMention(m);
+            chainSet.add(c);
         }
 
-        return predChains;
+        //In order to make the display look correct (with nonvisuals)
+        //we want to add all predicted nonvisual mentions as chain 0
+        Chain nonvisChain = new Chain(d.getID(), "0");
+        for(int i=0; i<mentions.size(); i++)
+            if(nonvis[i])
+                nonvisChain.addMention(mentions.get(i));
+        chainSet.add(nonvisChain);
+        return chainSet;
     }
 
     /**Returns a mapping of document IDs to
@@ -995,33 +1387,36 @@ public class ILPInference
     {
         Map<String, Set<Chain[]>> docSubsetChainDict = new HashMap<>();
         for(String docID : _predChains.keySet()){
-            Document d = _docDict.get(docID);
+            SolvedGraph graph = _solvedGraphs.get(docID);
+            if(graph == null)
+                continue;
+            List<Mention> mentions = _scoreTable.get(docID).getMentionList();
             Set<Chain[]> subsetChains = new HashSet<>();
-            for(String pairID : _relationGraphs.get(docID).keySet()) {
-                Mention[] pair = d.getMentionPairFromStr(pairID);
-
-                int label = _relationGraphs.get(docID).get(pairID);
-                Mention subM = null, supM = null;
-                if(label == 2){
-                    subM = pair[0]; supM = pair[1];
-                } else if(label == 3){
-                    subM = pair[1]; supM = pair[0];
-                }
+            for(int i=0; i<mentions.size(); i++) {
+                for(int j=0; j<mentions.size(); j++) {
+                    int label = i == j ? SolvedGraph.UNSET : graph.getRelationLabel(i, j);
+                    Mention subM = null, supM = null;
+                    if(label == 2){
+                        subM = mentions.get(i); supM = mentions.get(j);
+                    } else if(label == 3){
+                        subM = mentions.get(j); supM = mentions.get(i);
+                    }
 
-                if(subM != null && supM != null){
-                    Chain sub = null, sup = null;
+                    if(subM != null && supM != null){
+                        Chain sub = null, sup = null;
 
-                    for(Chain c : _predChains.get(docID)){
-                        if(c.getMentionSet().contains(subM))
-                            sub = c;
-                        if(c.getMentionSet().contains(supM))
-                            sup = c;
-                    }
+                        for(Chain c : _predChains.get(docID)){
+                            if(c.getMentionSet().contains(subM))
+                                sub = c;
+                            if(c.getMentionSet().contains(supM))
+                                sup = c;
+                        }
 
-                    if(sub != null && sup != null){
-                        Chain[] chainPair = {sub, sup};
-                        if(!Util.containsArr(subsetChains, chainPair))
-                            subsetChains.add(chainPair);
+                        if(sub != null && sup != null){
+                            Chain[] chainPair = {sub, sup};
+                            if(!Util.containsArr(subsetChains, chainPair))
+                                subsetChains.add(chainPair);
+                        }
                     }
                 }
             }
@@ -1043,30 +1438,39 @@ public class ILPInference
     {
         //Set up the basic thread
         ILPSolverThread thread;
+        ScoreTable.DocumentScores scores = _scoreTable.get(docID);
         if(_infType == RELATION || _infType == VISUAL_RELATION){
-            thread = new ILPSolverThread(_docDict.get(docID).getMentionList(), numSolverThreads);
+            thread = new ILPSolverThread(scores, numSolverThreads);
         } else {
-            thread = new ILPSolverThread(_docDict.get(docID).getMentionList(), _boxDict.get(docID),
-                    _infType, numSolverThreads);
+            thread = new ILPSolverThread(scores, _infType, numSolverThreads);
         }
 
+        thread.setBackendType(_backendType);
+        thread.setTimeLimit(_getTimeBudget(docID));
+        if(_modelExporter != null)
+            thread.exportModels(_modelExporter);
+        if(_decompose)
+            thread.decompose();
+        if(_warmStart)
+            thread.useWarmStart();
+        if(_argmaxFastPath)
+            thread.useArgmaxFastPath();
+        if(_exactMaxMentions >= 0)
+            thread.useExactEnumeration(_exactMaxMentions, _exactMaxBoxes);
+
         //Add the fixed links, if there are any
         if(fixedLinks != null && !fixedLinks.isEmpty())
             thread.setFixedRelationLinks(fixedLinks);
 
-        if(!_nonvisScores.isEmpty())
-            thread.setNonvisScores(_nonvisScores);
-
         if(InferenceType.isRelationType(_infType)){
-            thread.setRelationScores(_relationScores);
             if(_excludeSubset)
                 thread.excludeSubset();
+            if(_lazyTransitivity)
+                thread.useLazyTransitivity();
             if(_includeTypeConstr)
                 thread.includeTypeConstraint();
         }
         if(InferenceType.isGroundingType(_infType)){
-            thread.setAffinityScores(_affinityScores);
-            thread.setCardinalityScores(_cardinalityScores);
             if(_excludeBoxExigence)
                 thread.excludeBoxExigence();
             if(_includeTypeConstr)
@@ -1094,104 +1498,35 @@ public class ILPInference
         /*Perform inference, according to our type*/
         Logger.log("Solving the ILP for " + String.valueOf(_infType) + " inference");
         Set<String> documentIDs = _docDict.keySet();
-        if((double)_relationGraphs.keySet().size()/(double)documentIDs.size() > 0.9 ||
-           (double)_groundingGraphs.keySet().size()/(double)documentIDs.size() > 0.9){
+        long numRelationGraphs = _solvedGraphs.values().stream().filter(SolvedGraph::hasRelations).count();
+        long numGroundingGraphs = _solvedGraphs.values().stream().filter(SolvedGraph::hasGroundings).count();
+        if((double)numRelationGraphs/(double)documentIDs.size() > 0.9 ||
+           (double)numGroundingGraphs/(double)documentIDs.size() > 0.9){
             //If this is a run where most (>90%) of our documents have already
             //been solved, we can assume these are the rare, complex cases on
             //which we failed; try them one at a time, using all available threads
             List<String> docIds = new ArrayList<>(documentIDs);
-            docIds.removeAll(_relationGraphs.keySet());
-            docIds.removeAll(_groundingGraphs.keySet());
+            docIds.removeIf(docID -> _isSolved(docID, false));
             _infer(docIds, fixedCorefLinks, 1, numThreads);
-        } else if(!InferenceType.isJointType(_infType)){
-            //If this is not three-way joint inference, we can run one document
-            //per thread, giving gurobi one thread, and itll be done relatively
-            //quickly
-            List<String> docIds = new ArrayList<>(documentIDs);
-            docIds.removeAll(_relationGraphs.keySet());
-            docIds.removeAll(_groundingGraphs.keySet());
-            _infer(docIds, fixedCorefLinks, numThreads, 1);
         } else {
-            //If this is three-way inference, however, we assume that we have a
-            //number of threads that's divisible by four (I've been running these on
-            //24 threads) and we're going to split the images into batches, based
-            //on the size of the graph |M|^2 + |M||B|;
-            //this roughly corresponds to 0.3, 0.3, 0.2, 0.1
-
-            //Get an in-order listing of docIDs, for each complexity bracket
-            String[] complexities = {"simple", "moderate", "complex", "intractable"};
-            DoubleDict<String> complexityDict = new DoubleDict<>();
-            for(Document d : _docDict.values())
-                complexityDict.increment(d.getID(),
-                        d.getMentionList().size() * d.getMentionList().size() +
-                                d.getMentionList().size() * d.getBoundingBoxSet().size());
-            Map<String, List<String>> docIdDict = new HashMap<>();
-            for(String complexityStr : complexities)
-                docIdDict.put(complexityStr, new ArrayList<>());
-            for(String docID : complexityDict.keySet()){
-                int complexity = (int)complexityDict.get(docID);
-                String complexityStr;
-                if(complexity < 400)
-                    complexityStr = complexities[0];
-                else if(complexity < 700)
-                    complexityStr = complexities[1];
-                else if(complexity < 1200)
-                    complexityStr = complexities[2];
-                else
-                    complexityStr = complexities[3];
-                docIdDict.get(complexityStr).add(docID);
-            }
-
-            //vary the number of threads to run ourselves / to give gurobi
-            //based on the complexity bracket
-            for(int i=0; i<complexities.length; i++){
-                int numThreads_doc = 0, numThreads_solver = 0;
-                switch(i){
-                    case 0: numThreads_doc = numThreads;
-                            numThreads_solver = 1;
-                        break;
-                    case 1: numThreads_doc = numThreads / 4;
-                            numThreads_solver = 4;
-                        break;
-                    case 2: numThreads_doc = 4;
-                            numThreads_solver = numThreads / 4;
-                        break;
-                    case 3: numThreads_doc = 1;
-                            numThreads_solver = numThreads;
-                        break;
-                }
-
-                String complexityStr = complexities[i];
-                List<String> docIds = new ArrayList<>(docIdDict.get(complexityStr));
-
-                //remove all previously visited doc IDs from this list
-                docIds.removeAll(_relationGraphs.keySet());
-                docIds.removeAll(_groundingGraphs.keySet());
-                docIds.removeAll(_visualGraphs.keySet());
-
-                Logger.log("Running inference for %s documents "+
-                           "(%d docs; %d solvers; %d thread(s) each)",
-                        complexityStr.toUpperCase(), docIds.size(),
-                        numThreads_doc, numThreads_solver);
-
-                _infer(docIds, fixedCorefLinks, numThreads_doc, numThreads_solver);
-            }
+            //Otherwise, schedule all the documents at once, largest first,
+            //sizing each document's solver threads by its estimated cost
+            //(where non-joint documents almost always get one thread each)
+            List<String> docIds = new ArrayList<>(documentIDs);
+            docIds.removeIf(docID -> _isSolved(docID, true));
+            _inferByCost(docIds, fixedCorefLinks, numThreads);
         }
         Logger.log("Inference complete");
+        GurobiEnvPool.disposeAll();
+        _graphJournal.compact(_solvedGraphs);
+        if(_modelExporter != null)
+            _modelExporter.close();
+        _closeMetrics();
 
         //Finally, if this has been relation or combined inference,
         //convert our graphs to predicted chains
-        if(InferenceType.isRelationType(_infType)){
-            Map<String, Integer> predLabels_rel = new HashMap<>();
-            Map<String, Integer> predLabels_vis = new HashMap<>();
-            for(Map<String, Integer> labelDict : _relationGraphs.values())
-                labelDict.forEach((k,v) -> predLabels_rel.put(k, v));
-            if(InferenceType.isVisualType(_infType))
-                for(Map<String, Integer> labelDict : _visualGraphs.values())
-                    labelDict.forEach((k,v) -> predLabels_vis.put(k, v));
-
-            _predChains = _buildChainsFromPredLabels(predLabels_rel, predLabels_vis);
-        }
+        if(InferenceType.isRelationType(_infType))
+            _predChains = _buildChainsFromGraphs(_solvedGraphs, InferenceType.isVisualType(_infType));
 
         Logger.log("Failed to find solutions for %d images", _failedImgs.size());
         for(String failedImg : _failedImgs)
@@ -1199,6 +1534,9 @@ public class ILPInference
         Logger.log("Fell back to individual inference for %d images", _fallbackImgs.size());
         for(String fallbackImg : _fallbackImgs)
             System.out.println(fallbackImg);
+        Logger.log("Kept the best incumbent (out of time) for %d images", _incumbentImgs.size());
+        for(String incumbentImg : _incumbentImgs)
+            System.out.println(incumbentImg);
     }
 
     public void infer_fixedPremise(int numThreads)
@@ -1244,129 +1582,298 @@ public class ILPInference
         Set<String> documentIDs = _docDict.keySet();
 
         List<String> docIds = new ArrayList<>(documentIDs);
-        docIds.removeAll(_relationGraphs.keySet());
-        docIds.removeAll(_groundingGraphs.keySet());
+        docIds.removeIf(docID -> _isSolved(docID, false));
         _infer(docIds, fixedCorefLinks, numThreads, 1);
+        GurobiEnvPool.disposeAll();
+        _graphJournal.compact(_solvedGraphs);
+        if(_modelExporter != null)
+            _modelExporter.close();
+        _closeMetrics();
 
-        Map<String, Integer> predLabels_rel = new HashMap<>();
-        Map<String, Integer> predLabels_vis = new HashMap<>();
-        for(Map<String, Integer> labelDict : _relationGraphs.values())
-            labelDict.forEach((k,v) -> predLabels_rel.put(k, v));
-        if(InferenceType.isVisualType(_infType))
-            for(Map<String, Integer> labelDict : _visualGraphs.values())
-                labelDict.forEach((k,v) -> predLabels_vis.put(k, v));
-
-        _predChains = _buildChainsFromPredLabels(predLabels_rel, predLabels_vis);
+        _predChains = _buildChainsFromGraphs(_solvedGraphs, InferenceType.isVisualType(_infType));
     }
 
-    private void _infer(List<String> docIds, Map<String, Map<String, Integer>> fixedLinks,
-                        int numThreads_docs, int numThreads_solver)
+    /**Runs inference over the given documents in order of estimated
+     * cost (largest first) on a budget of numThreads cores, where each
+     * document is given as many solver threads as its cost warrants,
+     * up to however many cores are free when it's dispatched
+     *
+     * @param docIds
+     * @param fixedLinks
+     * @param numThreads
+     */
+    private void _inferByCost(List<String> docIds, Map<String, Map<String, Integer>> fixedLinks,
+                              int numThreads)
     {
-        int docIdx = 0, threadIdx = 0;
-        Thread[] threadPool = new Thread[numThreads_docs];
-        while(threadIdx < numThreads_docs && docIdx < docIds.size()){
-            String docID = docIds.get(docIdx);
-            threadPool[threadIdx] = _getNextThread(docID,
-                    fixedLinks.get(docID), numThreads_solver);
-            threadPool[threadIdx].start();
-            docIdx++; threadIdx++;
+        Map<String, Integer> costDict = new HashMap<>();
+        for(String docID : docIds)
+            costDict.put(docID, _estimateCost(_docDict.get(docID)));
+        PriorityQueue<String> docQueue = new PriorityQueue<>(Math.max(docIds.size(), 1),
+                Comparator.comparing((String docID) -> costDict.get(docID)).reversed()
+                        .thenComparing(Comparator.naturalOrder()));
+        docQueue.addAll(docIds);
+        if(!docQueue.isEmpty())
+            Logger.log("Scheduling %d documents by estimated cost (max %d) on %d threads",
+                    docQueue.size(), costDict.get(docQueue.peek()), numThreads);
+
+        _startInferenceClock();
+
+        //Set up an environment per worker ahead of time, rather
+        //than having each document create its own
+        if(_backendType == ILPBackend.BackendType.GUROBI && !docIds.isEmpty())
+            GurobiEnvPool.init(Math.min(numThreads, docIds.size()));
+
+        //Each document occupies one worker, so there's never need
+        //for more workers than cores
+        ExecutorService solverPool = Executors.newFixedThreadPool(Math.max(1, numThreads));
+        CompletionService<ILPSolverThread> completionService =
+                new ExecutorCompletionService<>(solverPool);
+        Map<Future<ILPSolverThread>, ILPSolverThread> runningTasks = new HashMap<>();
+        int freeThreads = numThreads, numProcessed = 0;
+        try {
+            while(!docQueue.isEmpty() || !runningTasks.isEmpty()){
+                //Dispatch the most costly remaining documents to the free cores
+                while(!docQueue.isEmpty() && freeThreads > 0){
+                    String docID = docQueue.poll();
+                    int solverThreads = Math.min(freeThreads,
+                            _getSolverThreadCount(costDict.get(docID), numThreads));
+                    ILPSolverThread ist = _getNextThread(docID, fixedLinks.get(docID), solverThreads);
+                    runningTasks.put(completionService.submit(ist, ist), ist);
+                    freeThreads -= solverThreads;
+                }
+
+                //Wait for the next document to finish, freeing its cores
+                ILPSolverThread ist = _takeCompleted(completionService, runningTasks);
+                freeThreads += ist.getSolverThreads();
+                numProcessed++;
+                Logger.logStatus("Processed %d docs (%.2f%%)",
+                        numProcessed, 100.0 * numProcessed / docIds.size());
+            }
+        } catch(InterruptedException iEx) {
+            Logger.log(iEx);
+        } finally {
+            solverPool.shutdownNow();
         }
+    }
 
-        //keep processing threads until theyre all dead and we've gone through all the documents
-        boolean foundLiveThread = true;
-        while(docIdx < docIds.size() || foundLiveThread) {
-            foundLiveThread = false;
-            for(int i=0; i<numThreads_docs; i++) {
-                //if we didn't fill the thread array, just skip this index
-                if(threadPool[i] == null)
-                    continue;
+    /**Returns the estimated cost of inference for the given document,
+     * as the number of links inference will decide: |M|^2 for relations
+     * and |M||B| for groundings
+     *
+     * @param d
+     * @return
+     */
+    private int _estimateCost(Document d)
+    {
+        int numMentions = d.getMentionList().size();
+        int cost = 0;
+        if(InferenceType.isRelationType(_infType))
+            cost += numMentions * numMentions;
+        if(InferenceType.isGroundingType(_infType))
+            cost += numMentions * d.getBoundingBoxSet().size();
+        return cost;
+    }
 
-                if(threadPool[i].isAlive()) {
-                    foundLiveThread = true;
-                } else {
-                    Logger.logStatus("Processed %d docs (%.2f%%)",
-                            docIdx, 100.0*(double)docIdx / docIds.size());
-
-                    //if this is a dead thread, store either its graphs
-                    //or its ID, depending on whether it found a solution
-                    ILPSolverThread ist = (ILPSolverThread)threadPool[i];
-                    if(ist.foundSolution()){
-                        _saveUpdatedGraph(ist);
-                        if(ist.isFallbackSolution()){
-                            _fallbackImgs.add(ist.getDocID());
-                            Logger.log("WARNING: Fallback solution for " + ist.getDocID());
-                        }
-                    } else {
-                        _failedImgs.add(ist.getDocID());
-                        Logger.log("ERROR: failed to solve " + ist.getDocID());
-                    }
-                    threadPool[i] = null;
-
-                    //independently, if we found a dead thread and we
-                    //still have image IDs to iterate through, swap this
-                    //dead one out for a live one
-                    if(docIdx < docIds.size()) {
-                        String docID = docIds.get(docIdx);
-                        threadPool[i] = _getNextThread(docID, fixedLinks.get(docID), numThreads_solver);
-                        threadPool[i].start();
-                        foundLiveThread = true;
-                        docIdx++;
-                    }
-                }
+    /**Starts the clock on the total time budget, if there is one
+     */
+    private void _startInferenceClock()
+    {
+        _inferenceDeadline = -1;
+        if(_totalTimeBudgetSec >= 0)
+            _inferenceDeadline = System.currentTimeMillis() + (long)(_totalTimeBudgetSec * 1000);
+    }
+
+    /**Returns the time budget, in seconds, for the given document: scaled
+     * by its estimated cost, up to the per-document limit, and cut short
+     * by whatever remains of the total budget
+     *
+     * @param docID
+     * @return
+     */
+    private double _getTimeBudget(String docID)
+    {
+        double budget = Math.min(_docTimeLimitSec,
+                BASE_DOC_SEC + SEC_PER_LINK * _estimateCost(_docDict.get(docID)));
+        if(_inferenceDeadline >= 0)
+            budget = Math.min(budget, (_inferenceDeadline - System.currentTimeMillis()) / 1000.0);
+        return Math.max(0, budget);
+    }
+
+    /**Returns the number of solver threads a document of the given
+     * estimated cost warrants, out of numThreads; thresholds are those
+     * of the old simple / moderate / complex / intractable brackets
+     *
+     * @param cost
+     * @param numThreads
+     * @return
+     */
+    private static int _getSolverThreadCount(int cost, int numThreads)
+    {
+        int solverThreads = numThreads;
+        if(cost < 400)
+            solverThreads = 1;
+        else if(cost < 700)
+            solverThreads = 4;
+        else if(cost < 1200)
+            solverThreads = Math.max(4, numThreads / 4);
+        return Math.max(1, Math.min(solverThreads, numThreads));
+    }
+
+    /**Writes the given finished thread's metrics (if they're being
+     * written) and stores its graphs, if it found a solution, or
+     * records its document as failed otherwise
+     *
+     * @param ist
+     */
+    private void _collectThread(ILPSolverThread ist)
+    {
+        if(_metricsWriter != null && ist.getMetrics() != null){
+            DocumentMetrics metrics = ist.getMetrics();
+            try {
+                _metricsWriter.write((_metricsAsJson ? metrics.toJsonLine() : metrics.toCsvLine()) + "\n");
+                _metricsWriter.flush();
+            } catch(IOException ioEx) {
+                Logger.log(ioEx);
             }
+        }
+        if(ist.foundSolution()){
+            _saveUpdatedGraph(ist);
+            if(ist.isFallbackSolution()){
+                _fallbackImgs.add(ist.getDocID());
+                Logger.log("WARNING: Fallback solution for " + ist.getDocID());
+            }
+            if(ist.isIncumbentSolution()){
+                _incumbentImgs.add(ist.getDocID());
+                Logger.log("WARNING: Incumbent (not proven optimal) solution for " + ist.getDocID());
+            }
+        } else {
+            _failedImgs.add(ist.getDocID());
+            Logger.log("ERROR: failed to solve " + ist.getDocID());
+        }
+    }
 
-            //before we check for threadlife again, let's
-            //sleep for a 50 ms so we don't burn
-            try{Thread.sleep(50);}
-            catch(InterruptedException iEx){/*do nothing*/}
+    /**Closes the metrics file, if there is one; metrics
+     * are not written afterwards
+     */
+    private void _closeMetrics()
+    {
+        if(_metricsWriter == null)
+            return;
+        try {
+            _metricsWriter.close();
+        } catch(IOException ioEx) {
+            Logger.log(ioEx);
         }
+        _metricsWriter = null;
+    }
 
-        //go through the thread pool one last time to
-        //collect the last of our threads
-        for(int i=0; i<numThreads_docs; i++) {
-            if(threadPool[i] != null){
-                ILPSolverThread ist = (ILPSolverThread)threadPool[i];
-                if(ist.foundSolution()){
-                    _saveUpdatedGraph(ist);
-                } else {
-                    _failedImgs.add(ist.getDocID());
-                    Logger.log("ERROR: failed to solve " + ist.getDocID());
+    private void _infer(List<String> docIds, Map<String, Map<String, Integer>> fixedLinks,
+                        int numThreads_docs, int numThreads_solver)
+    {
+        _startInferenceClock();
+
+        //Set up an environment per worker ahead of time, rather
+        //than having each document create its own
+        if(_backendType == ILPBackend.BackendType.GUROBI && !docIds.isEmpty())
+            GurobiEnvPool.init(Math.min(numThreads_docs, docIds.size()));
+
+        ExecutorService solverPool = Executors.newFixedThreadPool(Math.max(1, numThreads_docs));
+        CompletionService<ILPSolverThread> completionService =
+                new ExecutorCompletionService<>(solverPool);
+        Map<Future<ILPSolverThread>, ILPSolverThread> runningTasks = new HashMap<>();
+        int docIdx = 0, numProcessed = 0;
+        try {
+            //keep a document queued per worker until we've gone
+            //through all the documents and they've all finished
+            while(docIdx < docIds.size() || !runningTasks.isEmpty()){
+                while(runningTasks.size() < numThreads_docs && docIdx < docIds.size()){
+                    String docID = docIds.get(docIdx);
+                    ILPSolverThread ist = _getNextThread(docID, fixedLinks.get(docID), numThreads_solver);
+                    runningTasks.put(completionService.submit(ist, ist), ist);
+                    docIdx++;
                 }
+                _takeCompleted(completionService, runningTasks);
+                numProcessed++;
+                Logger.logStatus("Processed %d docs (%.2f%%)",
+                        numProcessed, 100.0*(double)numProcessed / docIds.size());
             }
+        } catch(InterruptedException iEx) {
+            Logger.log(iEx);
+        } finally {
+            solverPool.shutdownNow();
         }
+    }
 
+    /**Waits for the next solver task to finish, stores its graphs (or
+     * its failure), and removes it from the running tasks, returning
+     * the finished solver; a solver that threw is treated as failed
+     *
+     * @param completionService
+     * @param runningTasks
+     * @return
+     * @throws InterruptedException
+     */
+    private ILPSolverThread _takeCompleted(CompletionService<ILPSolverThread> completionService,
+                                           Map<Future<ILPSolverThread>, ILPSolverThread> runningTasks)
+            throws InterruptedException
+    {
+        Future<ILPSolverThread> future = completionService.take();
+        ILPSolverThread ist = runningTasks.remove(future);
+        try {
+            future.get();
+        } catch(ExecutionException exEx) {
+            Logger.log("ERROR: solver for " + ist.getDocID() + " threw " + exEx.getCause());
+        }
+        _collectThread(ist);
+        return ist;
     }
 
     /**Adds the graphs present in the ILP solver thread to the
-     * internal dictionary and updates the saved version of that
-     * dictionary
+     * internal dictionary and appends them to the graph journal,
+     * compacting the journal into the saved dictionary once
+     * it's grown large enough
      *
      * @param ist
      */
     private void _saveUpdatedGraph(ILPSolverThread ist)
     {
-        //Add the new graphs to the dictionary and update our saved objects
-        if(!_relationGraphs.containsKey(ist.getDocID())){
-            Map<String, Integer> relGraph = ist.getRelationGraph();
-            if(!relGraph.isEmpty()){
-                _relationGraphs.put(ist.getDocID(), relGraph);
-                FileIO.writeObject(_relationGraphs, _graphRoot + "_REL.obj");
-            }
-        }
-        if(!_groundingGraphs.containsKey(ist.getDocID())) {
-            Map<String, Integer> grndGraph = ist.getGroundingGraph();
-            if(!grndGraph.isEmpty()){
-                _groundingGraphs.put(ist.getDocID(), grndGraph);
-                FileIO.writeObject(_groundingGraphs, _graphRoot + "_GRND.obj");
-            }
-        }
-        if(!_visualGraphs.containsKey(ist.getDocID())){
-            Map<String, Integer> visGraph = ist.getVisualGraph();
-            if(!visGraph.isEmpty()){
-                _visualGraphs.put(ist.getDocID(), visGraph);
-                FileIO.writeObject(_visualGraphs, _graphRoot + "_VIS.obj");
-            }
-        }
+        if(_solvedGraphs.containsKey(ist.getDocID()))
+            return;
+        SolvedGraph graph = ist.getSolvedGraph();
+        if(graph.isEmpty())
+            return;
+        _solvedGraphs.put(ist.getDocID(), graph);
+        _graphJournal.append(graph);
+        if(_graphJournal.shouldCompact(_solvedGraphs.size()))
+            _graphJournal.compact(_solvedGraphs);
+    }
+
+    /**Returns whether the given document has been solved, which is to
+     * say it has relation or grounding graphs (or, if specified,
+     * a visual graph)
+     *
+     * @param docID
+     * @param includeVisual
+     * @return
+     */
+    private boolean _isSolved(String docID, boolean includeVisual)
+    {
+        SolvedGraph graph = _solvedGraphs.get(docID);
+        return graph != null && (graph.hasRelations() || graph.hasGroundings() ||
+                                 includeVisual && graph.hasVisual());
+    }
+
+    /**Returns a mapping of the given mentions to their indices
+     *
+     * @param mentions
+     * @return
+     */
+    private static Map<Mention, Integer> _getMentionIndices(List<Mention> mentions)
+    {
+        Map<Mention, Integer> mentionIndices = new HashMap<>();
+        for(int i=0; i<mentions.size(); i++)
+            mentionIndices.put(mentions.get(i), i);
+        return mentionIndices;
     }
 
     /**InferenceType specifies the type of inference
@@ -1428,4 +1935,16 @@ public class ILPInference
         public static boolean isGroundingType(InferenceType t){return _groundingTypes.contains(t);}
         public static boolean isJointType(InferenceType t){return _jointTypes.contains(t);}
     }
+
+    /**DocumentEvaluation holds the counts for a single document,
+     * computed independently of all other documents (and thus in
+     * parallel) ahead of being printed in aggregate
+     */
+    private static class DocumentEvaluation
+    {
+        ScoreDict<String> scores = new ScoreDict<>();
+        ScoreDict<String> scores_intra = new ScoreDict<>(), scores_inter = new ScoreDict<>();
+        ScoreDict<Integer> scores_card = new ScoreDict<>();
+        int numCorrect = 0;
+    }
 }
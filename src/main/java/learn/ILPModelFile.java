@@ -0,0 +1,517 @@
+package learn;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**ILPModelFile writes buffered programs to -- and reads them back from --
+ * the standard LP and (free) MPS formats, so that a document's program
+ * can be solved offline by any backend, or by Gurobi's own tools.
+ * Variables are named x0..xN-1 by index and constraints c0..cM-1,
+ * every variable is binary, and fixed variables are written as fixed
+ * bounds; starts aren't written. The format is chosen by the file's
+ * extension (.lp or .mps). Reading covers the subset of each format
+ * this class writes
+ *
+ * @author ccervantes
+ */
+public class ILPModelFile
+{
+    private static final int TERMS_PER_LINE = 8;
+    private static final Pattern LP_TOKEN =
+            Pattern.compile("[+-]|\\d*\\.?\\d+(?:[eE][+-]?\\d+)?|[A-Za-z_][\\w.]*");
+
+    /**Writes the given backend's program to the given file
+     *
+     * @param backend
+     * @param filename
+     * @param comment   - A one-line comment for the file's header
+     * @throws IOException
+     */
+    public static void write(BufferedILPBackend backend, String filename,
+                             String comment) throws IOException
+    {
+        try(BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(filename), StandardCharsets.UTF_8))){
+            if(_isMPS(filename))
+                _writeMPS(backend, bw, comment);
+            else
+                _writeLP(backend, bw, comment);
+        }
+    }
+
+    /**Reads the program in the given file into the given (empty) backend
+     *
+     * @param filename
+     * @param backend
+     * @throws IOException
+     */
+    public static void read(String filename, ILPBackend backend) throws IOException
+    {
+        ParsedModel model = _isMPS(filename) ? _readMPS(filename) : _readLP(filename);
+        backend.setMaximize(model.maximize);
+        for(int i=0; i<model.numVars; i++)
+            backend.addBooleanVariable(model.objective[i]);
+        for(int c=0; c<model.constrIndices.size(); c++){
+            int[] indices = model.constrIndices.get(c);
+            double[] coeffs = model.constrCoeffs.get(c);
+            double rhs = model.constrRhs.get(c);
+            switch(model.constrSenses.charAt(c)){
+                case BufferedILPBackend.SENSE_EQ: backend.addEqualityConstraint(indices, coeffs, rhs);
+                    break;
+                case BufferedILPBackend.SENSE_GE: backend.addGreaterThanConstraint(indices, coeffs, rhs);
+                    break;
+                default: backend.addLessThanConstraint(indices, coeffs, rhs);
+            }
+        }
+        for(Map.Entry<Integer, Boolean> fixed : model.fixedVars.entrySet())
+            backend.fixVariable(fixed.getKey(), fixed.getValue());
+    }
+
+    /**Returns whether the given file is (to be) in MPS format
+     *
+     * @param filename
+     * @return
+     */
+    private static boolean _isMPS(String filename)
+    {
+        return filename.toLowerCase().endsWith(".mps");
+    }
+
+    /* Writing */
+
+    /**Writes the program in LP format
+     *
+     * @param b
+     * @param bw
+     * @param comment
+     * @throws IOException
+     */
+    private static void _writeLP(BufferedILPBackend b, BufferedWriter bw,
+                                 String comment) throws IOException
+    {
+        bw.write("\\ " + comment + "\n");
+        bw.write(b._maximize ? "Maximize\n" : "Minimize\n");
+        StringBuilder sb = new StringBuilder(" obj:");
+        int numTerms = 0;
+        for(int i=0; i<b._numVars; i++){
+            if(b._objective[i] != 0.0){
+                _appendTerm(sb, b._objective[i], i, numTerms == 0);
+                if(++numTerms % TERMS_PER_LINE == 0)
+                    sb.append("\n     ");
+            }
+        }
+        if(numTerms == 0 && b._numVars > 0)
+            sb.append(" 0 x0");
+        bw.write(sb.append("\n").toString());
+
+        bw.write("Subject To\n");
+        for(int c=0; c<b._constrIndices.size(); c++){
+            sb = new StringBuilder(" c").append(c).append(":");
+            int[] indices = b._constrIndices.get(c);
+            double[] coeffs = b._constrCoeffs.get(c);
+            for(int k=0; k<indices.length; k++){
+                _appendTerm(sb, coeffs[k], indices[k], k == 0);
+                if((k+1) % TERMS_PER_LINE == 0 && k+1 < indices.length)
+                    sb.append("\n     ");
+            }
+            if(indices.length == 0)
+                sb.append(" 0 x0");
+            char sense = b._constrSenses.charAt(c);
+            sb.append(sense == BufferedILPBackend.SENSE_EQ ? " = " :
+                      sense == BufferedILPBackend.SENSE_GE ? " >= " : " <= ");
+            bw.write(sb.append(_format(b._constrRhs[c])).append("\n").toString());
+        }
+
+        bw.write("Bounds\n");
+        for(int i=0; i<b._numVars; i++)
+            if(b._lb[i] == b._ub[i])
+                bw.write(" x" + i + " = " + _format(b._lb[i]) + "\n");
+
+        bw.write("Binary\n");
+        sb = new StringBuilder();
+        for(int i=0; i<b._numVars; i++){
+            sb.append(" x").append(i);
+            if((i+1) % TERMS_PER_LINE == 0 || i == b._numVars - 1){
+                bw.write(sb.append("\n").toString());
+                sb = new StringBuilder();
+            }
+        }
+        bw.write("End\n");
+    }
+
+    /**Appends the term coeff * x_idx to the given LP expression
+     *
+     * @param sb
+     * @param coeff
+     * @param idx
+     * @param isFirst
+     */
+    private static void _appendTerm(StringBuilder sb, double coeff, int idx, boolean isFirst)
+    {
+        if(coeff < 0)
+            sb.append(" - ");
+        else if(!isFirst)
+            sb.append(" + ");
+        else
+            sb.append(" ");
+        sb.append(_format(Math.abs(coeff))).append(" x").append(idx);
+    }
+
+    /**Writes the program in (free) MPS format
+     *
+     * @param b
+     * @param bw
+     * @param comment
+     * @throws IOException
+     */
+    private static void _writeMPS(BufferedILPBackend b, BufferedWriter bw,
+                                  String comment) throws IOException
+    {
+        bw.write("* " + comment + "\n");
+        bw.write("NAME model\n");
+        bw.write("OBJSENSE\n    " + (b._maximize ? "MAX" : "MIN") + "\n");
+        bw.write("ROWS\n N obj\n");
+        for(int c=0; c<b._constrIndices.size(); c++){
+            char sense = b._constrSenses.charAt(c);
+            bw.write((sense == BufferedILPBackend.SENSE_EQ ? " E c" :
+                      sense == BufferedILPBackend.SENSE_GE ? " G c" : " L c") + c + "\n");
+        }
+
+        //Columns are written by variable, so gather each variable's
+        //rows (summing a variable's repeated terms in a row)
+        List<List<Integer>> colRows = new ArrayList<>();
+        List<List<Double>> colCoeffs = new ArrayList<>();
+        for(int i=0; i<b._numVars; i++){
+            colRows.add(new ArrayList<>());
+            colCoeffs.add(new ArrayList<>());
+        }
+        for(int c=0; c<b._constrIndices.size(); c++){
+            int[] indices = b._constrIndices.get(c);
+            double[] coeffs = b._constrCoeffs.get(c);
+            for(int k=0; k<indices.length; k++){
+                List<Integer> rows = colRows.get(indices[k]);
+                List<Double> rowCoeffs = colCoeffs.get(indices[k]);
+                int last = rows.size() - 1;
+                if(last >= 0 && rows.get(last) == c)
+                    rowCoeffs.set(last, rowCoeffs.get(last) + coeffs[k]);
+                else {
+                    rows.add(c);
+                    rowCoeffs.add(coeffs[k]);
+                }
+            }
+        }
+        bw.write("COLUMNS\n");
+        bw.write("    MARKER MARKER INTORG\n");
+        for(int i=0; i<b._numVars; i++){
+            bw.write("    x" + i + " obj " + _format(b._objective[i]) + "\n");
+            List<Integer> rows = colRows.get(i);
+            for(int r=0; r<rows.size(); r++)
+                bw.write("    x" + i + " c" + rows.get(r) + " " + _format(colCoeffs.get(i).get(r)) + "\n");
+        }
+        bw.write("    MARKER MARKER INTEND\n");
+
+        bw.write("RHS\n");
+        for(int c=0; c<b._constrIndices.size(); c++)
+            if(b._constrRhs[c] != 0.0)
+                bw.write("    rhs c" + c + " " + _format(b._constrRhs[c]) + "\n");
+
+        bw.write("BOUNDS\n");
+        for(int i=0; i<b._numVars; i++){
+            if(b._lb[i] == b._ub[i])
+                bw.write(" FX bnd x" + i + " " + _format(b._lb[i]) + "\n");
+            else
+                bw.write(" BV bnd x" + i + "\n");
+        }
+        bw.write("ENDATA\n");
+    }
+
+    /**Returns the given number as written to model files, which
+     * (as Double.toString) reads back to the same double
+     *
+     * @param d
+     * @return
+     */
+    private static String _format(double d)
+    {
+        if(d == Math.rint(d) && Math.abs(d) < 1e15)
+            return String.valueOf((long)d);
+        return Double.toString(d);
+    }
+
+    /* Reading */
+
+    /**Reads an LP file written by _writeLP
+     *
+     * @param filename
+     * @return
+     * @throws IOException
+     */
+    private static ParsedModel _readLP(String filename) throws IOException
+    {
+        ParsedModel model = new ParsedModel();
+        String section = null;
+        StringBuilder statement = new StringBuilder();
+        Map<Integer, Double> objective = new HashMap<>();
+        try(BufferedReader br = new BufferedReader(new InputStreamReader(
+                new FileInputStream(filename), StandardCharsets.UTF_8))){
+            String line;
+            while((line = br.readLine()) != null){
+                int commentIdx = line.indexOf('\\');
+                if(commentIdx >= 0)
+                    line = line.substring(0, commentIdx);
+                String trimmed = line.trim();
+                if(trimmed.isEmpty())
+                    continue;
+                String keyword = trimmed.toLowerCase();
+                String nextSection = null;
+                if(keyword.equals("maximize") || keyword.equals("maximum") || keyword.equals("max")){
+                    model.maximize = true;
+                    nextSection = "obj";
+                } else if(keyword.equals("minimize") || keyword.equals("minimum") || keyword.equals("min")){
+                    model.maximize = false;
+                    nextSection = "obj";
+                } else if(keyword.equals("subject to") || keyword.equals("st") || keyword.equals("s.t.")){
+                    nextSection = "st";
+                } else if(keyword.equals("bounds")){
+                    nextSection = "bounds";
+                } else if(keyword.equals("binary") || keyword.equals("binaries")){
+                    nextSection = "binary";
+                } else if(keyword.equals("end")){
+                    nextSection = "end";
+                }
+
+                //A statement runs until the next label (or section)
+                boolean startsStatement = trimmed.matches("^[A-Za-z_][\\w.]*:.*");
+                if(nextSection != null || startsStatement || "bounds".equals(section)){
+                    _parseLPStatement(model, section, statement.toString(), objective);
+                    statement = new StringBuilder();
+                }
+                if(nextSection != null){
+                    section = nextSection;
+                    continue;
+                }
+                if("binary".equals(section)){
+                    for(String name : trimmed.split("\\s+"))
+                        model.varIdx(name);
+                } else {
+                    statement.append(' ').append(trimmed);
+                }
+            }
+        }
+        _parseLPStatement(model, section, statement.toString(), objective);
+        model.objective = new double[model.numVars];
+        for(Map.Entry<Integer, Double> term : objective.entrySet())
+            model.objective[term.getKey()] = term.getValue();
+        return model;
+    }
+
+    /**Parses a single LP statement -- the objective, a constraint,
+     * or a bound -- of the given section into the given model
+     *
+     * @param model
+     * @param section
+     * @param statement
+     * @param objective
+     */
+    private static void _parseLPStatement(ParsedModel model, String section,
+                                          String statement, Map<Integer, Double> objective)
+    {
+        statement = statement.trim();
+        if(section == null || statement.isEmpty())
+            return;
+        int labelIdx = statement.indexOf(':');
+        if(labelIdx >= 0)
+            statement = statement.substring(labelIdx + 1).trim();
+
+        if(section.equals("bounds")){
+            //Only fixed bounds (x = v) are written
+            String[] parts = statement.split("\\s*=\\s*");
+            if(parts.length == 2)
+                model.fixedVars.put(model.varIdx(parts[0].trim()), Double.parseDouble(parts[1]) > 0.5);
+            return;
+        }
+
+        String expr = statement;
+        char sense = 0;
+        double rhs = 0.0;
+        if(section.equals("st")){
+            int senseIdx = -1, senseLen = 1;
+            for(String op : new String[]{">=", "<=", "=<", "=>", "=", ">", "<"}){
+                senseIdx = statement.indexOf(op);
+                if(senseIdx >= 0){
+                    senseLen = op.length();
+                    sense = op.contains(">") ? BufferedILPBackend.SENSE_GE :
+                            op.contains("<") ? BufferedILPBackend.SENSE_LE : BufferedILPBackend.SENSE_EQ;
+                    break;
+                }
+            }
+            expr = statement.substring(0, senseIdx);
+            rhs = Double.parseDouble(statement.substring(senseIdx + senseLen).trim());
+        }
+
+        //Terms are [sign] [coeff] name
+        List<Integer> indices = new ArrayList<>();
+        List<Double> coeffs = new ArrayList<>();
+        double sign = 1.0;
+        Double coeff = null;
+        Matcher tokens = LP_TOKEN.matcher(expr);
+        while(tokens.find()){
+            String token = tokens.group();
+            if(token.equals("+") || token.equals("-")){
+                sign = token.equals("-") ? -1.0 : 1.0;
+            } else if(Character.isDigit(token.charAt(0)) || token.charAt(0) == '.'){
+                coeff = Double.parseDouble(token);
+            } else {
+                indices.add(model.varIdx(token));
+                coeffs.add(sign * (coeff == null ? 1.0 : coeff));
+                sign = 1.0;
+                coeff = null;
+            }
+        }
+
+        if(section.equals("obj")){
+            for(int k=0; k<indices.size(); k++)
+                objective.merge(indices.get(k), coeffs.get(k), Double::sum);
+        } else {
+            int[] indexArr = new int[indices.size()];
+            double[] coeffArr = new double[coeffs.size()];
+            for(int k=0; k<indexArr.length; k++){
+                indexArr[k] = indices.get(k);
+                coeffArr[k] = coeffs.get(k);
+            }
+            model.addConstraint(indexArr, coeffArr, sense, rhs);
+        }
+    }
+
+    /**Reads a (free) MPS file written by _writeMPS
+     *
+     * @param filename
+     * @return
+     * @throws IOException
+     */
+    private static ParsedModel _readMPS(String filename) throws IOException
+    {
+        ParsedModel model = new ParsedModel();
+        Map<String, Integer> rowIdx = new HashMap<>();
+        List<Character> rowSenses = new ArrayList<>();
+        List<List<Integer>> rowIndices = new ArrayList<>();
+        List<List<Double>> rowCoeffs = new ArrayList<>();
+        List<Double> rowRhs = new ArrayList<>();
+        Map<Integer, Double> objective = new HashMap<>();
+        String objRow = null, section = null;
+        try(BufferedReader br = new BufferedReader(new InputStreamReader(
+                new FileInputStream(filename), StandardCharsets.UTF_8))){
+            String line;
+            while((line = br.readLine()) != null){
+                if(line.startsWith("*") || line.trim().isEmpty())
+                    continue;
+                String[] tokens = line.trim().split("\\s+");
+                if(!Character.isWhitespace(line.charAt(0))){
+                    section = tokens[0];
+                    continue;
+                }
+                switch(section){
+                    case "OBJSENSE": model.maximize = tokens[0].startsWith("MAX");
+                        break;
+                    case "ROWS":
+                        if(tokens[0].equals("N")){
+                            objRow = tokens[1];
+                        } else {
+                            rowIdx.put(tokens[1], rowSenses.size());
+                            rowSenses.add(tokens[0].equals("E") ? BufferedILPBackend.SENSE_EQ :
+                                          tokens[0].equals("G") ? BufferedILPBackend.SENSE_GE :
+                                                                  BufferedILPBackend.SENSE_LE);
+                            rowIndices.add(new ArrayList<>());
+                            rowCoeffs.add(new ArrayList<>());
+                            rowRhs.add(0.0);
+                        }
+                        break;
+                    case "COLUMNS":
+                        if(tokens.length > 1 && tokens[1].contains("MARKER"))
+                            break;
+                        int varIdx = model.varIdx(tokens[0]);
+                        for(int t=1; t+1<tokens.length; t+=2){
+                            double coeff = Double.parseDouble(tokens[t+1]);
+                            if(tokens[t].equals(objRow)){
+                                objective.merge(varIdx, coeff, Double::sum);
+                            } else {
+                                int r = rowIdx.get(tokens[t]);
+                                rowIndices.get(r).add(varIdx);
+                                rowCoeffs.get(r).add(coeff);
+                            }
+                        }
+                        break;
+                    case "RHS":
+                        for(int t=1; t+1<tokens.length; t+=2)
+                            if(rowIdx.containsKey(tokens[t]))
+                                rowRhs.set(rowIdx.get(tokens[t]), Double.parseDouble(tokens[t+1]));
+                        break;
+                    case "BOUNDS":
+                        if(tokens[0].equals("FX"))
+                            model.fixedVars.put(model.varIdx(tokens[2]), Double.parseDouble(tokens[3]) > 0.5);
+                        else
+                            model.varIdx(tokens[2]);
+                        break;
+                }
+            }
+        }
+        model.objective = new double[model.numVars];
+        for(Map.Entry<Integer, Double> term : objective.entrySet())
+            model.objective[term.getKey()] = term.getValue();
+        for(int r=0; r<rowSenses.size(); r++){
+            int[] indices = new int[rowIndices.get(r).size()];
+            double[] coeffs = new double[indices.length];
+            for(int k=0; k<indices.length; k++){
+                indices[k] = rowIndices.get(r).get(k);
+                coeffs[k] = rowCoeffs.get(r).get(k);
+            }
+            model.addConstraint(indices, coeffs, rowSenses.get(r), rowRhs.get(r));
+        }
+        return model;
+    }
+
+    /**A program as read from a file, before it's given to a
+     * backend; variables are indexed by their order of appearance
+     * (which, for the files this class writes, is x0..xN-1)
+     */
+    private static class ParsedModel
+    {
+        boolean maximize = false;
+        int numVars = 0;
+        double[] objective;
+        Map<String, Integer> varIndices = new HashMap<>();
+        List<int[]> constrIndices = new ArrayList<>();
+        List<double[]> constrCoeffs = new ArrayList<>();
+        StringBuilder constrSenses = new StringBuilder();
+        List<Double> constrRhs = new ArrayList<>();
+        Map<Integer, Boolean> fixedVars = new LinkedHashMap<>();
+
+        /**Returns the index of the named variable, adding it if new;
+         * names of the form xN are given index N
+         *
+         * @param name
+         * @return
+         */
+        int varIdx(String name)
+        {
+            Integer idx = varIndices.get(name);
+            if(idx == null){
+                idx = name.matches("x\\d+") ? Integer.parseInt(name.substring(1)) : numVars;
+                varIndices.put(name, idx);
+                numVars = Math.max(numVars, idx + 1);
+            }
+            return idx;
+        }
+
+        void addConstraint(int[] indices, double[] coeffs, char sense, double rhs)
+        {
+            constrIndices.add(indices);
+            constrCoeffs.add(coeffs);
+            constrSenses.append(sense);
+            constrRhs.add(rhs);
+        }
+    }
+}
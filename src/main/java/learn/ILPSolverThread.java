@@ -1,45 +1,74 @@
 package learn;
 
-import edu.illinois.cs.cogcomp.lbjava.infer.GurobiHook;
-import gurobi.GRB;
-import gurobi.GRBEnv;
-import gurobi.GRBException;
 import structures.BoundingBox;
 import structures.Document;
 import structures.Mention;
 import utilities.Logger;
 
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 /**Implementation of the ILP solver used for multithreaded coreference
- * inference, which wraps the CogComp ILP solver;
+ * inference, which wraps an ILPBackend (Gurobi, by default); each
+ * instance solves one document, run as a task on ILPInference's pool;
  * large sections of code borrowed from [Dan's group][link].
  * [link]: https://github.com/xiaoling/wikifier/blob/master/src/edu/illinois/cs/cogcomp/lbj/coref/decoders/ILPDecoder.java
  */
-public class ILPSolverThread extends Thread
+public class ILPSolverThread implements Runnable
 {
+    private static final double MIN_SOLVE_SEC = 1.0;
+    private static final double LAZY_RESERVE_FRAC = 0.25;
+    private static final double FALLBACK_RESERVE_FRAC = 0.25;
+    private static final double EXACT_BUDGET_FRAC = 0.5;
+
     private String _docID;
     private List<Mention> _mentionList;
     private List<BoundingBox> _boxList;
     private ILPInference.InferenceType _infType;
+    //The mention count relation coefficients are normalized by: the
+    //document's, even when solving one of its components
+    private int _numDocMentions;
     private int _solverThreads;
 
     private Map<String, Integer> _fixedRelationLinks, _fixedGroundingLinks, _fixedVisualMentions;
-    private Map<String, double[]> _relScores, _cardScores;
-    private Map<String, Double> _affScores, _nonvisScores;
+    private ScoreTable.DocumentScores _scores;
     private Map<String, Integer> _relationGraph, _groundingGraph, _visualGraph;
 
-    private edu.illinois.cs.cogcomp.lbjava.infer.ILPSolver _solver;
+    private ILPBackend _solver;
+    private ILPBackend.BackendType _backendType;
+
+    //Variables an earlier stage of sequential inference left in the
+    //solver, which run_joint reuses (null when there are none)
+    private int[][][] _stageRelationIndices;
+    private int[][] _stageGroundingIndices, _stageCardinalityIndices;
     private boolean _foundSolution;
     private boolean _fallbackSolution;
+    private boolean _incumbentSolution;
+
+    //The wall-clock budget for the whole document, and
+    //the time at which it runs out (once running)
+    private double _timeLimitSec;
+    private long _deadline;
+    private ModelExporter _modelExporter;
+
+    //What solving this document took, the start of the current
+    //program's build, and the variables already measured
+    private DocumentMetrics _metrics;
+    private long _buildStart;
+    private int _numMeasuredVars;
 
     private boolean _includeSubset;
     private boolean _includeTypeConstraint;
     private boolean _includeBoxExigence;
+    private boolean _lazyTransitivity;
+    private boolean _decompose;
+    private boolean _warmStart;
+    private boolean _argmaxFastPath;
+    private int _exactMaxMentions, _exactMaxBoxes;
     private boolean _onlyKeepPositiveLinks;
     private int _maxRelationLabel;
 
@@ -47,54 +76,59 @@ public class ILPSolverThread extends Thread
 
     /**Constructor for relation inference
      *
-     * @param mentionList
+     * @param scores
      * @param solverThreads
      */
-    public ILPSolverThread(List<Mention> mentionList, int solverThreads)
+    public ILPSolverThread(ScoreTable.DocumentScores scores, int solverThreads)
     {
-        _init(mentionList, null, ILPInference.InferenceType.RELATION, solverThreads);
+        _init(scores, ILPInference.InferenceType.RELATION, solverThreads);
     }
 
     /**Constructor for grounding and joint inference
      *
-     * @param mentionList
-     * @param boxList
+     * @param scores
      * @param infType
      * @param solverThreads
      */
-    public ILPSolverThread(List<Mention> mentionList, List<BoundingBox> boxList,
+    public ILPSolverThread(ScoreTable.DocumentScores scores,
                            ILPInference.InferenceType infType, int solverThreads)
     {
-        _init(mentionList, boxList, infType, solverThreads);
+        _init(scores, infType, solverThreads);
     }
 
-    /**Initializes all the appropriate variables; assumes various sets
-     * are going to be called before a thread is actually executed
+    /**Initializes all the appropriate variables; the thread's mentions
+     * and boxes are those of the given document scores, in their index
+     * order; assumes various sets are going to be called before a thread
+     * is actually executed
      *
-     * @param mentionList
-     * @param boxList
+     * @param scores
      * @param infType
      * @param solverThreads
      */
-    private void _init(List<Mention> mentionList, List<BoundingBox> boxList,
+    private void _init(ScoreTable.DocumentScores scores,
                        ILPInference.InferenceType infType, int solverThreads)
     {
-        _mentionList = mentionList;
-        _docID = _mentionList.get(0).getDocID();
-        if(boxList != null)
-            _boxList = boxList;
+        _scores = scores;
+        _docID = _scores.getDocID();
+        _mentionList = _scores.getMentionList();
+        _boxList = _scores.getBoxList();
+        _numDocMentions = _mentionList.size();
         _infType = infType;
         _solverThreads = solverThreads;
 
         _fixedRelationLinks = new HashMap<>();
         _fixedGroundingLinks = new HashMap<>();
         _fixedVisualMentions = new HashMap<>();
-        _relScores = new HashMap<>(); _nonvisScores = new HashMap<>();
-        _cardScores = new HashMap<>(); _affScores = new HashMap<>();
 
         _includeSubset = true;
         _includeTypeConstraint = false;
         _includeBoxExigence = true;
+        _lazyTransitivity = false;
+        _decompose = false;
+        _warmStart = false;
+        _argmaxFastPath = false;
+        _exactMaxMentions = -1;
+        _exactMaxBoxes = -1;
         _onlyKeepPositiveLinks =  false;
         _maxRelationLabel = 3;
         _mentionCatDict = new HashMap<>();
@@ -103,26 +137,31 @@ public class ILPSolverThread extends Thread
         _relationGraph = new HashMap<>(); _groundingGraph = new HashMap<>();
         _visualGraph = new HashMap<>();
         _foundSolution = false; _fallbackSolution = false;
+        _incumbentSolution = false;
+        _timeLimitSec = BufferedILPBackend.DEFAULT_TIME_LIMIT_SEC;
+        _deadline = -1;
+        _modelExporter = null;
+        _metrics = null;
+        _buildStart = -1;
+        _numMeasuredVars = 0;
         _solverThreads = solverThreads;
-        _resetSolver();
+        _solver = null;
+        _backendType = ILPBackend.BackendType.GUROBI;
     }
 
-    /**Sets up the solver; must be run again for
-     * settings like relation-after-grounding
+    /**Sets up the solver, disposing of any previous one; must be
+     * run again for settings like relation-after-grounding
      */
     private void _resetSolver()
     {
-        GRBEnv gurobiEnv = null;
-        try {
-            gurobiEnv = new GRBEnv("gurobi.log");
-            gurobiEnv.set(GRB.IntParam.Threads, _solverThreads);
-            gurobiEnv.set(GRB.IntParam.OutputFlag, 0);
-            gurobiEnv.set(GRB.DoubleParam.TimeLimit, 600);
-        } catch(GRBException grEx){
-            Logger.log(grEx);
-        }
-        _solver = new GurobiHook(gurobiEnv);
+        if(_solver != null)
+            _solver.dispose();
+        _solver = ILPBackend.create(_backendType, _solverThreads);
         _solver.setMaximize(true);
+        _numMeasuredVars = 0;
+        _stageRelationIndices = null;
+        _stageGroundingIndices = null;
+        _stageCardinalityIndices = null;
     }
 
     /**
@@ -134,6 +173,12 @@ public class ILPSolverThread extends Thread
         return _docID;
     }
 
+    /**Returns the number of threads this solver was given
+     *
+     * @return
+     */
+    public int getSolverThreads(){return _solverThreads;}
+
     /**Whether ILP inference found a solution
      *
      * @return
@@ -146,6 +191,21 @@ public class ILPSolverThread extends Thread
      */
     public boolean isFallbackSolution(){return _fallbackSolution;}
 
+    /**Whether any part of the solution is the best incumbent the
+     * solver had when the time budget ran out, rather than a
+     * proven optimum
+     *
+     * @return
+     */
+    public boolean isIncumbentSolution(){return _incumbentSolution;}
+
+    /**Returns what solving this document took (null
+     * until the thread has run)
+     *
+     * @return
+     */
+    public DocumentMetrics getMetrics(){return _metrics;}
+
 
     /* Setup Methods */
 
@@ -210,49 +270,308 @@ public class ILPSolverThread extends Thread
         _includeBoxExigence = false;
     }
 
-    /**Adds the relation scores to the solver thread
-     *
-     * @param relationScores
+    /**Specifies that relation transitivity constraints should be
+     * added lazily: the program is first solved without them, and
+     * only the constraints for triples the solution violates are
+     * added before re-solving, until no triple is violated. Since the
+     * final solution is optimal under a subset of the constraints and
+     * satisfies the rest, it is optimal for the full program
+     */
+    public void useLazyTransitivity()
+    {
+        _lazyTransitivity = true;
+    }
+
+    /**Specifies that, before solving, the document's mentions should
+     * be partitioned into components that cannot interact -- where
+     * every link between components is confidently null -- and each
+     * component solved as its own (smaller) program
      */
-    public void setRelationScores(Map<String, double[]> relationScores)
+    public void decompose()
     {
-        _relScores = relationScores;
+        _decompose = true;
     }
 
-    /**Adds the cardinality scores to the solver thread
+    /**Specifies that solves should start from a greedy solution
+     * (see GreedyAssignment), such that the solver has a good
+     * incumbent from the outset
+     */
+    public void useWarmStart()
+    {
+        _warmStart = true;
+    }
+
+    /**Specifies that, before building a program, the assignment taking
+     * the best value for each group of variables independently should
+     * be checked against the program's constraints, and accepted without
+     * solving if it satisfies them all
+     */
+    public void useArgmaxFastPath()
+    {
+        _argmaxFastPath = true;
+    }
+
+    /**Specifies that programs over at most maxMentions mentions (and,
+     * where they include groundings, at most maxBoxes boxes) should be
+     * solved exactly by enumeration (see ExactEnumerator), without
+     * building them for the solver
      *
-     * @param cardinalityScores
+     * @param maxMentions
+     * @param maxBoxes
      */
-    public void setCardinalityScores(Map<String, double[]> cardinalityScores)
+    public void useExactEnumeration(int maxMentions, int maxBoxes)
     {
-        _cardScores = cardinalityScores;
+        _exactMaxMentions = maxMentions;
+        _exactMaxBoxes = maxBoxes;
     }
 
-    /**Adds the affinity scores to the solver thread
+    /**Specifies which solver backend to use (Gurobi, by default)
      *
-     * @param affinityScores
+     * @param backendType
      */
-    public void setAffinityScores(Map<String, double[]> affinityScores)
+    public void setBackendType(ILPBackend.BackendType backendType)
     {
-        for(String key : affinityScores.keySet())
-            if(affinityScores.get(key).length < 2)
-                System.out.println(key);
+        _backendType = backendType;
+    }
 
-        affinityScores.forEach((k, v) -> _affScores.put(k, affinityScores.get(k)[1]));
+    /**Sets the wall-clock budget, in seconds, for solving this document,
+     * shared by all of its solves (600, by default), less what joint
+     * inference holds back for its fallback; a solve that runs out of
+     * budget keeps the solver's best incumbent, and solves begun with
+     * nothing left are still given MIN_SOLVE_SEC
+     *
+     * @param timeLimitSec
+     */
+    public void setTimeLimit(double timeLimitSec)
+    {
+        _timeLimitSec = timeLimitSec;
     }
 
-    public void setNonvisScores(Map<String, Double> nonvisScores)
+    /**Specifies that the programs this solver builds should be
+     * given to the given exporter once solved (which decides
+     * which of them to write)
+     *
+     * @param modelExporter
+     */
+    public void exportModels(ModelExporter modelExporter)
     {
-        _nonvisScores = nonvisScores;
+        _modelExporter = modelExporter;
     }
 
     /* Run Methods */
 
     /**
      * Sets up and runs the ILP solver based on the
-     * internal inference type
+     * internal inference type, releasing the solver
+     * when done
+     */
+    public void run()
+    {
+        long runStart = System.currentTimeMillis();
+        if(_deadline < 0)
+            _deadline = runStart + (long)(_timeLimitSec * 1000);
+        _metrics = new DocumentMetrics(_docID, _infType, _backendType,
+                _mentionList.size(), _boxList.size());
+        try {
+            if(_decompose){
+                List<List<Integer>> components = _getComponents();
+                if(components.size() > 1){
+                    _runComponents(components);
+                    return;
+                }
+            }
+
+            _resetSolver();
+            _run();
+        } finally {
+            if(_solver != null)
+                _solver.dispose();
+            _solver = null;
+            _metrics.setOutcome(_foundSolution, !_incumbentSolution, _fallbackSolution,
+                    (System.currentTimeMillis() - runStart) / 1000.0);
+        }
+    }
+
+    /**Partitions the mentions into components that can be solved
+     * independently, where mentions i and j are joined if either
+     * i->j or j->i has a non-null argmax (or a fixed non-null label).
+     * Links between components then take null in the full program's
+     * optimum: null scores at least as well as any other label for
+     * such links, and null links leave every relation, joint, and
+     * visual constraint satisfiable. Components are weighed as parts of
+     * the document (see _numDocMentions), so their optima together are
+     * the document's. Only relation types are partitioned: without
+     * relations, every mention would be its own component, and a
+     * program per mention costs more than it saves. Box exigence couples
+     * all mentions to all boxes, so grounding types with exigence on
+     * (and boxes present) aren't partitioned either. Lexical types aren't a partition: the type constraint
+     * only restricts which boxes a mention may take, so mentions of
+     * incompatible types may still be coreferent (sharing no boxes),
+     * and are only separated when their links are confidently null
+     *
+     * @return
      */
-    public void run() {
+    private List<List<Integer>> _getComponents()
+    {
+        int numMentions = _mentionList.size();
+        boolean isGroundingType = ILPInference.InferenceType.isGroundingType(_infType);
+        if(!ILPInference.InferenceType.isRelationType(_infType) ||
+           isGroundingType && _includeBoxExigence && !_boxList.isEmpty())
+            return Collections.singletonList(new ArrayList<>());
+
+        //Union-find over the mentions, with path halving
+        int[] parents = new int[numMentions];
+        for(int i=0; i<numMentions; i++)
+            parents[i] = i;
+        for(int i=0; i<numMentions; i++){
+            Mention m_i = _mentionList.get(i);
+            for(int j=i+1; j<numMentions; j++){
+                Mention m_j = _mentionList.get(j);
+                Integer fixed_ij = _fixedRelationLinks.get(Document.getMentionPairStr(m_i, m_j));
+                Integer fixed_ji = _fixedRelationLinks.get(Document.getMentionPairStr(m_j, m_i));
+                boolean linked = _scores.getRelationLabel(i, j) > 0 ||
+                                 _scores.getRelationLabel(j, i) > 0 ||
+                                 fixed_ij != null && fixed_ij > 0 ||
+                                 fixed_ji != null && fixed_ji > 0;
+                if(linked){
+                    int root_i = GreedyAssignment.findRoot(parents, i);
+                    parents[root_i] = GreedyAssignment.findRoot(parents, j);
+                }
+            }
+        }
+
+        Map<Integer, List<Integer>> componentDict = new LinkedHashMap<>();
+        for(int i=0; i<numMentions; i++)
+            componentDict.computeIfAbsent(GreedyAssignment.findRoot(parents, i), r -> new ArrayList<>()).add(i);
+        List<List<Integer>> components = new ArrayList<>(componentDict.values());
+        components.sort((c1, c2) -> Integer.compare(c2.size(), c1.size()));
+        return components;
+    }
+
+    /**Solves each component as its own program -- in parallel, if this
+     * solver was given multiple threads -- and merges their graphs,
+     * with null links between components
+     *
+     * @param components
+     */
+    private void _runComponents(List<List<Integer>> components)
+    {
+        boolean isRelationType = ILPInference.InferenceType.isRelationType(_infType);
+        boolean needsSolve = ILPInference.InferenceType.isGroundingType(_infType) ||
+                             ILPInference.InferenceType.isVisualType(_infType);
+
+        //Singleton relation-only components have nothing to decide, and
+        //workers are only started for the components that do (such that
+        //a lone component runs on this thread, without a pool)
+        List<List<Integer>> solvedComponents = new ArrayList<>();
+        for(List<Integer> component : components)
+            if(needsSolve || component.size() > 1)
+                solvedComponents.add(component);
+        int numWorkers = Math.max(1, Math.min(_solverThreads, solvedComponents.size()));
+        int threadsPerWorker = Math.max(1, _solverThreads / numWorkers);
+        List<ILPSolverThread> componentSolvers = new ArrayList<>();
+        for(List<Integer> component : solvedComponents)
+            componentSolvers.add(_getSubSolver(_scores.subset(component), _infType, threadsPerWorker));
+        _runSubSolvers(componentSolvers, numWorkers);
+
+        //Every link starts out null, and the components fill in the rest
+        if(isRelationType){
+            for(Mention m_i : _mentionList)
+                for(Mention m_j : _mentionList)
+                    if(m_i != m_j)
+                        _relationGraph.put(Document.getMentionPairStr(m_i, m_j), 0);
+        }
+        _foundSolution = true;
+        for(ILPSolverThread ist : componentSolvers){
+            _foundSolution &= ist._foundSolution;
+            _fallbackSolution |= ist._fallbackSolution;
+            _incumbentSolution |= ist._incumbentSolution;
+            _metrics.merge(ist._metrics);
+            _relationGraph.putAll(ist._relationGraph);
+            _groundingGraph.putAll(ist._groundingGraph);
+            if(ILPInference.InferenceType.isVisualType(_infType))
+                _visualGraph.putAll(ist._visualGraph);
+        }
+    }
+
+    /**Runs the given solvers -- on numWorkers threads, if that's more
+     * than one -- and waits for them all to finish
+     *
+     * @param solvers
+     * @param numWorkers
+     */
+    private void _runSubSolvers(List<ILPSolverThread> solvers, int numWorkers)
+    {
+        if(numWorkers > 1 && solvers.size() > 1){
+            ExecutorService subSolverPool = Executors.newFixedThreadPool(numWorkers);
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                for(ILPSolverThread ist : solvers)
+                    futures.add(subSolverPool.submit(ist));
+                for(Future<?> future : futures){
+                    //A solver that threw simply has no solution
+                    try{future.get();}
+                    catch(ExecutionException exEx){
+                        Logger.log("ERROR: sub-solver for " + _docID +
+                                   " threw " + exEx.getCause());
+                    }
+                }
+            } catch(InterruptedException iEx) {
+                Logger.log(iEx);
+            } finally {
+                subSolverPool.shutdownNow();
+            }
+        } else {
+            for(ILPSolverThread ist : solvers)
+                ist.run();
+        }
+    }
+
+    /**Returns a solver for the given scores (this document's, or
+     * a component's) and inference type, with this solver's settings
+     * and the remainder of its time budget
+     *
+     * @param scores
+     * @param infType
+     * @param solverThreads
+     * @return
+     */
+    private ILPSolverThread _getSubSolver(ScoreTable.DocumentScores scores,
+                                          ILPInference.InferenceType infType, int solverThreads)
+    {
+        ILPSolverThread ist = new ILPSolverThread(scores, infType, solverThreads);
+        ist._fixedRelationLinks = _fixedRelationLinks;
+        ist._fixedGroundingLinks = _fixedGroundingLinks;
+        ist._fixedVisualMentions = _fixedVisualMentions;
+        ist._includeSubset = _includeSubset;
+        ist._maxRelationLabel = _maxRelationLabel;
+        ist._numDocMentions = _numDocMentions;
+        ist._includeTypeConstraint = _includeTypeConstraint;
+        ist._mentionCatDict = _mentionCatDict;
+        ist._includeBoxExigence = _includeBoxExigence;
+        ist._onlyKeepPositiveLinks = _onlyKeepPositiveLinks;
+        ist._lazyTransitivity = _lazyTransitivity;
+        ist._warmStart = _warmStart;
+        ist._argmaxFastPath = _argmaxFastPath;
+        ist._exactMaxMentions = _exactMaxMentions;
+        ist._exactMaxBoxes = _exactMaxBoxes;
+        ist._backendType = _backendType;
+        ist._timeLimitSec = _timeLimitSec;
+        ist._deadline = _deadline;
+        ist._modelExporter = _modelExporter;
+        return ist;
+    }
+
+    /**Runs the ILP solver based on the internal inference type; joint
+     * inference holds back FALLBACK_RESERVE_FRAC of the remaining budget,
+     * such that falling back isn't begun with nothing left
+     */
+    private void _run() {
+        long docDeadline = _deadline;
+        boolean mayFallBack = ILPInference.InferenceType.isJointType(_infType) && !_fallbackSolution;
+        if(mayFallBack)
+            _deadline -= (long)(FALLBACK_RESERVE_FRAC * Math.max(0, _deadline - System.currentTimeMillis()));
+
         boolean includeVisual = false;
         switch (_infType) {
             case VISUAL: run_visual();
@@ -288,9 +607,11 @@ public class ILPSolverThread extends Thread
                 run_joint(includeVisual);
                 break;
             case RELATION_GROUNDING_MERGE:
-                //Run relation and grounding separately,
-                //add all grounding links to all coreferent mentions
+                //Run relation and grounding separately (the grounding
+                //program reads no relation variables, so it gets a model
+                //of its own), add all grounding links to all coreferent mentions
                 run_relation(false);
+                _resetSolver();
                 run_grounding(false);
                 for(int i=0; i<_mentionList.size(); i++){
                     Mention m_i = _mentionList.get(i);
@@ -331,17 +652,39 @@ public class ILPSolverThread extends Thread
         }
 
         //If we failed to find a joint solution, find solutions by doing joint
-        //rel/vis and ground/vis
-        if(ILPInference.InferenceType.isJointType(_infType) && !_foundSolution){
+        //rel/vis and ground/vis; the two are independent, so they're solved
+        //concurrently (splitting this solver's threads) on their own solvers,
+        //where relation's visual decisions are the ones kept (fallback solvers
+        //are marked as such from the outset, and never fall back themselves);
+        //both halves share the reserve held back from the joint solve
+        _deadline = docDeadline;
+        if(mayFallBack && !_foundSolution){
             _fallbackSolution = true;
             _relationGraph = new HashMap<>(); _groundingGraph = new HashMap<>();
-            _resetSolver();
+            _solver.dispose();
+            _solver = null;
+
             boolean includeVis = _infType != ILPInference.InferenceType.RELATION_GROUNDING;
-            run_grounding(includeVis);
-            boolean solvedGrounding = _foundSolution;
-            _resetSolver();
-            run_relation(includeVis);
-            _foundSolution &= solvedGrounding;
+            int groundingThreads = Math.max(1, _solverThreads / 2);
+            int relationThreads = Math.max(1, _solverThreads - groundingThreads);
+            List<ILPSolverThread> fallbackSolvers = Arrays.asList(
+                    _getSubSolver(_scores, includeVis ? ILPInference.InferenceType.VISUAL_GROUNDING :
+                            ILPInference.InferenceType.GROUNDING, groundingThreads),
+                    _getSubSolver(_scores, includeVis ? ILPInference.InferenceType.VISUAL_RELATION :
+                            ILPInference.InferenceType.RELATION, relationThreads));
+            for(ILPSolverThread ist : fallbackSolvers)
+                ist._fallbackSolution = true;
+            _runSubSolvers(fallbackSolvers, Math.min(2, _solverThreads));
+
+            _foundSolution = true;
+            for(ILPSolverThread ist : fallbackSolvers){
+                _foundSolution &= ist._foundSolution;
+                _incumbentSolution |= ist._incumbentSolution;
+                _metrics.merge(ist._metrics);
+                _relationGraph.putAll(ist._relationGraph);
+                _groundingGraph.putAll(ist._groundingGraph);
+                _visualGraph.putAll(ist._visualGraph);
+            }
         }
     }
 
@@ -352,11 +695,11 @@ public class ILPSolverThread extends Thread
      */
     private void run_visual()
     {
+        _buildStart = System.currentTimeMillis();
         int[] visualIndices = new int[_mentionList.size()];
         for (int i = 0; i < _mentionList.size(); i++) {
-            Mention m_i = _mentionList.get(i);
-            visualIndices[i] = _addVisualVariable_vis(m_i.getUniqueID());
-            _addVisualVariable_nonvis(m_i.getUniqueID(), visualIndices[i]);
+            visualIndices[i] = _addVisualVariable_vis(i);
+            _addVisualVariable_nonvis(i, visualIndices[i]);
         }
 
         //Add fixed visual links
@@ -370,25 +713,27 @@ public class ILPSolverThread extends Thread
      * Sets up and runs the ILP solver for relation inference
      */
     private void run_relation(boolean includeVisual) {
+        //If running relation inference alone, we want to
+        //the unmodified relation scores. Otherwise, the
+        //relation scores must be divided by the number of mentions
+        //so that each mention m_i has 0-1 confidence in being
+        //visual and 0-1 total confidence in all its relation decisions
+        double coeff = includeVisual ? 2.0 / (double)_numDocMentions : 1.0;
+        if(_argmaxFastPath && _trySolveByArgmax(true, false, includeVisual, coeff, 0.0, 0.0))
+            return;
+        if(_trySolveByEnumeration(true, false, includeVisual, coeff, 0.0, 0.0))
+            return;
+        _buildStart = System.currentTimeMillis();
+
         int[] visualIndices = new int[_mentionList.size()];
         int[][][] relationIndices =
                 new int[_mentionList.size()][_mentionList.size()][_maxRelationLabel +1];
         for (int i = 0; i < _mentionList.size(); i++) {
-            Mention m_i = _mentionList.get(i);
-
-            //If running relation inference alone, we want to
-            //the unmodified relation scores. Otherwise, the
-            //relation scores must be divided by the number of mentions
-            //so that each mention m_i has 0-1 confidence in being
-            //visual and 0-1 total confidence in all its relation decisions
-            double coeff = 1.0;
-
             //Add our predictions that this mention is visual or nonvisual
             //to the objective
             if(includeVisual){
-                coeff = 2.0 / (double)_mentionList.size();
-                visualIndices[i] = _addVisualVariable_vis(m_i.getUniqueID());
-                _addVisualVariable_nonvis(m_i.getUniqueID(), visualIndices[i]);
+                visualIndices[i] = _addVisualVariable_vis(i);
+                _addVisualVariable_nonvis(i, visualIndices[i]);
             }
 
             //Add the relation variables for the links from i to j
@@ -404,37 +749,45 @@ public class ILPSolverThread extends Thread
         //Add fixed relation links
         _addRelationConstraints_fixed(relationIndices);
 
-        //Add subset transitivity / entity consistency
-        _addRelationConstraints_transitivity(relationIndices);
+        //Add subset transitivity / entity consistency (unless
+        //we're adding them as they're violated, in solveGraph)
+        if(!_lazyTransitivity)
+            _addRelationConstraints_transitivity(relationIndices);
 
         //Solve the ILP
-        solveGraph(relationIndices, null, visualIndices);
+        _stageRelationIndices = relationIndices;
+        solveGraph(relationIndices, null, includeVisual ? visualIndices : null);
     }
 
     /**
      * Sets up and runs the ILP solver for grounding inference
      */
     private void run_grounding(boolean includeVisual) {
+        //Boxes are always normalized by the number of boxes in the list;
+        //cardinality is only normalized when we are predicting visual as well
+        double boxCoeff = 1.0 / (double)_boxList.size();
+        double cardCoeff = 1.0;
+        if(includeVisual){
+            boxCoeff *= 0.5;
+            cardCoeff = 0.5;
+        }
+        if(_argmaxFastPath && _trySolveByArgmax(false, true, includeVisual, 0.0, boxCoeff, cardCoeff))
+            return;
+        if(_trySolveByEnumeration(false, true, includeVisual, 0.0, boxCoeff, cardCoeff))
+            return;
+        _buildStart = System.currentTimeMillis();
+
         int[] visualIndices = new int[_mentionList.size()];
         int[] nonvisualIndices = new int[_mentionList.size()];
         int[][] groundingIndices = new int[_mentionList.size()][_boxList.size()];
         int[][] antiGroundingIndices = new int[_mentionList.size()][_boxList.size()];
         int[][] cardIndices = new int[_mentionList.size()][_boxList.size()+1];
         for (int i = 0; i < _mentionList.size(); i++) {
-            Mention m_i = _mentionList.get(i);
-
-            //Boxes are always normalized by the number of boxes in the list;
-            //cardinality is only normalized when we are predicting visual as well
-            double boxCoeff = 1.0 / (double)_boxList.size();
-            double cardCoeff = 1.0;
-
             //Add our predictions that this mention is visual or nonvisual
             //to the objective
             if(includeVisual){
-                boxCoeff *= 0.5;
-                cardCoeff = 0.5;
-                visualIndices[i] = _addVisualVariable_vis(m_i.getUniqueID());
-                nonvisualIndices[i] = _addVisualVariable_nonvis(m_i.getUniqueID(), visualIndices[i]);
+                visualIndices[i] = _addVisualVariable_vis(i);
+                nonvisualIndices[i] = _addVisualVariable_nonvis(i, visualIndices[i]);
             }
 
             //Add the grounding variables to the graph
@@ -460,47 +813,68 @@ public class ILPSolverThread extends Thread
             _addGroundingConstraints_category(groundingIndices, cardIndices);
 
         //Solve the ILP
-        solveGraph(null, groundingIndices, visualIndices);
+        _stageGroundingIndices = groundingIndices;
+        _stageCardinalityIndices = cardIndices;
+        solveGraph(null, groundingIndices, includeVisual ? visualIndices : null);
     }
 
     /**
      * Sets up and runs the ILP solver for combined inference
      */
     private void run_joint(boolean includeVisual) {
+        //For joint inference, we must normalize the relation scores to be in
+        //the 0-1 range and the box+card scores to be in the 0-1 range; adding visual
+        //does not require us to change these coefficients, as it simply makes
+        //the objective go from 0-2 per mention (equal weight on each task)
+        //to 0-3 per mention (equal weight on each task)
+        double relCoeff = 2.0 / (double)_numDocMentions;
+        double boxCoeff = 1.0 / (2.0 * (double)_boxList.size());
+        double cardCoeff = 0.5;
+        //boxCoeff *= 2.0;
+        //cardCoeff *= 2.0;
+        //relCoeff *= 2.0;
+        if(_argmaxFastPath && _trySolveByArgmax(true, true, includeVisual, relCoeff, boxCoeff, cardCoeff))
+            return;
+        if(_trySolveByEnumeration(true, true, includeVisual, relCoeff, boxCoeff, cardCoeff))
+            return;
+        _buildStart = System.currentTimeMillis();
+
+        //In sequential inference, the earlier stage's variables -- and the
+        //constraints among them -- are already in the solver; they're
+        //reused with the joint coefficients, and the earlier stage's
+        //decisions are fixed through their bounds
+        boolean reuseRelations = _stageRelationIndices != null;
+        boolean reuseGroundings = _stageGroundingIndices != null;
+
         int[] visualIndices = new int[_mentionList.size()];
         int[] nonvisualIndices = new int[_mentionList.size()];
-        int[][][] relationIndices =
+        int[][][] relationIndices = reuseRelations ? _stageRelationIndices :
                 new int[_mentionList.size()][_mentionList.size()][_maxRelationLabel +1];
-        int[][] groundingIndices = new int[_mentionList.size()][_boxList.size()];
+        int[][] groundingIndices = reuseGroundings ? _stageGroundingIndices :
+                new int[_mentionList.size()][_boxList.size()];
         int[][] antiGroundingIndices = new int[_mentionList.size()][_boxList.size()];
-        int[][] cardinalityIndices = new int[_mentionList.size()][_boxList.size() + 1];
+        int[][] cardinalityIndices = reuseGroundings ? _stageCardinalityIndices :
+                new int[_mentionList.size()][_boxList.size() + 1];
         for (int i = 0; i < _mentionList.size(); i++) {
-            Mention m_i = _mentionList.get(i);
-
-            //For joint inference, we must normalize the relation scores to be in
-            //the 0-1 range and the box+card scores to be in the 0-1 range; adding visual
-            //does not require us to change these coefficients, as it simply makes
-            //the objective go from 0-2 per mention (equal weight on each task)
-            //to 0-3 per mention (equal weight on each task)
-            double relCoeff = 2.0 / (double)_mentionList.size();
-            double boxCoeff = 1.0 / (2.0 * (double)_boxList.size());
-            double cardCoeff = 0.5;
-            //boxCoeff *= 2.0;
-            //cardCoeff *= 2.0;
-            //relCoeff *= 2.0;
-
             //Visual variables
             if(includeVisual){
-                visualIndices[i] = _addVisualVariable_vis(m_i.getUniqueID());
-                nonvisualIndices[i] = _addVisualVariable_nonvis(m_i.getUniqueID(), visualIndices[i]);
+                visualIndices[i] = _addVisualVariable_vis(i);
+                nonvisualIndices[i] = _addVisualVariable_nonvis(i, visualIndices[i]);
             }
 
             //Relation variables from i to j
-            _addRelationVariablesForMention(i, relCoeff, relationIndices);
+            if(reuseRelations)
+                _setRelationCoeffsForMention(i, relCoeff, relationIndices);
+            else
+                _addRelationVariablesForMention(i, relCoeff, relationIndices);
 
             //Grounding variables
-            _addGroundingVariablesForMention(i, boxCoeff, cardCoeff, groundingIndices,
-                    antiGroundingIndices, cardinalityIndices);
+            if(reuseGroundings)
+                _setGroundingCoeffsForMention(i, boxCoeff, cardCoeff, groundingIndices,
+                        cardinalityIndices);
+            else
+                _addGroundingVariablesForMention(i, boxCoeff, cardCoeff, groundingIndices,
+                        antiGroundingIndices, cardinalityIndices);
         }
 
         //Add grounded relation constraints
@@ -514,22 +888,229 @@ public class ILPSolverThread extends Thread
         }
 
         //Add fixed links
-        _addRelationConstraints_fixed(relationIndices);
-        _addGroundingConstraints_fixed(groundingIndices);
-
-        //Add subset transitivity / entity consistency
-        _addRelationConstraints_transitivity(relationIndices);
+        if(reuseRelations)
+            _fixRelationVariables(relationIndices);
+        else
+            _addRelationConstraints_fixed(relationIndices);
+        if(reuseGroundings)
+            _fixGroundingVariables(groundingIndices);
+        else
+            _addGroundingConstraints_fixed(groundingIndices);
+
+        //Add subset transitivity / entity consistency (unless
+        //we're adding them as they're violated, in solveGraph)
+        if(!_lazyTransitivity && !reuseRelations)
+            _addRelationConstraints_transitivity(relationIndices);
 
         //Given that we know these are gold boxes, we must
         //assign a box to at least one mention
-        if(_includeBoxExigence)
+        if(_includeBoxExigence && !reuseGroundings)
             _addGroundingConstraint_boxExigence(groundingIndices);
 
-        if(_includeTypeConstraint)
+        if(_includeTypeConstraint && !reuseGroundings)
             _addGroundingConstraints_category(groundingIndices, cardinalityIndices);
 
         //Solve the ILP
-        solveGraph(relationIndices, groundingIndices, visualIndices);
+        _stageRelationIndices = null;
+        _stageGroundingIndices = null;
+        _stageCardinalityIndices = null;
+        solveGraph(relationIndices, groundingIndices, includeVisual ? visualIndices : null);
+    }
+
+    /**Tries to solve the program without the solver: each group of
+     * variables (a link's labels, a mention's boxes and cardinality, a
+     * mention's visual decision) is set to its best value under the given
+     * objective coefficients, ignoring all constraints between groups. If
+     * that assignment satisfies every constraint (see ConstraintChecker),
+     * it is optimal for the full program and is stored as the solution,
+     * returning true; otherwise, returns false and stores nothing
+     *
+     * @param includeRelations
+     * @param includeGroundings
+     * @param includeVisual
+     * @param relCoeff
+     * @param boxCoeff
+     * @param cardCoeff
+     * @return
+     */
+    private boolean _trySolveByArgmax(boolean includeRelations, boolean includeGroundings,
+                                      boolean includeVisual, double relCoeff,
+                                      double boxCoeff, double cardCoeff)
+    {
+        int numMentions = _mentionList.size(), numBoxes = _boxList.size();
+        int[][] labels = null;
+        if(includeRelations){
+            labels = new int[numMentions][numMentions];
+            for(int i=0; i<numMentions; i++){
+                for(int j=0; j<numMentions; j++){
+                    if(i == j)
+                        continue;
+                    for(int y=1; y<=_maxRelationLabel; y++)
+                        if(_getRelationCoeff(i, j, y, relCoeff) > _getRelationCoeff(i, j, labels[i][j], relCoeff))
+                            labels[i][j] = y;
+                }
+            }
+        }
+
+        //A mention's best boxes are, for its best cardinality n, the n boxes
+        //with the most to gain over their anti-affinity
+        boolean[][] groundings = null;
+        if(includeGroundings){
+            groundings = new boolean[numMentions][numBoxes];
+            for(int i=0; i<numMentions; i++){
+                final double[] gains = new double[numBoxes];
+                List<Integer> boxIndices = new ArrayList<>();
+                for(int o=0; o<numBoxes; o++){
+                    gains[o] = _getAffinityCoeff(i, o, boxCoeff) - _getAntiAffinityCoeff(i, o);
+                    boxIndices.add(o);
+                }
+                boxIndices.sort((o1, o2) -> Double.compare(gains[o2], gains[o1]));
+                int bestN = 0;
+                double gain = 0.0;
+                double bestScore = _getCardinalityCoeff(i, 0, cardCoeff);
+                for(int n=1; n<=numBoxes; n++){
+                    gain += gains[boxIndices.get(n-1)];
+                    double score = gain + _getCardinalityCoeff(i, n, cardCoeff);
+                    if(score > bestScore){
+                        bestScore = score;
+                        bestN = n;
+                    }
+                }
+                for(int n=0; n<bestN; n++)
+                    groundings[i][boxIndices.get(n)] = true;
+            }
+        }
+
+        boolean[] visual = null;
+        if(includeVisual){
+            visual = new boolean[numMentions];
+            for(int i=0; i<numMentions; i++)
+                visual[i] = _getVisualCoeff(i, true) >= _getVisualCoeff(i, false);
+        }
+
+        if(!_getChecker(includeGroundings).isFeasible(labels, groundings, visual))
+            return false;
+        _storeAssignment(labels, groundings, visual);
+        _metrics.addArgmaxSolution();
+        return true;
+    }
+
+    /**Tries to solve the program without the solver, by enumeration (see
+     * ExactEnumerator), if the document is small enough; returns true,
+     * having stored the optimum -- or, if the program is infeasible, with
+     * no solution found -- if it was, and false otherwise, including when
+     * the search doesn't finish within EXACT_BUDGET_FRAC of the remaining
+     * budget (leaving the rest for the solver)
+     *
+     * @param includeRelations
+     * @param includeGroundings
+     * @param includeVisual
+     * @param relCoeff
+     * @param boxCoeff
+     * @param cardCoeff
+     * @return
+     */
+    private boolean _trySolveByEnumeration(boolean includeRelations, boolean includeGroundings,
+                                           boolean includeVisual, double relCoeff,
+                                           double boxCoeff, double cardCoeff)
+    {
+        int numMentions = _mentionList.size(), numBoxes = _boxList.size();
+        if(numMentions > Math.min(_exactMaxMentions, ILPInference.MAX_EXACT_MENTIONS) ||
+           includeGroundings && numBoxes > Math.min(_exactMaxBoxes, ILPInference.MAX_EXACT_BOXES))
+            return false;
+
+        //Gather the program's objective coefficients
+        double[][][] relationCoeffs = null;
+        if(includeRelations){
+            relationCoeffs = new double[numMentions][numMentions][_maxRelationLabel + 1];
+            for(int i=0; i<numMentions; i++)
+                for(int j=0; j<numMentions; j++)
+                    for(int y=0; y<=_maxRelationLabel && i != j; y++)
+                        relationCoeffs[i][j][y] = _getRelationCoeff(i, j, y, relCoeff);
+        }
+        double[][] affinityCoeffs = null, antiAffinityCoeffs = null, cardinalityCoeffs = null;
+        if(includeGroundings){
+            affinityCoeffs = new double[numMentions][numBoxes];
+            antiAffinityCoeffs = new double[numMentions][numBoxes];
+            cardinalityCoeffs = new double[numMentions][numBoxes + 1];
+            for(int i=0; i<numMentions; i++){
+                for(int o=0; o<numBoxes; o++){
+                    affinityCoeffs[i][o] = _getAffinityCoeff(i, o, boxCoeff);
+                    antiAffinityCoeffs[i][o] = _getAntiAffinityCoeff(i, o);
+                }
+                for(int n=0; n<=numBoxes; n++)
+                    cardinalityCoeffs[i][n] = _getCardinalityCoeff(i, n, cardCoeff);
+            }
+        }
+        double[][] visualCoeffs = null;
+        int[] fixedVisual = new int[numMentions];
+        if(includeVisual){
+            visualCoeffs = new double[numMentions][2];
+            for(int i=0; i<numMentions; i++){
+                visualCoeffs[i][0] = _getVisualCoeff(i, false);
+                visualCoeffs[i][1] = _getVisualCoeff(i, true);
+                Integer fixed = _fixedVisualMentions.get(_mentionList.get(i).getUniqueID());
+                fixedVisual[i] = fixed == null ? -1 : fixed;
+            }
+        }
+
+        ExactEnumerator enumerator = new ExactEnumerator(numMentions, numBoxes, _includeSubset,
+                relationCoeffs, affinityCoeffs, antiAffinityCoeffs, cardinalityCoeffs,
+                visualCoeffs, fixedVisual, _getChecker(includeGroundings));
+        long deadline = System.currentTimeMillis() +
+                (long)(EXACT_BUDGET_FRAC * Math.max(0, _deadline - System.currentTimeMillis()));
+        boolean solved = enumerator.solve(deadline);
+        if(enumerator.timedOut()){
+            Logger.logStatus("%s: enumeration ran out of time; solving the program", _docID);
+            return false;
+        }
+        _metrics.addExactSolution();
+        if(solved)
+            _storeAssignment(enumerator.getLabels(), enumerator.getGroundings(), enumerator.getVisual());
+        else
+            _foundSolution = false;
+        return true;
+    }
+
+    /**Returns a checker for the constraints of a program that includes
+     * relations and / or groundings (per includeGroundings)
+     *
+     * @param includeGroundings
+     * @return
+     */
+    private ConstraintChecker _getChecker(boolean includeGroundings)
+    {
+        return new ConstraintChecker(_mentionList, _boxList, _includeSubset,
+                includeGroundings && _includeBoxExigence,
+                includeGroundings && _includeTypeConstraint ? _mentionCatDict : null,
+                _fixedRelationLinks, _fixedGroundingLinks, _fixedVisualMentions);
+    }
+
+    /**Stores the given assignment as though the solver had found it,
+     * where any of labels, groundings, or visual may be null, when
+     * the program doesn't include those decisions
+     *
+     * @param labels
+     * @param groundings
+     * @param visual
+     */
+    private void _storeAssignment(int[][] labels, boolean[][] groundings, boolean[] visual)
+    {
+        int numMentions = _mentionList.size(), numBoxes = _boxList.size();
+        for(int i=0; i<numMentions; i++){
+            Mention m_i = _mentionList.get(i);
+            if(labels != null)
+                for(int j=0; j<numMentions; j++)
+                    if(i != j)
+                        _relationGraph.put(Document.getMentionPairStr(m_i, _mentionList.get(j)), labels[i][j]);
+            if(groundings != null)
+                for(int o=0; o<numBoxes; o++)
+                    _groundingGraph.put(Document.getMentionBoxStr(m_i, _boxList.get(o)),
+                            groundings[i][o] ? 1 : 0);
+            if(visual != null)
+                _visualGraph.put(m_i.getUniqueID(), visual[i] ? 1 : 0);
+        }
+        _foundSolution = true;
     }
 
     /**Calls the solver to solve the ILP graph and stores the graph(s)
@@ -539,13 +1120,33 @@ public class ILPSolverThread extends Thread
      */
     private void solveGraph(int[][][] relationIndices, int[][] groundingIndices, int[] visualIndices)
     {
+        if(_warmStart)
+            _setStart(relationIndices, groundingIndices, visualIndices);
+
+        long solveStart = System.currentTimeMillis();
         try {
-            _foundSolution = _solver.solve();
+            if(_lazyTransitivity && relationIndices != null)
+                _solveLazily(relationIndices);
+            else
+                _foundSolution = _solve(0.0);
         } catch (Exception ex) {
             Logger.log(ex);
+            _foundSolution = false;
         }
 
+        //Record the program's size and times, and hand
+        //the program (as last solved) to the exporter
+        double solveSec = (System.currentTimeMillis() - solveStart) / 1000.0;
+        _metrics.addProgram(_solver.getNumVariables() - _numMeasuredVars,
+                (solveStart - _buildStart) / 1000.0, solveSec, _solver.getGap());
+        _numMeasuredVars = _solver.getNumVariables();
+        if(_modelExporter != null && _modelExporter.shouldExport(_solver.getNumVariables(), solveSec))
+            _modelExporter.export((BufferedILPBackend)_solver, _docID, _infType, solveSec,
+                    !_foundSolution ? "none" : _solver.isOptimal() ? "optimal" : "incumbent");
+
         if(_foundSolution) {
+            if(!_solver.isOptimal())
+                _incumbentSolution = true;
             if(relationIndices != null)
                 _saveRelationGraph(relationIndices);
             if(groundingIndices != null)
@@ -555,29 +1156,191 @@ public class ILPSolverThread extends Thread
         }
     }
 
+    /**Solves the program with lazy transitivity: the constraints for
+     * violated triples are added and the program re-solved until the
+     * solution is consistent. These rounds hold back LAZY_RESERVE_FRAC
+     * of the remaining budget; if they run into it (or find no solution)
+     * first, the rows for every triple not yet added go in for a last
+     * solve with the reserve, since an inconsistent incumbent is no
+     * solution at all
+     *
+     * @param relationIndices
+     * @throws Exception
+     */
+    private void _solveLazily(int[][][] relationIndices) throws Exception
+    {
+        int numMentions = _mentionList.size();
+        double reserveSec = LAZY_RESERVE_FRAC * Math.max(0, _getRemainingSec());
+        boolean[][][] addedTriples = new boolean[numMentions][numMentions][numMentions];
+        int numRounds = 0, numTriples = 0;
+        _foundSolution = _solve(reserveSec);
+        List<int[]> violatedTriples = _foundSolution ? _getViolatedTriples(relationIndices) : null;
+        while(violatedTriples != null && !violatedTriples.isEmpty() &&
+              _getRemainingSec() > reserveSec){
+            numRounds++;
+            for(int[] triple : violatedTriples){
+                _addRelationConstraints_transitivity(relationIndices,
+                        triple[0], triple[1], triple[2]);
+                addedTriples[triple[0]][triple[1]][triple[2]] = true;
+            }
+            numTriples += violatedTriples.size();
+            _foundSolution = _solve(reserveSec);
+            violatedTriples = _foundSolution ? _getViolatedTriples(relationIndices) : null;
+        }
+        if(numRounds > 0)
+            Logger.logStatus("%s: added transitivity for %d triples over %d rounds",
+                    _docID, numTriples, numRounds);
+
+        if(violatedTriples == null || !violatedTriples.isEmpty()){
+            for(int i=0; i<numMentions; i++)
+                for(int j=i+1; j<numMentions; j++)
+                    for(int k=0; k<numMentions; k++)
+                        if(k != i && k != j && !addedTriples[i][j][k])
+                            _addRelationConstraints_transitivity(relationIndices, i, j, k);
+            _foundSolution = _solve(0.0);
+        }
+    }
+
+    /**Solves the program with whatever remains of the document's
+     * budget, less reserveSec (but no less than MIN_SOLVE_SEC),
+     * returning whether a solution was found
+     *
+     * @param reserveSec - Seconds of the budget to leave for later solves
+     * @return
+     * @throws Exception
+     */
+    private boolean _solve(double reserveSec) throws Exception
+    {
+        _solver.setTimeLimit(Math.max(MIN_SOLVE_SEC, _getRemainingSec() - reserveSec));
+        _metrics.addSolve();
+        return _solver.solve();
+    }
+
+    /**Attributes the constraints added since there were
+     * numConstrs to the given family
+     *
+     * @param family
+     * @param numConstrs
+     */
+    private void _countConstraints(DocumentMetrics.Family family, int numConstrs)
+    {
+        _metrics.addConstraints(family, _solver.getNumConstraints() - numConstrs);
+    }
+
+    /**Returns the seconds left in the document's budget
+     *
+     * @return
+     */
+    private double _getRemainingSec()
+    {
+        return (_deadline - System.currentTimeMillis()) / 1000.0;
+    }
+
+    /**Gives the solver the greedy solution as a start for the given
+     * (non-null) relation, grounding, and visual variables
+     *
+     * @param relationIndices
+     * @param groundingIndices
+     * @param visualIndices
+     */
+    private void _setStart(int[][][] relationIndices, int[][] groundingIndices, int[] visualIndices)
+    {
+        GreedyAssignment greedy = new GreedyAssignment(_scores, relationIndices != null,
+                groundingIndices != null, _maxRelationLabel, _includeBoxExigence,
+                _includeTypeConstraint ? _mentionCatDict : null, _fixedRelationLinks,
+                _fixedGroundingLinks, _fixedVisualMentions);
+        for(int i=0; i<_mentionList.size(); i++){
+            if(relationIndices != null){
+                for(int j=0; j<_mentionList.size(); j++){
+                    if(i == j)
+                        continue;
+                    for(int y=0; y<=_maxRelationLabel; y++)
+                        _solver.setStart(relationIndices[i][j][y], greedy.getRelationLabel(i, j) == y);
+                }
+            }
+            if(groundingIndices != null)
+                for(int o=0; o<_boxList.size(); o++)
+                    _solver.setStart(groundingIndices[i][o], greedy.isGround(i, o));
+            if(visualIndices != null)
+                _solver.setStart(visualIndices[i], greedy.isVisual(i));
+        }
+    }
+
     /* Variable Methods */
 
-    /**Adds a boolean relation variable to the solver, given the mention pair's ID,
-     * the label the variable is supposed to represent, the heterogeneous type cost,
-     * and the coefficient
+    /**Adds a boolean relation variable to the solver, given the mention indices
+     * of the link's end points, the label the variable is supposed to represent,
+     * and the coefficient; the variable stands for both the i->j link taking
+     * the label and the j->i link taking its inverse (see _getPairCoeff())
      *
-     * @param pairID    - Mention pair ID of the end points to this variable's link
+     * @param i         - Index of the link's first mention
+     * @param j         - Index of the link's second mention
      * @param label     - [0,3] label of the link this variable represents
      * @param coeff     - coefficient of this score (typically 1.0 or 2/|M|)
      * @return
      */
-    private int _addRelationVariable(String pairID, int label, double coeff)
+    private int _addRelationVariable(int i, int j, int label, double coeff)
+    {
+        return _solver.addBooleanVariable(_getPairCoeff(i, j, label, coeff));
+    }
+
+    /**Returns the objective coefficient of the variable for the i->j link
+     * taking the given label, which -- since null and coref are symmetric and
+     * subset and superset are inverses -- is also the variable for the j->i
+     * link taking the inverse label, and so carries both links' scores
+     *
+     * @param i
+     * @param j
+     * @param label
+     * @param coeff
+     * @return
+     */
+    private double _getPairCoeff(int i, int j, int label, double coeff)
+    {
+        return _getRelationCoeff(i, j, label, coeff) +
+               _getRelationCoeff(j, i, _getInverseLabel(label), coeff);
+    }
+
+    /**Returns the label the j->i link must take when
+     * the i->j link takes the given label
+     *
+     * @param label
+     * @return
+     */
+    private static int _getInverseLabel(int label)
+    {
+        switch(label){
+            case 2: return 3;
+            case 3: return 2;
+            default: return label;
+        }
+    }
+
+    /**Returns the objective coefficient of the i->j link taking
+     * the given label
+     *
+     * @param i
+     * @param j
+     * @param label
+     * @param coeff
+     * @return
+     */
+    private double _getRelationCoeff(int i, int j, int label, double coeff)
     {
         double score = 0.0;
-        if (_relScores.containsKey(pairID))
-            score = Math.max(0, coeff * _relScores.get(pairID)[label]);
-        return _solver.addBooleanVariable(score);
+        if (_scores.hasRelationScores(i, j))
+            score = Math.max(0, coeff * _scores.getRelationScore(i, j, label));
+        return score;
     }
 
     /**Adds the relation variables for the links between the mention
      * at the given index and all mentions between mIdx and
      * _mentionList.size()-1 using the given coefficient;
-     * implemented to avoid dup code in relation and joint inference
+     * implemented to avoid dup code in relation and joint inference.
+     * Each pair's variables are shared by both directions, such that
+     * relationIndices[j][mIdx][y] is the variable for relationIndices[mIdx][j]
+     * taking y's inverse (null and coref with themselves, subset with
+     * superset): the pair's links are symmetric by construction
      *
      * @param mIdx
      * @param coeff
@@ -585,95 +1348,145 @@ public class ILPSolverThread extends Thread
      */
     private void _addRelationVariablesForMention(int mIdx, double coeff, int[][][] relationIndices)
     {
-        Mention m_i = _mentionList.get(mIdx);
         for (int j = mIdx + 1; j < _mentionList.size(); j++) {
-            Mention m_j = _mentionList.get(j);
-
-            //Add boolean variables for each label, each direction
-            String id_ij = Document.getMentionPairStr(m_i, m_j);
-            String id_ji = Document.getMentionPairStr(m_j, m_i);
-
+            //Add a boolean variable for each label, shared by both directions
             for (int y = 0; y <= _maxRelationLabel; y++) {
-                relationIndices[mIdx][j][y] = _addRelationVariable(id_ij, y, coeff);
-                relationIndices[j][mIdx][y] = _addRelationVariable(id_ji, y, coeff);
+                relationIndices[mIdx][j][y] = _addRelationVariable(mIdx, j, y, coeff);
+                relationIndices[j][mIdx][_getInverseLabel(y)] = relationIndices[mIdx][j][y];
             }
 
             //Add pairwise relation constraints
-            _addRelationConstraints_pairwise(relationIndices[mIdx][j], relationIndices[j][mIdx]);
+            _addRelationConstraints_pairwise(relationIndices[mIdx][j]);
         }
     }
 
+    /**Sets the objective coefficients of the (existing) relation variables
+     * for the links between the mention at the given index and all
+     * mentions after it, using the given coefficient
+     *
+     * @param mIdx
+     * @param coeff
+     * @param relationIndices
+     */
+    private void _setRelationCoeffsForMention(int mIdx, double coeff, int[][][] relationIndices)
+    {
+        for (int j = mIdx + 1; j < _mentionList.size(); j++)
+            for (int y = 0; y <= _maxRelationLabel; y++)
+                _solver.setObjectiveCoeff(relationIndices[mIdx][j][y], _getPairCoeff(mIdx, j, y, coeff));
+    }
+
     /**Adds a boolean visual variable to the solver; given
-     * a mention's ID, returns the solver index for the variable
+     * a mention's index, returns the solver index for the variable
      * whose value is 1 when the mention is visual
      *
-     * @param mentionID
+     * @param mIdx
      * @return
      */
-    private int _addVisualVariable_vis(String mentionID)
+    private int _addVisualVariable_vis(int mIdx)
+    {
+        return _solver.addBooleanVariable(_getVisualCoeff(mIdx, true));
+    }
+
+    /**Returns the objective coefficient of the given mention being
+     * visual (or nonvisual)
+     *
+     * @param mIdx
+     * @param isVisual
+     * @return
+     */
+    private double _getVisualCoeff(int mIdx, boolean isVisual)
     {
         double score = 0.0;
-        if(_nonvisScores.containsKey(mentionID))
-            score = 1 - _nonvisScores.get(mentionID);
-        return _solver.addBooleanVariable(score);
+        if(_scores.hasNonvisScore(mIdx))
+            score = isVisual ? 1 - _scores.getNonvisScore(mIdx) : _scores.getNonvisScore(mIdx);
+        return score;
     }
 
     /**Adds a boolean visual variable to the solver; given
-     * a mention's ID and the _visual_ variable index, returns the solver
+     * a mention's index and the _visual_ variable index, returns the solver
      * index for a variable whose value is 1 when the mention is
      * _nonvisual_; also adds a constraint to enforce the
      * vis/nonvis relationship between the two variables
      *
-     * @param mentionID
+     * @param mIdx
      * @param visIdx
      * @return
      */
-    private int _addVisualVariable_nonvis(String mentionID, int visIdx)
+    private int _addVisualVariable_nonvis(int mIdx, int visIdx)
     {
-        double score = 0.0;
-        if(_nonvisScores.containsKey(mentionID))
-            score = _nonvisScores.get(mentionID);
-        int nonvisIdx = _solver.addBooleanVariable(score);
+        int numConstrs = _solver.getNumConstraints();
+        int nonvisIdx = _solver.addBooleanVariable(_getVisualCoeff(mIdx, false));
         _solver.addEqualityConstraint(new int[]{visIdx, nonvisIdx},
                 new double[]{1.0, 1.0}, 1.0);
+        _countConstraints(DocumentMetrics.Family.COMPLEMENT, numConstrs);
         return nonvisIdx;
     }
 
     /**Adds a boolean grounding variable, returning the
-     * variable's index; given pairID specifies the
-     * affinity score to look up when setting the
-     * boolean variable's coefficient
+     * variable's index; the given mention and box indices
+     * specify the affinity score to look up when setting
+     * the boolean variable's coefficient
+     *
+     * @param mIdx
+     * @param bIdx
+     * @param coeff
+     * @return
+     */
+    private int _addGroundingVariable_affinity(int mIdx, int bIdx, double coeff)
+    {
+        return _solver.addBooleanVariable(_getAffinityCoeff(mIdx, bIdx, coeff));
+    }
+
+    /**Returns the objective coefficient of the given mention being
+     * ground to the given box
      *
-     * @param pairID
+     * @param mIdx
+     * @param bIdx
+     * @param coeff
      * @return
      */
-    private int _addGroundingVariable_affinity(String pairID, double coeff)
+    private double _getAffinityCoeff(int mIdx, int bIdx, double coeff)
     {
         double score = 0.0;
-        if (_affScores.containsKey(pairID))
-            score = coeff * _affScores.get(pairID);
-        return _solver.addBooleanVariable(score);
+        if (_scores.hasAffinityScores(mIdx, bIdx))
+            score = coeff * _scores.getAffinityScore(mIdx, bIdx, 1);
+        return score;
+    }
+
+    /**Returns the objective coefficient of the given mention _not_
+     * being ground to the given box
+     *
+     * @param mIdx
+     * @param bIdx
+     * @return
+     */
+    private double _getAntiAffinityCoeff(int mIdx, int bIdx)
+    {
+        double score = 0.0;
+        if (_scores.hasAffinityScores(mIdx, bIdx))
+            score = 1 - _scores.getAffinityScore(mIdx, bIdx, 1);
+        return score / (double)_boxList.size();
     }
 
     /**Adds the anti-affinity variable, which is 1 when the affinity
      * variable is 0 and 0 when affinity is 1
      *
-     * @param pairID
+     * @param mIdx
+     * @param bIdx
      * @param affinityIdx
      * @return
      */
-    private int _addGroundingVariable_antiAffinity(String pairID, int affinityIdx)
+    private int _addGroundingVariable_antiAffinity(int mIdx, int bIdx, int affinityIdx)
     {
-        double score = 0.0;
-        if (_affScores.containsKey(pairID))
-            score = 1 - _affScores.get(pairID);
-        score /= (double)_boxList.size();
+        int numConstrs = _solver.getNumConstraints();
+        double score = _getAntiAffinityCoeff(mIdx, bIdx);
 
         //Add the anti-affinity variable and constrain it to be on only
         //when affinity is off
         int antiAffinityIdx = _solver.addBooleanVariable(score);
         _solver.addEqualityConstraint(new int[]{affinityIdx, antiAffinityIdx},
                 new double[]{1.0, 1.0}, 1.0);
+        _countConstraints(DocumentMetrics.Family.COMPLEMENT, numConstrs);
         return antiAffinityIdx;
     }
 
@@ -695,44 +1508,74 @@ public class ILPSolverThread extends Thread
                                                   int[][] cardinalityIndices)
     {
         //Add all links to boxes
-        Mention m_i = _mentionList.get(mIdx);
         int[] groundingIndices_perMention = new int[_boxList.size()];
         for (int o = 0; o < _boxList.size(); o++) {
-            BoundingBox b_g = _boxList.get(o);
-            String id_io = m_i.getUniqueID() + "|" + b_g.getUniqueID();
-            groundingIndices[mIdx][o] = _addGroundingVariable_affinity(id_io, boxCoeff);
-            antiGroundingIndices[mIdx][o] = _addGroundingVariable_antiAffinity(id_io,
+            groundingIndices[mIdx][o] = _addGroundingVariable_affinity(mIdx, o, boxCoeff);
+            antiGroundingIndices[mIdx][o] = _addGroundingVariable_antiAffinity(mIdx, o,
                     groundingIndices[mIdx][o]);
             groundingIndices_perMention[o] = groundingIndices[mIdx][o];
         }
 
         //Add the cardinality variables
-        cardinalityIndices[mIdx] = _addGroundingVariable_cardinality(m_i.getUniqueID(), cardCoeff);
+        cardinalityIndices[mIdx] = _addGroundingVariable_cardinality(mIdx, cardCoeff);
         _addGroundingConstraint_cardinality(groundingIndices_perMention, cardinalityIndices[mIdx]);
     }
 
+    /**Sets the objective coefficients of the (existing) grounding and
+     * cardinality variables for the mention at the given index, using
+     * the given boxCoeff and cardCoeff coefficients (anti-grounding
+     * coefficients don't depend on either)
+     *
+     * @param mIdx
+     * @param boxCoeff
+     * @param cardCoeff
+     * @param groundingIndices
+     * @param cardinalityIndices
+     */
+    private void _setGroundingCoeffsForMention(int mIdx, double boxCoeff, double cardCoeff,
+                                               int[][] groundingIndices, int[][] cardinalityIndices)
+    {
+        for (int o = 0; o < _boxList.size(); o++)
+            _solver.setObjectiveCoeff(groundingIndices[mIdx][o], _getAffinityCoeff(mIdx, o, boxCoeff));
+        for (int n = 0; n <= _boxList.size(); n++)
+            _solver.setObjectiveCoeff(cardinalityIndices[mIdx][n], _getCardinalityCoeff(mIdx, n, cardCoeff));
+    }
+
     /**Adds the cardinality variable, which is one only when a mention
      * is ground to that many boxes
      *
-     * @param mentionID
+     * @param mIdx
+     * @param coeff
      * @return
      */
-    private int[] _addGroundingVariable_cardinality(String mentionID, double coeff)
+    private int[] _addGroundingVariable_cardinality(int mIdx, double coeff)
     {
         int[] indices = new int[_boxList.size() + 1];
-        for(int n=0; n<=_boxList.size(); n++){
-            double cardScore = 0.0;
-            if(_cardScores.containsKey(mentionID)){
-                if(n < 11)
-                    cardScore = coeff * _cardScores.get(mentionID)[n];
-                else
-                    cardScore = coeff * _cardScores.get(mentionID)[11] / (_boxList.size() - 10.0);
-            }
-            indices[n] = _solver.addBooleanVariable(cardScore);
-        }
+        for(int n=0; n<=_boxList.size(); n++)
+            indices[n] = _solver.addBooleanVariable(_getCardinalityCoeff(mIdx, n, coeff));
         return indices;
     }
 
+    /**Returns the objective coefficient of the given mention
+     * being ground to n boxes
+     *
+     * @param mIdx
+     * @param n
+     * @param coeff
+     * @return
+     */
+    private double _getCardinalityCoeff(int mIdx, int n, double coeff)
+    {
+        double cardScore = 0.0;
+        if(_scores.hasCardinalityScores(mIdx)){
+            if(n < 11)
+                cardScore = coeff * _scores.getCardinalityScore(mIdx, n);
+            else
+                cardScore = coeff * _scores.getCardinalityScore(mIdx, 11) / (_boxList.size() - 10.0);
+        }
+        return cardScore;
+    }
+
     /* Constraint Methods */
 
     /**Adds the grounded coreference and grounded subset constraints to the solver
@@ -742,6 +1585,7 @@ public class ILPSolverThread extends Thread
      */
     private void _addJointConstraints(int[][][] relationIndices, int[][] groundingIndices, int[][] cardinalityIndices)
     {
+        int numConstrs = _solver.getNumConstraints();
         double beta = 2 * _boxList.size() + 1;
         for (int i = 0; i < _mentionList.size(); i++) {
             for (int j = i + 1; j < _mentionList.size(); j++) {
@@ -809,6 +1653,7 @@ public class ILPSolverThread extends Thread
                         new double[]{1.0, 1.0, -1.0}, 1.0);
             }
         }
+        _countConstraints(DocumentMetrics.Family.JOINT, numConstrs);
     }
 
     /**Adds the relation transitivity constraints; includes
@@ -822,56 +1667,87 @@ public class ILPSolverThread extends Thread
         //Iterate through all the links (assuming we have all our variables set up)
         //and set the transitivity / consistency constraints
         for(int i=0; i<_mentionList.size(); i++){
-            Mention m_i = _mentionList.get(i);
             for(int j=i+1; j<_mentionList.size(); j++){
-                Mention m_j = _mentionList.get(j);
                 for(int k=0; k<_mentionList.size(); k++){
                     //We consider the ij / ji pair along with each mention
                     //k with which ij could have a relation
                     if(k == i || k == j)
                         continue;
-                    Mention m_k = _mentionList.get(k);
-
-                    /* Subset Transitivity */
-                    //If there exists an ij subset link, any subset link to/from k
-                    //must hold for both i and j
-                    if(_includeSubset){
-                        _solver.addLessThanConstraint(new int[]{linkIndices[i][j][2],
-                                        linkIndices[j][k][2], linkIndices[i][k][2]},
-                                new double[]{1.0, 1.0, -1.0}, 1.0);
-                        _solver.addLessThanConstraint(new int[]{linkIndices[j][i][2],
-                                        linkIndices[i][k][2], linkIndices[j][k][2]},
-                                new double[]{1.0, 1.0, -1.0}, 1.0);
-                        _solver.addLessThanConstraint(new int[]{linkIndices[i][j][2],
-                                        linkIndices[k][i][2], linkIndices[k][j][2]},
-                                new double[]{1.0, 1.0, -1.0}, 1.0);
-                        _solver.addLessThanConstraint(new int[]{linkIndices[j][i][2],
-                                        linkIndices[k][j][2], linkIndices[k][i][2]},
-                                new double[]{1.0, 1.0, -1.0}, 1.0);
-                    }
-
-                    /* Entity Relation Consistency */
-                    for(int y = 0; y<= _maxRelationLabel; y++){
-                        //If there exists an ij coref link, any link to/from k
-                        //must hold for both i and j
-                        _solver.addLessThanConstraint(new int[]{linkIndices[i][j][1],
-                                        linkIndices[i][k][y], linkIndices[j][k][y]},
-                                new double[]{1.0, 1.0, -1.0}, 1.0);
-                        _solver.addLessThanConstraint(new int[]{linkIndices[i][j][1],
-                                        linkIndices[j][k][y], linkIndices[i][k][y]},
-                                new double[]{1.0, 1.0, -1.0}, 1.0);
-                        _solver.addLessThanConstraint(new int[]{linkIndices[i][j][1],
-                                        linkIndices[k][i][y], linkIndices[k][j][y]},
-                                new double[]{1.0, 1.0, -1.0}, 1.0);
-                        _solver.addLessThanConstraint(new int[]{linkIndices[i][j][1],
-                                        linkIndices[k][j][y], linkIndices[k][i][y]},
-                                new double[]{1.0, 1.0, -1.0}, 1.0);
-                    }
+                    _addRelationConstraints_transitivity(linkIndices, i, j, k);
                 }
             }
         }
     }
 
+    /**Adds the relation transitivity constraints for the ij / ji
+     * pair (where i < j) and the mention k
+     *
+     * @param linkIndices
+     * @param i
+     * @param j
+     * @param k
+     */
+    private void _addRelationConstraints_transitivity(int[][][] linkIndices, int i, int j, int k)
+    {
+        int numConstrs = _solver.getNumConstraints();
+        /* Subset Transitivity */
+        //If there exists an ij subset link, any subset link to/from k
+        //must hold for both i and j
+        if(_includeSubset){
+            _solver.addLessThanConstraint(new int[]{linkIndices[i][j][2],
+                            linkIndices[j][k][2], linkIndices[i][k][2]},
+                    new double[]{1.0, 1.0, -1.0}, 1.0);
+            _solver.addLessThanConstraint(new int[]{linkIndices[j][i][2],
+                            linkIndices[i][k][2], linkIndices[j][k][2]},
+                    new double[]{1.0, 1.0, -1.0}, 1.0);
+            _solver.addLessThanConstraint(new int[]{linkIndices[i][j][2],
+                            linkIndices[k][i][2], linkIndices[k][j][2]},
+                    new double[]{1.0, 1.0, -1.0}, 1.0);
+            _solver.addLessThanConstraint(new int[]{linkIndices[j][i][2],
+                            linkIndices[k][j][2], linkIndices[k][i][2]},
+                    new double[]{1.0, 1.0, -1.0}, 1.0);
+        }
+
+        /* Entity Relation Consistency */
+        for(int y = 0; y<= _maxRelationLabel; y++){
+            //If there exists an ij coref link, any link to/from k
+            //must hold for both i and j (links from k share their
+            //variables with the inverse links to k, so constraining
+            //the latter for every label covers the former)
+            _solver.addLessThanConstraint(new int[]{linkIndices[i][j][1],
+                            linkIndices[i][k][y], linkIndices[j][k][y]},
+                    new double[]{1.0, 1.0, -1.0}, 1.0);
+            _solver.addLessThanConstraint(new int[]{linkIndices[i][j][1],
+                            linkIndices[j][k][y], linkIndices[i][k][y]},
+                    new double[]{1.0, 1.0, -1.0}, 1.0);
+        }
+        _countConstraints(DocumentMetrics.Family.TRANSITIVITY, numConstrs);
+    }
+
+    /**Returns the (i, j, k) triples -- where i < j -- for which the
+     * current solution violates any of the transitivity constraints
+     * added by _addRelationConstraints_transitivity()
+     *
+     * @param linkIndices
+     * @return
+     */
+    private List<int[]> _getViolatedTriples(int[][][] linkIndices)
+    {
+        int numMentions = _mentionList.size();
+        int[][] labels = new int[numMentions][numMentions];
+        for(int i=0; i<numMentions; i++){
+            for(int j=0; j<numMentions; j++){
+                labels[i][j] = -1;
+                if(i == j)
+                    continue;
+                for(int y=0; y<=_maxRelationLabel; y++)
+                    if(_solver.getBooleanValue(linkIndices[i][j][y]))
+                        labels[i][j] = y;
+            }
+        }
+        return ConstraintChecker.getViolatedTriples(labels, _includeSubset);
+    }
+
     /**Adds the fixed link set as relation constraints, requiring that
      * certain links take a fixed label
      *
@@ -884,6 +1760,7 @@ public class ILPSolverThread extends Thread
         if(_fixedRelationLinks.isEmpty())
            return;
 
+        int numConstrs = _solver.getNumConstraints();
         for(int i=0; i<_mentionList.size(); i++) {
             Mention m_i = _mentionList.get(i);
             for (int j = i + 1; j < _mentionList.size(); j++) {
@@ -904,33 +1781,47 @@ public class ILPSolverThread extends Thread
                 }
             }
         }
+        _countConstraints(DocumentMetrics.Family.FIXED, numConstrs);
     }
 
-    /**Adds the pairwise relation constraints: if ij is coref, so must ji;
-     * if ij is sub, ji must be sup; if ij is sup, ji must be sub
+    /**Fixes the relation variables for fixed links through their bounds,
+     * rather than adding constraints; used where those variables are
+     * already in the solver from an earlier stage
      *
-     * @param linkIndices_ij
-     * @param linkIndices_ji
+     * @param linkIndices
      */
-    private void _addRelationConstraints_pairwise(int[] linkIndices_ij, int[] linkIndices_ji)
+    private void _fixRelationVariables(int[][][] linkIndices)
     {
-        //Links can only take one label in each direction
-        _solver.addEqualityConstraint(linkIndices_ij,
-                new double[]{1.0, 1.0, 1.0, 1.0}, 1.0);
-        _solver.addEqualityConstraint(linkIndices_ji,
-                new double[]{1.0, 1.0, 1.0, 1.0}, 1.0);
-
-        //Enforce symmetry between coref / antisym between subset
-        _solver.addEqualityConstraint(new int[]{linkIndices_ij[1],
-                linkIndices_ji[1]}, new double[]{1.0, -1.0}, 0.0);
-        if(_includeSubset){
-            _solver.addEqualityConstraint(new int[]{linkIndices_ij[2],
-                    linkIndices_ji[3]}, new double[]{1.0, -1.0}, 0.0);
-            _solver.addEqualityConstraint(new int[]{linkIndices_ij[3],
-                    linkIndices_ji[2]}, new double[]{1.0, -1.0}, 0.0);
+        for(int i=0; i<_mentionList.size(); i++) {
+            Mention m_i = _mentionList.get(i);
+            for (int j = 0; j < _mentionList.size(); j++) {
+                if(i == j)
+                    continue;
+                Integer label = _fixedRelationLinks.get(Document.getMentionPairStr(m_i, _mentionList.get(j)));
+                if(label != null)
+                    for(int y=0; y<=_maxRelationLabel; y++)
+                        _solver.fixVariable(linkIndices[i][j][y], y == label);
+            }
         }
     }
 
+    /**Adds the pairwise relation constraint: the link takes exactly one
+     * label; since the ij and ji links share their variables (see
+     * _addRelationVariablesForMention()), if ij is coref, so is ji, and
+     * if ij is sub, ji is sup (and vice versa) without further constraints
+     *
+     * @param linkIndices_ij
+     */
+    private void _addRelationConstraints_pairwise(int[] linkIndices_ij)
+    {
+        int numConstrs = _solver.getNumConstraints();
+        //Links can only take one label
+        double[] coeffs = new double[linkIndices_ij.length];
+        Arrays.fill(coeffs, 1.0);
+        _solver.addEqualityConstraint(linkIndices_ij, coeffs, 1.0);
+        _countConstraints(DocumentMetrics.Family.PAIRWISE, numConstrs);
+    }
+
     /**Adds the box exigence grounding constraint, which requires that each
      * box must be associated with at least one mention
      *
@@ -938,6 +1829,7 @@ public class ILPSolverThread extends Thread
      */
     private void _addGroundingConstraint_boxExigence(int[][] linkIndices)
     {
+        int numConstrs = _solver.getNumConstraints();
         for(int o=0; o<_boxList.size(); o++){
             int[] linkIndices_exigence = new int[_mentionList.size()];
             for(int i=0; i<_mentionList.size(); i++)
@@ -946,6 +1838,7 @@ public class ILPSolverThread extends Thread
             Arrays.fill(coeffs_exigence, 1.0);
             _solver.addGreaterThanConstraint(linkIndices_exigence, coeffs_exigence, 1.0);
         }
+        _countConstraints(DocumentMetrics.Family.EXIGENCE, numConstrs);
     }
 
     /**Adds the cardinality grounding constraints, which in effect enable us to have
@@ -958,6 +1851,7 @@ public class ILPSolverThread extends Thread
     private void _addGroundingConstraint_cardinality(int[] groundingLinks_perMention,
                                                      int[] cardinalityLinks_perMention)
     {
+        int numConstrs = _solver.getNumConstraints();
         for(int n=0; n<=_boxList.size(); n++){
             /*Mention cardinality Constraints*/
             //a) a^n_i stores if n > \sum_o g_{io}
@@ -998,6 +1892,7 @@ public class ILPSolverThread extends Thread
         double[] coeffs_z = new double[_boxList.size() + 1];
         Arrays.fill(coeffs_z, 1.0);
         _solver.addEqualityConstraint(cardinalityLinks_perMention, coeffs_z, 1.0);
+        _countConstraints(DocumentMetrics.Family.CARDINALITY, numConstrs);
     }
 
     /**
@@ -1008,6 +1903,7 @@ public class ILPSolverThread extends Thread
     private void _addGroundingConstraints_category(int[][] groundingIndices,
                                                    int[][] cardinalityIndices)
     {
+        int numConstrs = _solver.getNumConstraints();
         for(int i=0; i<_mentionList.size(); i++){
             Mention m_i = _mentionList.get(i);
 
@@ -1027,6 +1923,7 @@ public class ILPSolverThread extends Thread
                             new double[]{1.0}, 0.0);
             }
         }
+        _countConstraints(DocumentMetrics.Family.CATEGORY, numConstrs);
     }
 
     /**Fixes the set of grounding links, such that inference must operate around
@@ -1041,6 +1938,7 @@ public class ILPSolverThread extends Thread
         if(_fixedGroundingLinks.isEmpty())
             return;
 
+        int numConstrs = _solver.getNumConstraints();
         for(int i=0; i<_mentionList.size(); i++){
             Mention m_i = _mentionList.get(i);
             for(int o=0; o<_boxList.size(); o++){
@@ -1052,6 +1950,25 @@ public class ILPSolverThread extends Thread
                 }
             }
         }
+        _countConstraints(DocumentMetrics.Family.FIXED, numConstrs);
+    }
+
+    /**Fixes the grounding variables for fixed links through their bounds,
+     * rather than adding constraints; used where those variables are
+     * already in the solver from an earlier stage
+     *
+     * @param groundingIndices
+     */
+    private void _fixGroundingVariables(int[][] groundingIndices)
+    {
+        for(int i=0; i<_mentionList.size(); i++){
+            Mention m_i = _mentionList.get(i);
+            for(int o=0; o<_boxList.size(); o++){
+                Integer label = _fixedGroundingLinks.get(Document.getMentionBoxStr(m_i, _boxList.get(o)));
+                if(label != null)
+                    _solver.fixVariable(groundingIndices[i][o], label == 1);
+            }
+        }
     }
 
     /**Adds the visual constraints to relation prediction, which add the confidence in
@@ -1062,6 +1979,7 @@ public class ILPSolverThread extends Thread
      */
     private void _addVisualConstraints_relation(int[] visualIndices, int[][][] relationLinks)
     {
+        int numConstrs = _solver.getNumConstraints();
         for (int i = 0; i < _mentionList.size(); i++) {
             for (int j = i + 1; j < _mentionList.size(); j++) {
                 for (int y = 1; y <= _maxRelationLabel; y++) {
@@ -1070,18 +1988,15 @@ public class ILPSolverThread extends Thread
                     //      v_i + v_j >= 2r^y_{ij}
                     //so, for our purposes
                     //      v_i + v_j - 2r^y_{ij} >= 0
-                    //      v_i + v_j - 2r^y_{ji} >= 0
-                    //Might not need the second one, given the other
-                    //constraints, but just to be safe...
+                    //(r^y_{ji} is r^{y'}_{ij} for y's inverse y', so it's
+                    //covered as well)
                     _solver.addGreaterThanConstraint(new int[]{visualIndices[i],
                                     visualIndices[j], relationLinks[i][j][y]},
                             new double[]{1.0, 1.0, -2.0}, 0.0);
-                    _solver.addGreaterThanConstraint(new int[]{visualIndices[i],
-                                    visualIndices[j], relationLinks[j][i][y]},
-                            new double[]{1.0, 1.0, -2.0}, 0.0);
                 }
             }
         }
+        _countConstraints(DocumentMetrics.Family.VISUAL, numConstrs);
     }
 
     /**Adds the visual constraint to grounding that enforces the property
@@ -1094,12 +2009,14 @@ public class ILPSolverThread extends Thread
     private void _addVisualConstraints_grounding(int[] nonvisIndices,
                                                  int[][] cardinalityIndices)
     {
+        int numConstrs = _solver.getNumConstraints();
         //  v^\prime_i \leq z^0_i
         for(int i=0; i<_mentionList.size(); i++){
             _solver.addLessThanConstraint(new int[]{nonvisIndices[i],
                     cardinalityIndices[i][0]}, new double[]{1.0, -1.0},
                     0.0);
         }
+        _countConstraints(DocumentMetrics.Family.VISUAL, numConstrs);
     }
 
     /**Fixes the set of visual mentions, such that inference must operate around
@@ -1114,6 +2031,7 @@ public class ILPSolverThread extends Thread
         if(_fixedVisualMentions.isEmpty())
             return;
 
+        int numConstrs = _solver.getNumConstraints();
         for(int i=0; i<_mentionList.size(); i++) {
             Mention m_i = _mentionList.get(i);
             if(_fixedVisualMentions.containsKey(m_i.getUniqueID())){
@@ -1121,6 +2039,7 @@ public class ILPSolverThread extends Thread
                         new double[]{1.0}, (double)_fixedVisualMentions.get(m_i.getUniqueID()));
             }
         }
+        _countConstraints(DocumentMetrics.Family.FIXED, numConstrs);
     }
 
     /* Graph methods */
@@ -1193,21 +2112,14 @@ public class ILPSolverThread extends Thread
         }
     }
 
-    /**Returns the relation graph produced by relation or joint inference
-     *
-     * @return
-     */
-    public Map<String, Integer> getRelationGraph(){return _relationGraph;}
-
-    /**Returns the grounding graph produced by grounding or joint inference
+    /**Returns the graphs produced by inference -- relation, grounding,
+     * and visual, as applicable -- indexed by this document's
+     * mention / box ordinals
      *
      * @return
      */
-    public Map<String, Integer> getGroundingGraph(){return _groundingGraph;}
-
-    /**Returns the visual graph
-     *
-     * @return
-     */
-    public Map<String, Integer> getVisualGraph(){return _visualGraph;}
+    public SolvedGraph getSolvedGraph()
+    {
+        return SolvedGraph.fromLabelDicts(_scores, _relationGraph, _groundingGraph, _visualGraph);
+    }
 }
\ No newline at end of file
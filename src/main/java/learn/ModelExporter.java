@@ -0,0 +1,133 @@
+package learn;
+
+import utilities.Logger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+
+/**ModelExporter writes the programs ILPSolverThreads build -- all of
+ * them, or only those at least a given size or that took at least a
+ * given time to solve -- to an output directory as LP or MPS files
+ * (see ILPModelFile), alongside a manifest.csv with a line per file:
+ *      file,doc_id,inf_type,num_vars,num_constrs,solve_sec,status,objective
+ * where status is optimal, incumbent, or none (doc_id is written as is,
+ * commas included; no other column has any, so ModelReplay reads them
+ * from either end of the line). The directory then serves
+ * as a benchmark corpus, re-solved with ModelReplay. A document may
+ * export several programs (one per stage, component, or fallback solve);
+ * exporting into a directory that already has a manifest adds to it.
+ * Shared by all solver threads
+ *
+ * @author ccervantes
+ */
+public class ModelExporter
+{
+    public static final String MANIFEST_FILE = "manifest.csv";
+    static final String MANIFEST_HEADER =
+            "file,doc_id,inf_type,num_vars,num_constrs,solve_sec,status,objective";
+
+    private File _outDir;
+    private String _extension;
+    private int _minVariables;
+    private double _minSolveSec;
+    private int _numExported;
+    private BufferedWriter _manifestWriter;
+
+    /**Creates a new exporter writing to the given directory in the given
+     * format (lp or mps); if either threshold is non-negative, only
+     * programs meeting one of them are exported
+     *
+     * @param outDir
+     * @param format
+     * @param minVariables - Export programs with at least this many variables
+     * @param minSolveSec  - Export programs that took at least this long to solve
+     */
+    public ModelExporter(String outDir, String format, int minVariables, double minSolveSec)
+    {
+        _outDir = new File(outDir);
+        _extension = format.toLowerCase();
+        _minVariables = minVariables;
+        _minSolveSec = minSolveSec;
+        _numExported = 0;
+        try {
+            if(!_outDir.exists() && !_outDir.mkdirs())
+                throw new IOException("Could not create " + _outDir);
+            File manifest = new File(_outDir, MANIFEST_FILE);
+            boolean hasManifest = manifest.exists();
+            if(hasManifest)
+                _numExported = Math.max(0, Files.readAllLines(manifest.toPath()).size() - 1);
+            _manifestWriter = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(manifest, true), StandardCharsets.UTF_8));
+            if(!hasManifest){
+                _manifestWriter.write(MANIFEST_HEADER + "\n");
+                _manifestWriter.flush();
+            }
+        } catch(IOException ioEx) {
+            Logger.log(ioEx);
+            _manifestWriter = null;
+        }
+    }
+
+    /**Returns whether a program of the given size, solved
+     * in the given time, should be exported
+     *
+     * @param numVariables
+     * @param solveSec
+     * @return
+     */
+    public boolean shouldExport(int numVariables, double solveSec)
+    {
+        if(_manifestWriter == null)
+            return false;
+        if(_minVariables < 0 && _minSolveSec < 0)
+            return true;
+        return _minVariables >= 0 && numVariables >= _minVariables ||
+               _minSolveSec >= 0 && solveSec >= _minSolveSec;
+    }
+
+    /**Writes the given backend's program and adds it to the manifest
+     *
+     * @param backend
+     * @param docID
+     * @param infType
+     * @param solveSec
+     * @param status   - optimal, incumbent, or none
+     */
+    public synchronized void export(BufferedILPBackend backend, String docID,
+                                    ILPInference.InferenceType infType,
+                                    double solveSec, String status)
+    {
+        if(_manifestWriter == null)
+            return;
+        String filename = String.format("%06d_%s.%s", _numExported,
+                docID.replaceAll("[^\\w.-]", "_"), _extension);
+        try {
+            ILPModelFile.write(backend, new File(_outDir, filename).getPath(),
+                    docID + " " + infType);
+            _manifestWriter.write(String.format(Locale.ROOT, "%s,%s,%s,%d,%d,%.3f,%s,%s\n", filename, docID,
+                    infType.toString().toLowerCase(), backend.getNumVariables(),
+                    backend.getNumConstraints(), solveSec, status, backend.getObjectiveValue()));
+            _manifestWriter.flush();
+            _numExported++;
+        } catch(IOException ioEx) {
+            Logger.log(ioEx);
+        }
+    }
+
+    /**Closes the manifest; no programs are exported afterwards
+     */
+    public synchronized void close()
+    {
+        if(_manifestWriter == null)
+            return;
+        try {
+            _manifestWriter.close();
+        } catch(IOException ioEx) {
+            Logger.log(ioEx);
+        }
+        _manifestWriter = null;
+        Logger.log("Exported %d programs to %s", _numExported, _outDir.getPath());
+    }
+}
@@ -0,0 +1,140 @@
+package learn;
+
+import utilities.Logger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+/**ModelReplay re-solves a directory of programs written by ModelExporter
+ * (or any .lp / .mps files ILPModelFile can read) with a given backend,
+ * thread count, and time limit, one program at a time, such that
+ * exported documents serve as a standing benchmark for solver tuning.
+ * Each program's solve time, status, and objective are logged -- and
+ * optionally written to a csv -- next to those recorded at export,
+ * flagging any program whose optimum disagrees with the exported one
+ *
+ * @author ccervantes
+ */
+public class ModelReplay
+{
+    private static final double OBJ_TOL = 1e-6;
+    private static final String RESULTS_HEADER = "file,num_vars,num_constrs,backend,threads," +
+            "solve_sec,status,objective,exported_solve_sec,exported_status,exported_objective";
+
+    /**Re-solves each program in the given directory -- those listed in its
+     * manifest, if it has one, or else every .lp and .mps file in it
+     *
+     * @param modelDir
+     * @param backendType
+     * @param solverThreads
+     * @param timeLimitSec
+     * @param resultsFile   - Where to write per-program results (may be null)
+     */
+    public static void replay(String modelDir, ILPBackend.BackendType backendType,
+                              int solverThreads, double timeLimitSec, String resultsFile)
+    {
+        //Read the programs and their exported results
+        List<String[]> programs = _getPrograms(new File(modelDir));
+        Logger.log("Replaying %d programs from %s with %s (%d threads)",
+                programs.size(), modelDir, backendType, solverThreads);
+
+        List<String> resultLines = new ArrayList<>();
+        resultLines.add(RESULTS_HEADER);
+        int numOptimal = 0, numIncumbent = 0, numMismatched = 0;
+        double totalSec = 0.0;
+        for(int p=0; p<programs.size(); p++){
+            String[] program = programs.get(p);
+            String filename = program[0];
+            ILPBackend backend = ILPBackend.create(backendType, solverThreads);
+            try {
+                ILPModelFile.read(new File(modelDir, filename).getPath(), backend);
+                backend.setTimeLimit(timeLimitSec);
+                long start = System.currentTimeMillis();
+                boolean solved = backend.solve();
+                double solveSec = (System.currentTimeMillis() - start) / 1000.0;
+                totalSec += solveSec;
+
+                String status = !solved ? "none" : backend.isOptimal() ? "optimal" : "incumbent";
+                if(backend.isOptimal())
+                    numOptimal++;
+                else if(solved)
+                    numIncumbent++;
+                BufferedILPBackend buffered = (BufferedILPBackend)backend;
+                double obj = buffered.getObjectiveValue();
+
+                //Optima should agree, whichever backend found them
+                if(backend.isOptimal() && "optimal".equals(program[2]) &&
+                   Math.abs(obj - Double.parseDouble(program[3])) > OBJ_TOL){
+                    numMismatched++;
+                    Logger.log("WARNING: %s optimum %.6f differs from the exported %s",
+                            filename, obj, program[3]);
+                }
+                resultLines.add(String.format(Locale.ROOT, "%s,%d,%d,%s,%d,%.3f,%s,%s,%s,%s,%s",
+                        filename, buffered.getNumVariables(), buffered.getNumConstraints(),
+                        backendType.toString().toLowerCase(), solverThreads, solveSec, status, obj,
+                        program[1], program[2], program[3]));
+            } catch(Exception ex) {
+                Logger.log(ex);
+            } finally {
+                backend.dispose();
+            }
+            Logger.logStatus("Replayed %d programs (%.2f%%)",
+                    p + 1, 100.0 * (p + 1) / programs.size());
+        }
+        GurobiEnvPool.disposeAll();
+
+        Logger.log("Replayed %d programs in %.3fs: %d optimal, %d incumbent, %d without solution",
+                programs.size(), totalSec, numOptimal, numIncumbent,
+                programs.size() - numOptimal - numIncumbent);
+        if(numMismatched > 0)
+            Logger.log("WARNING: %d optima differ from those exported", numMismatched);
+        if(resultsFile != null){
+            try {
+                Files.write(new File(resultsFile).toPath(), resultLines, StandardCharsets.UTF_8);
+            } catch(IOException ioEx) {
+                Logger.log(ioEx);
+            }
+        }
+    }
+
+    /**Returns the programs in the given directory, as
+     * {file, exported solve sec, exported status, exported objective}
+     * (where the latter are empty for programs not in a manifest)
+     *
+     * @param modelDir
+     * @return
+     */
+    private static List<String[]> _getPrograms(File modelDir)
+    {
+        List<String[]> programs = new ArrayList<>();
+        File manifest = new File(modelDir, ModelExporter.MANIFEST_FILE);
+        try {
+            if(manifest.exists()){
+                //The file name and the trailing columns never contain commas, so
+                //they're read from either end (a doc_id may have commas of its own)
+                List<String> lines = Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8);
+                for(int l=1; l<lines.size(); l++){
+                    String[] cols = lines.get(l).split(",", -1);
+                    int n = cols.length;
+                    if(n >= 8 && !cols[0].isEmpty())
+                        programs.add(new String[]{cols[0], cols[n-3], cols[n-2], cols[n-1]});
+                    else if(!lines.get(l).trim().isEmpty())
+                        Logger.log("WARNING: Skipping malformed manifest line %d: %s", l + 1, lines.get(l));
+                }
+            } else {
+                File[] files = modelDir.listFiles((dir, name) ->
+                        name.toLowerCase().endsWith(".lp") || name.toLowerCase().endsWith(".mps"));
+                if(files != null){
+                    Arrays.sort(files);
+                    for(File f : files)
+                        programs.add(new String[]{f.getName(), "", "", ""});
+                }
+            }
+        } catch(IOException ioEx) {
+            Logger.log(ioEx);
+        }
+        return programs;
+    }
+}
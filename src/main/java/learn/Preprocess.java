@@ -5,6 +5,8 @@ import core.Main;
 import nlptools.IllinoisAnnotator;
 import nlptools.WordnetUtil;
 import org.apache.commons.lang.ArrayUtils;
+import out.BinaryMatrixWriter;
+import out.DoubleFormatter;
 import structures.*;
 import utilities.*;
 
@@ -399,7 +401,7 @@ public class Preprocess
                 Arrays.fill(onehot, 0.0);
                 if(idx >= 0)
                     onehot[idx] = 1.0;
-                ll_boxCats.add(b.getUniqueID() + "\t" + StringUtil.listToString(onehot, ","));
+                ll_boxCats.add(b.getUniqueID() + "\t" + DoubleFormatter.join(Arrays.asList(onehot), ','));
             }
         }
         FileIO.writeFile(ll_boxCats, outroot + "_box_cats", "txt", false);
@@ -584,9 +586,13 @@ public class Preprocess
      * @param outRoot           Root path to which the lists will be written
      *                          (in the form &lt;outRoot&gt;_box_&lt;dataSplit&gt;.csv
      *                          and similar)
+     * @param binaryFeats       Whether to additionally write the box features
+     *                          as a float32 matrix (&lt;outRoot&gt;_box.bin)
+     * @param seed              Seed for the train box sampler
      */
     public static void export_phraseLocalization_ccaLists(Collection<Document> docSet, String dataSplit,
-                                                          String boxFeatureDir, String outRoot)
+                                                          String boxFeatureDir, String outRoot,
+                                                          boolean binaryFeats, long seed)
     {
         //Initialize the lexicons
         Mention.initializeLexicons(flickr30k_lexicon, mscoco_lexicon);
@@ -604,11 +610,17 @@ public class Preprocess
                 new HashSet<>(FileIO.readFile_lineList(Main.flickr30kResources +
                         "stop_words.txt"));
 
-        //Store a mapping of [docID -> [mention -> [bounding boxes] ] ]
-        Map<String, Map<Mention, Set<BoundingBox>>>
-                mentionBoxesDict = new HashMap<>();
-        for(Document d : docSet){
+        //Sample (up to) 10 of each mention string's bounding boxes in a
+        //single pass; documents are visited in ID order and boxes in index
+        //order, so a given seed always produces the same sample
+        Random rand = new Random(seed);
+        Map<String, ReservoirSampler<BoundingBox>> samplerDict = new LinkedHashMap<>();
+        List<Document> docList = new ArrayList<>(docSet);
+        docList.sort(Comparator.comparing(Document::getID));
+        for(Document d : docList){
             if(boxFiles.contains(d.getID().replace(".jpg", ""))){
+                List<BoundingBox> boxList = new ArrayList<>(d.getBoundingBoxSet());
+                boxList.sort(Comparator.comparingInt(BoundingBox::getIdx));
                 for(Mention m : d.getMentionList()){
                     //Get this mention's string, removing stop words
                     StringBuilder normBuilder = new StringBuilder();
@@ -621,9 +633,12 @@ public class Preprocess
                     }
                     String normText = normBuilder.toString().trim();
 
-                    if(!mentionBoxesDict.containsKey(normText))
-                        mentionBoxesDict.put(normText, new HashMap<>());
-                    mentionBoxesDict.get(normText).put(m, d.getBoxSetForMention(m));
+                    if(!samplerDict.containsKey(normText))
+                        samplerDict.put(normText, new ReservoirSampler<>(10, rand));
+                    Set<BoundingBox> assocBoxes = d.getBoxSetForMention(m);
+                    for(BoundingBox b : boxList)
+                        if(assocBoxes.contains(b))
+                            samplerDict.get(normText).offer(b);
                 }
             } else {
                 System.out.println("ERROR: found no box feats for " + d.getID());
@@ -632,25 +647,21 @@ public class Preprocess
 
         //store the in-order lists of box feats and text strings
         List<String> ll_img = new ArrayList<>(), ll_txt = new ArrayList<>();
+        BinaryMatrixWriter matrixWriter = null;
+        if(binaryFeats)
+            matrixWriter = new BinaryMatrixWriter(outRoot + "_box");
         List<String> ll_ids = new ArrayList<>(), ll_labels = new ArrayList<>();
         List<String> ll_types_30k = new ArrayList<>(), ll_types_coco = new ArrayList<>();
         List<String> ll_types_coco_super = new ArrayList<>();
         DoubleDict<Integer> labelDistro = new DoubleDict<>();
         if(dataSplit.equals("train")){
-            //Randomly sample 10 bounding boxes from those that have boxes
+            //Keep the sampled boxes for those strings that have boxes
             Map<String, Set<BoundingBox>> mentionBoxesDict_sample =
-                    new HashMap<>();
-            for(String normText : mentionBoxesDict.keySet()){
-                List<BoundingBox> boxList = new ArrayList<>();
-                for(Mention m : mentionBoxesDict.get(normText).keySet())
-                    boxList.addAll(mentionBoxesDict.get(normText).get(m));
-                Collections.shuffle(boxList);
-                if(!boxList.isEmpty()) {
+                    new LinkedHashMap<>();
+            for(String normText : samplerDict.keySet())
+                if(!samplerDict.get(normText).isEmpty())
                     mentionBoxesDict_sample.put(normText,
-                            new HashSet<>(boxList.subList(0,
-                                    Math.min(boxList.size() - 1, 10))));
-                }
-            }
+                            new LinkedHashSet<>(samplerDict.get(normText).getSample()));
 
             //store the in-order lists of box feats and text feats
             int text_idx = 0;
@@ -680,7 +691,9 @@ public class Preprocess
                     } catch(Exception ex) {Logger.log(ex);}
 
                     //add the features to the img file
-                    ll_img.add(StringUtil.listToString(imgFeats, ","));
+                    ll_img.add(DoubleFormatter.join(imgFeats, ',', DoubleFormatter.Precision.FLOAT));
+                    if(matrixWriter != null)
+                        matrixWriter.writeRow(b.getUniqueID(), null, imgFeats);
                 }
                 text_idx++;
                 Logger.logStatus("Completed %.2f%%", 100.0 * text_idx / mentionBoxesDict_sample.size());
@@ -726,12 +739,16 @@ public class Preprocess
                             //Iterate through the box pairings
                     Set<BoundingBox> assocBoxes = d.getBoxSetForMention(m);
                     for(BoundingBox b : d.getBoundingBoxSet()){
-                        ll_img.add(StringUtil.listToString(boxFeatDict.get(b.getUniqueID()), ","));
+                        ll_img.add(DoubleFormatter.join(boxFeatDict.get(b.getUniqueID()), ',',
+                                DoubleFormatter.Precision.FLOAT));
                         ll_txt.add(normText);
                         ll_ids.add(m.getUniqueID() + "|" + b.getUniqueID());
                         int label = assocBoxes.contains(b) ? 1 : 0;
                         ll_labels.add(String.valueOf(label));
                         labelDistro.increment(label);
+                        if(matrixWriter != null)
+                            matrixWriter.writeRow(m.getUniqueID() + "|" + b.getUniqueID(),
+                                    String.valueOf(label), boxFeatDict.get(b.getUniqueID()));
                     }
                 }
                 docIdx++;
@@ -742,6 +759,8 @@ public class Preprocess
         //Save the files (train, being subsampled, has no id/label/type files
         FileIO.writeFile(ll_img, outRoot + "_box", "csv", false);
         FileIO.writeFile(ll_txt, outRoot + "_phrase", "txt", false);
+        if(matrixWriter != null)
+            matrixWriter.close();
         if(!dataSplit.equals("train")) {
             FileIO.writeFile(ll_ids, outRoot + "_id", "txt", false);
             FileIO.writeFile(ll_labels, outRoot + "_label", "txt", false);
@@ -765,9 +784,13 @@ public class Preprocess
      * @param outRoot           Root path to which the lists will be written
      *                          (in the form &lt;outRoot&gt;_box_&lt;dataSplit&gt;.csv
      *                          and similar)
+     * @param binaryFeats       Whether to additionally write the box features
+     *                          as a float32 matrix (&lt;outRoot&gt;_box.bin)
+     * @param seed              Seed for the box sampler
      */
     public static void export_phraseLocalization_ccaLists(Collection<Document> docSet,
-                                                          String boxFeatureDir, String outRoot)
+                                                          String boxFeatureDir, String outRoot,
+                                                          boolean binaryFeats, long seed)
     {
         //Initialize the lexicons
         Mention.initializeLexicons(flickr30k_lexicon, mscoco_lexicon);
@@ -785,11 +808,17 @@ public class Preprocess
                 new HashSet<>(FileIO.readFile_lineList(Main.flickr30kResources +
                         "stop_words.txt"));
 
-        //Store a mapping of [docID -> [mention -> [bounding boxes] ] ]
-        Map<String, Map<Mention, Set<BoundingBox>>>
-                mentionBoxesDict = new HashMap<>();
-        for(Document d : docSet){
+        //Sample (up to) 10 of each mention string's bounding boxes in a
+        //single pass; documents are visited in ID order and boxes in index
+        //order, so a given seed always produces the same sample
+        Random rand = new Random(seed);
+        Map<String, ReservoirSampler<BoundingBox>> samplerDict = new LinkedHashMap<>();
+        List<Document> docList = new ArrayList<>(docSet);
+        docList.sort(Comparator.comparing(Document::getID));
+        for(Document d : docList){
             if(boxFiles.contains(d.getID().replace(".jpg", ""))){
+                List<BoundingBox> boxList = new ArrayList<>(d.getBoundingBoxSet());
+                boxList.sort(Comparator.comparingInt(BoundingBox::getIdx));
                 for(Mention m : d.getMentionList()){
                     //Get this mention's string, removing stop words
                     StringBuilder normBuilder = new StringBuilder();
@@ -802,22 +831,18 @@ public class Preprocess
                     }
                     String normText = normBuilder.toString().trim();
 
-                    if(!mentionBoxesDict.containsKey(normText))
-                        mentionBoxesDict.put(normText, new HashMap<>());
+                    if(!samplerDict.containsKey(normText))
+                        samplerDict.put(normText, new ReservoirSampler<>(10, rand));
 
-                    //If this is a reviewed image, grab the mention's boxes; otherwise
+                    //If this is a reviewed image, sample from the mention's boxes; otherwise
                     //assume every same-category box is grounded to it
-                    Set<BoundingBox> assocBoxes = new HashSet<>();
-                    if(d.reviewed) {
-                        assocBoxes.addAll(d.getBoxSetForMention(m));
-                    } else {
-                        String mentionCats = Mention.getLexicalEntry_cocoCategory(m);
-                        if(mentionCats != null)
-                            for(BoundingBox b : d.getBoundingBoxSet())
-                                if(mentionCats.contains(b.getCategory()))
-                                    assocBoxes.add(b);
+                    Set<BoundingBox> assocBoxes = d.reviewed ? d.getBoxSetForMention(m) : null;
+                    String mentionCats = d.reviewed ? null : Mention.getLexicalEntry_cocoCategory(m);
+                    for(BoundingBox b : boxList){
+                        if(assocBoxes != null && assocBoxes.contains(b) ||
+                           mentionCats != null && mentionCats.contains(b.getCategory()))
+                            samplerDict.get(normText).offer(b);
                     }
-                    mentionBoxesDict.get(normText).put(m, assocBoxes);
                 }
             } else {
                 System.out.println("ERROR: found no box feats for " + d.getID());
@@ -826,21 +851,17 @@ public class Preprocess
 
         //store the in-order lists of box feats and text strings
         List<String> ll_img = new ArrayList<>(), ll_txt = new ArrayList<>();
+        BinaryMatrixWriter matrixWriter = null;
+        if(binaryFeats)
+            matrixWriter = new BinaryMatrixWriter(outRoot + "_box");
         DoubleDict<Integer> labelDistro = new DoubleDict<>();
-        //Randomly sample 10 bounding boxes from those that have boxes
+        //Keep the sampled boxes for those strings that have boxes
         Map<String, Set<BoundingBox>> mentionBoxesDict_sample =
-                new HashMap<>();
-        for(String normText : mentionBoxesDict.keySet()){
-            List<BoundingBox> boxList = new ArrayList<>();
-            for(Mention m : mentionBoxesDict.get(normText).keySet())
-                boxList.addAll(mentionBoxesDict.get(normText).get(m));
-            Collections.shuffle(boxList);
-            if(!boxList.isEmpty()) {
+                new LinkedHashMap<>();
+        for(String normText : samplerDict.keySet())
+            if(!samplerDict.get(normText).isEmpty())
                 mentionBoxesDict_sample.put(normText,
-                        new HashSet<>(boxList.subList(0,
-                                Math.min(boxList.size() - 1, 10))));
-            }
-        }
+                        new LinkedHashSet<>(samplerDict.get(normText).getSample()));
 
         //store the in-order lists of box feats and text feats
         int text_idx = 0;
@@ -870,7 +891,9 @@ public class Preprocess
                 } catch(Exception ex) {Logger.log(ex);}
 
                 //add the features to the img file
-                ll_img.add(StringUtil.listToString(imgFeats, ","));
+                ll_img.add(DoubleFormatter.join(imgFeats, ',', DoubleFormatter.Precision.FLOAT));
+                if(matrixWriter != null)
+                    matrixWriter.writeRow(b.getUniqueID(), null, imgFeats);
             }
             text_idx++;
             Logger.logStatus("Completed %.2f%%", 100.0 * text_idx / mentionBoxesDict_sample.size());
@@ -879,6 +902,8 @@ public class Preprocess
         //Save the files (train, being subsampled, has no id/label/type files
         FileIO.writeFile(ll_img, outRoot + "_box", "csv", false);
         FileIO.writeFile(ll_txt, outRoot + "_phrase", "txt", false);
+        if(matrixWriter != null)
+            matrixWriter.close();
 
         //As a sanity check, print the label distribution
         Logger.log("Done; Label Distro:");
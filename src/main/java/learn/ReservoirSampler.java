@@ -0,0 +1,70 @@
+package learn;
+
+import java.util.*;
+
+/**ReservoirSampler maintains a uniform random sample of
+ * (up to) k items from a stream of unknown length
+ * (Vitter's Algorithm R), such that sampling from N
+ * items takes O(N) time and O(k) memory, rather than
+ * collecting, shuffling, and truncating all N; given
+ * the same Random (and the same item order), the
+ * sample is reproducible
+ *
+ * @author ccervantes
+ */
+public class ReservoirSampler<T>
+{
+    private List<T> _reservoir;
+    private int _k;
+    private int _numSeen;
+    private Random _rand;
+
+    /**Creates a sampler retaining up to k items, drawing
+     * from the given (typically seeded, typically shared)
+     * random number generator
+     *
+     * @param k
+     * @param rand
+     */
+    public ReservoirSampler(int k, Random rand)
+    {
+        _reservoir = new ArrayList<>(k);
+        _k = k;
+        _numSeen = 0;
+        _rand = rand;
+    }
+
+    /**Offers the next item in the stream to the sample
+     *
+     * @param item
+     */
+    public void offer(T item)
+    {
+        _numSeen++;
+        if(_reservoir.size() < _k){
+            _reservoir.add(item);
+        } else {
+            int j = _rand.nextInt(_numSeen);
+            if(j < _k)
+                _reservoir.set(j, item);
+        }
+    }
+
+    /**Returns the current sample (of size min(k, numSeen))
+     *
+     * @return
+     */
+    public List<T> getSample(){return new ArrayList<>(_reservoir);}
+
+    /**Returns the number of items offered so far
+     *
+     * @return
+     */
+    public int getNumSeen(){return _numSeen;}
+
+    /**Returns whether no items have been offered
+     *
+     * @return
+     */
+    public boolean isEmpty(){return _numSeen == 0;}
+}
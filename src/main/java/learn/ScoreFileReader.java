@@ -0,0 +1,546 @@
+package learn;
+
+import utilities.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**ScoreFileReader reads multiclass score files -- lines of the form
+ *      ID,log_p_0,log_p_1,...,log_p_n
+ * into a mapping of IDs to (exponentiated) score distributions, as
+ * ClassifyUtil.readMccScoresFile always has, but without materializing
+ * the file as a list of lines: the file is memory-mapped and split into
+ * line-aligned chunks, each of which is parsed on its own thread
+ * directly from the mapped bytes (no per-line String or String[]);
+ * chunk maps are merged in file order, so duplicate IDs resolve to
+ * the last line, as before.
+ *
+ * readCached() additionally keeps a binary sidecar (filename.bin)
+ * holding the parsed scores, along with the size and CRC32 of the
+ * source; when the source is unchanged, later reads map the sidecar
+ * and skip parsing altogether. The sidecar layout (big-endian) is
+ *      header:  magic, version, source size, source CRC32, num entries
+ *      entries: ID length (short), ID (UTF-8), num scores (short), scores
+ *
+ * @author ccervantes
+ */
+public class ScoreFileReader
+{
+    /* Chunks are mapped individually, so they must be well
+     * under the 2GB limit on a single mapping
+     */
+    private static final long MAX_CHUNK_BYTES = 1L << 28;
+    private static final long MIN_CHUNK_BYTES = 1L << 20;
+
+    /* Sidecar cache format */
+    static final String CACHE_SUFFIX = ".bin";
+    private static final int CACHE_MAGIC = 0x49434C53; //"ICLS"
+    private static final int CACHE_VERSION = 1;
+    private static final int CACHE_HEADER_BYTES = 4 + 4 + 8 + 8 + 4;
+    private static final long CACHE_WINDOW_BYTES = 1L << 30;
+
+    /* Powers of ten exactly representable as doubles,
+     * for the fast parsing path
+     */
+    private static final double[] POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    /**Reads the given multiclass scores file using as many threads
+     * as there are available processors
+     *
+     * @param filename
+     * @return
+     */
+    public static Map<String, double[]> read(String filename)
+    {
+        return read(filename, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**Reads the given multiclass scores file, parsing chunks with
+     * up to numThreads threads
+     *
+     * @param filename
+     * @param numThreads
+     * @return
+     */
+    public static Map<String, double[]> read(String filename, int numThreads)
+    {
+        Map<String, double[]> mccScores = new HashMap<>();
+        try(RandomAccessFile raf = new RandomAccessFile(filename, "r");
+            FileChannel channel = raf.getChannel()){
+            long[] bounds = _getChunkBounds(channel, Math.max(numThreads, 1));
+            int numChunks = bounds.length - 1;
+            ChunkParser[] parsers = new ChunkParser[numChunks];
+            for(int i=0; i<numChunks; i++)
+                parsers[i] = new ChunkParser(channel, bounds[i], bounds[i+1]);
+
+            //Run the parsers, at most numThreads at a time
+            int nextIdx = 0;
+            List<ChunkParser> running = new ArrayList<>();
+            while(nextIdx < numChunks || !running.isEmpty()){
+                while(nextIdx < numChunks && running.size() < numThreads){
+                    parsers[nextIdx].start();
+                    running.add(parsers[nextIdx++]);
+                }
+                running.get(0).join();
+                running.remove(0);
+            }
+
+            int numLines = 0;
+            for(ChunkParser p : parsers){
+                if(p.getException() != null)
+                    throw p.getException();
+                numLines += p.getScores().size();
+            }
+            mccScores = new HashMap<>((int)(numLines / 0.75) + 1);
+            for(ChunkParser p : parsers)
+                mccScores.putAll(p.getScores());
+            Logger.log("Read %d score distributions from %s (%d chunks)",
+                    mccScores.size(), filename, numChunks);
+        } catch(Exception ex) {
+            Logger.log(ex);
+        }
+        return mccScores;
+    }
+
+    /**Reads the given multiclass scores file, preferring its binary
+     * sidecar when that sidecar was built from an identical source
+     * (same size and CRC32); otherwise the source is parsed and the
+     * sidecar (re)written for next time. Failures in the cache are
+     * logged and fall back to parsing
+     *
+     * @param filename
+     * @return
+     */
+    public static Map<String, double[]> readCached(String filename)
+    {
+        File source = new File(filename);
+        File cache = new File(filename + CACHE_SUFFIX);
+        long checksum = -1;
+        try {
+            if(cache.exists()){
+                long[] header = _readCacheHeader(cache);
+                if(header != null && header[0] == source.length()){
+                    checksum = _getChecksum(source);
+                    if(header[1] == checksum){
+                        Map<String, double[]> mccScores = _readCache(cache, (int)header[2]);
+                        Logger.log("Read %d score distributions from %s",
+                                mccScores.size(), cache.getPath());
+                        return mccScores;
+                    }
+                }
+                Logger.log("Score cache %s is stale; rebuilding", cache.getPath());
+            }
+        } catch(Exception ex) {
+            Logger.log(ex);
+        }
+
+        Map<String, double[]> mccScores = read(filename);
+        if(!mccScores.isEmpty()){
+            try {
+                if(checksum < 0)
+                    checksum = _getChecksum(source);
+                _writeCache(cache, source.length(), checksum, mccScores);
+            } catch(Exception ex) {
+                Logger.log(ex);
+            }
+        }
+        return mccScores;
+    }
+
+    /**Returns the CRC32 of the given file's contents
+     *
+     * @param f
+     * @return
+     * @throws IOException
+     */
+    private static long _getChecksum(File f) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        try(RandomAccessFile raf = new RandomAccessFile(f, "r");
+            FileChannel channel = raf.getChannel()){
+            long size = channel.size();
+            for(long pos = 0; pos < size; pos += CACHE_WINDOW_BYTES)
+                crc.update(channel.map(FileChannel.MapMode.READ_ONLY, pos,
+                        Math.min(CACHE_WINDOW_BYTES, size - pos)));
+        }
+        return crc.getValue();
+    }
+
+    /**Returns the source size, source checksum, and number of
+     * entries recorded in the given cache's header, or null
+     * if the header isn't one we wrote
+     *
+     * @param cache
+     * @return
+     * @throws IOException
+     */
+    private static long[] _readCacheHeader(File cache) throws IOException
+    {
+        try(DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(cache)))){
+            if(cache.length() < CACHE_HEADER_BYTES || in.readInt() != CACHE_MAGIC ||
+               in.readInt() != CACHE_VERSION)
+                return null;
+            return new long[]{in.readLong(), in.readLong(), in.readInt()};
+        }
+    }
+
+    /**Reads the entries of the given cache, mapping it in windows
+     * (each under the 2GB limit on a single mapping) and remapping
+     * at the start of any entry that would straddle a window
+     *
+     * @param cache
+     * @param numEntries
+     * @return
+     * @throws IOException
+     */
+    private static Map<String, double[]> _readCache(File cache, int numEntries)
+            throws IOException
+    {
+        Map<String, double[]> mccScores = new HashMap<>((int)(numEntries / 0.75) + 1);
+        try(RandomAccessFile raf = new RandomAccessFile(cache, "r");
+            FileChannel channel = raf.getChannel()){
+            long size = channel.size();
+            long windowStart = CACHE_HEADER_BYTES;
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY,
+                    windowStart, Math.min(CACHE_WINDOW_BYTES, size - windowStart));
+            byte[] idBytes = new byte[256];
+            for(int e=0; e<numEntries; e++){
+                //remap if this entry runs past the window
+                int entryBytes = _getEntryBytes(buf);
+                if(entryBytes < 0 || entryBytes > buf.remaining()){
+                    windowStart += buf.position();
+                    if(windowStart >= size)
+                        throw new EOFException("Truncated score cache " + cache.getPath());
+                    buf = channel.map(FileChannel.MapMode.READ_ONLY, windowStart,
+                            Math.min(CACHE_WINDOW_BYTES, size - windowStart));
+                    entryBytes = _getEntryBytes(buf);
+                    if(entryBytes < 0 || entryBytes > buf.remaining())
+                        throw new EOFException("Truncated score cache " + cache.getPath());
+                }
+
+                int idLen = buf.getShort() & 0xFFFF;
+                if(idLen > idBytes.length)
+                    idBytes = new byte[2 * idLen];
+                buf.get(idBytes, 0, idLen);
+                String id = ChunkParser._getString(idBytes, 0, idLen);
+                double[] vals = new double[buf.getShort() & 0xFFFF];
+                buf.asDoubleBuffer().get(vals);
+                buf.position(buf.position() + 8 * vals.length);
+                mccScores.put(id, vals);
+            }
+        }
+        return mccScores;
+    }
+
+    /**Returns the size in bytes of the cache entry at the buffer's
+     * position, or -1 if its lengths aren't within the buffer
+     *
+     * @param buf
+     * @return
+     */
+    private static int _getEntryBytes(ByteBuffer buf)
+    {
+        int pos = buf.position();
+        if(buf.remaining() < 2)
+            return -1;
+        int idLen = buf.getShort(pos) & 0xFFFF;
+        if(buf.remaining() < 4 + idLen)
+            return -1;
+        int numVals = buf.getShort(pos + 2 + idLen) & 0xFFFF;
+        return 4 + idLen + 8 * numVals;
+    }
+
+    /**Writes the given scores to the cache file, by way of a temporary
+     * file that replaces the cache only once it's complete
+     *
+     * @param cache
+     * @param sourceSize
+     * @param checksum
+     * @param mccScores
+     * @throws IOException
+     */
+    private static void _writeCache(File cache, long sourceSize, long checksum,
+                                    Map<String, double[]> mccScores) throws IOException
+    {
+        File tmp = new File(cache.getPath() + ".tmp");
+        try(DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))){
+            out.writeInt(CACHE_MAGIC);
+            out.writeInt(CACHE_VERSION);
+            out.writeLong(sourceSize);
+            out.writeLong(checksum);
+            out.writeInt(mccScores.size());
+            for(Map.Entry<String, double[]> e : mccScores.entrySet()){
+                byte[] idBytes = e.getKey().getBytes(StandardCharsets.UTF_8);
+                double[] vals = e.getValue();
+                if(idBytes.length > 0xFFFF || vals.length > 0xFFFF)
+                    throw new IOException("Score entry too large to cache: " + e.getKey());
+                out.writeShort(idBytes.length);
+                out.write(idBytes);
+                out.writeShort(vals.length);
+                for(double v : vals)
+                    out.writeDouble(v);
+            }
+        } catch(IOException ioEx) {
+            tmp.delete();
+            throw ioEx;
+        }
+        Files.move(tmp.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        Logger.log("Wrote score cache %s", cache.getPath());
+    }
+
+    /**Returns the chunk boundaries for the given file, where each
+     * boundary (save the first and last) falls just after a newline
+     *
+     * @param channel
+     * @param numThreads
+     * @return
+     * @throws IOException
+     */
+    private static long[] _getChunkBounds(FileChannel channel, int numThreads)
+            throws IOException
+    {
+        long size = channel.size();
+        long chunkBytes = size / (4 * numThreads) + 1;
+        chunkBytes = Math.max(MIN_CHUNK_BYTES, Math.min(MAX_CHUNK_BYTES, chunkBytes));
+
+        List<Long> boundList = new ArrayList<>();
+        boundList.add(0L);
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        long pos = chunkBytes;
+        while(pos < size){
+            //advance to the byte after the next newline
+            boolean found = false;
+            while(!found && pos < size){
+                probe.clear();
+                int n = channel.read(probe, pos);
+                if(n <= 0)
+                    break;
+                for(int i=0; i<n && !found; i++){
+                    if(probe.get(i) == '\n'){
+                        pos += i + 1;
+                        found = true;
+                    }
+                }
+                if(!found)
+                    pos += n;
+            }
+            if(pos >= size)
+                break;
+            boundList.add(pos);
+            pos += chunkBytes;
+        }
+        boundList.add(size);
+
+        long[] bounds = new long[boundList.size()];
+        for(int i=0; i<bounds.length; i++)
+            bounds[i] = boundList.get(i);
+        return bounds;
+    }
+
+    /**Parses the double in buf[start, end); falls back to
+     * Double.parseDouble for anything outside the fast path
+     * (mantissas over 2^53, large exponents, nan / inf)
+     *
+     * @param buf
+     * @param start
+     * @param end
+     * @return
+     */
+    static double parseDouble(byte[] buf, int start, int end)
+    {
+        int i = start;
+        boolean neg = false;
+        if(i < end && (buf[i] == '-' || buf[i] == '+'))
+            neg = buf[i++] == '-';
+
+        long mantissa = 0;
+        int numDigits = 0, exp10 = 0;
+        boolean seenDigit = false, seenPoint = false;
+        for(; i < end; i++){
+            byte c = buf[i];
+            if(c >= '0' && c <= '9'){
+                seenDigit = true;
+                if(mantissa == 0 && c == '0'){
+                    //leading zeros aren't significant
+                    if(seenPoint)
+                        exp10--;
+                    continue;
+                }
+                if(numDigits >= 18)
+                    return _parseSlow(buf, start, end);
+                mantissa = 10 * mantissa + (c - '0');
+                numDigits++;
+                if(seenPoint)
+                    exp10--;
+            } else if(c == '.' && !seenPoint){
+                seenPoint = true;
+            } else {
+                break;
+            }
+        }
+        if(!seenDigit)
+            return _parseSlow(buf, start, end);
+        if(i < end){
+            if(buf[i] != 'e' && buf[i] != 'E')
+                return _parseSlow(buf, start, end);
+            i++;
+            boolean expNeg = false;
+            if(i < end && (buf[i] == '-' || buf[i] == '+'))
+                expNeg = buf[i++] == '-';
+            if(i == end)
+                return _parseSlow(buf, start, end);
+            int exp = 0;
+            for(; i < end; i++){
+                byte c = buf[i];
+                if(c < '0' || c > '9' || exp > 1000)
+                    return _parseSlow(buf, start, end);
+                exp = 10 * exp + (c - '0');
+            }
+            exp10 += expNeg ? -exp : exp;
+        }
+
+        //Clinger's fast path: both the (< 2^53) mantissa and the
+        //power of ten are exact, so one operation rounds correctly
+        double val;
+        if(mantissa > (1L << 53))
+            return _parseSlow(buf, start, end);
+        else if(mantissa == 0)
+            val = 0.0;
+        else if(exp10 >= 0 && exp10 < POW10.length)
+            val = mantissa * POW10[exp10];
+        else if(exp10 < 0 && -exp10 < POW10.length)
+            val = mantissa / POW10[-exp10];
+        else
+            return _parseSlow(buf, start, end);
+        return neg ? -val : val;
+    }
+
+    /**Parses the given bytes with Double.parseDouble, additionally
+     * accepting numpy-style nan / inf / -inf
+     *
+     * @param buf
+     * @param start
+     * @param end
+     * @return
+     */
+    private static double _parseSlow(byte[] buf, int start, int end)
+    {
+        String s = new String(buf, start, end - start, StandardCharsets.ISO_8859_1).trim();
+        switch(s.toLowerCase()){
+            case "nan":
+            case "-nan": return Double.NaN;
+            case "inf":
+            case "+inf":
+            case "infinity": return Double.POSITIVE_INFINITY;
+            case "-inf":
+            case "-infinity": return Double.NEGATIVE_INFINITY;
+        }
+        return Double.parseDouble(s);
+    }
+
+    /**ChunkParser maps and parses the lines of one chunk
+     * of a score file into its own map
+     */
+    private static class ChunkParser extends Thread
+    {
+        private FileChannel _channel;
+        private long _start, _end;
+        private Map<String, double[]> _scores;
+        private Exception _exception;
+
+        ChunkParser(FileChannel channel, long start, long end)
+        {
+            _channel = channel;
+            _start = start;
+            _end = end;
+            _scores = new HashMap<>();
+            _exception = null;
+        }
+
+        @Override
+        public void run()
+        {
+            try {
+                _parse();
+            } catch(Exception ex) {
+                _exception = ex;
+            }
+        }
+
+        Map<String, double[]> getScores(){return _scores;}
+
+        Exception getException(){return _exception;}
+
+        private void _parse() throws IOException
+        {
+            int length = (int)(_end - _start);
+            if(length == 0)
+                return;
+            MappedByteBuffer buf = _channel.map(FileChannel.MapMode.READ_ONLY, _start, length);
+            byte[] line = new byte[256];
+            double[] vals = new double[16];
+            int pos = 0;
+            while(pos < length){
+                //copy the line into the scratch buffer
+                int lineLen = 0;
+                while(pos < length){
+                    byte c = buf.get(pos++);
+                    if(c == '\n')
+                        break;
+                    if(lineLen == line.length)
+                        line = Arrays.copyOf(line, 2 * line.length);
+                    line[lineLen++] = c;
+                }
+                if(lineLen > 0 && line[lineLen-1] == '\r')
+                    lineLen--;
+                if(lineLen == 0)
+                    continue;
+
+                //The ID runs to the first comma; scores follow
+                int comma = 0;
+                while(comma < lineLen && line[comma] != ',')
+                    comma++;
+                String id = _getString(line, 0, comma);
+                int numVals = 0;
+                int fieldStart = comma + 1;
+                while(fieldStart < lineLen){
+                    int fieldEnd = fieldStart;
+                    while(fieldEnd < lineLen && line[fieldEnd] != ',')
+                        fieldEnd++;
+                    if(numVals == vals.length)
+                        vals = Arrays.copyOf(vals, 2 * vals.length);
+                    vals[numVals++] = Math.exp(parseDouble(line, fieldStart, fieldEnd));
+                    fieldStart = fieldEnd + 1;
+                }
+                _scores.put(id, Arrays.copyOf(vals, numVals));
+            }
+        }
+
+        /**Decodes IDs as ISO-8859-1 when they're pure ASCII (as
+         * they always are, in practice) and UTF-8 otherwise
+         */
+        private static String _getString(byte[] buf, int start, int end)
+        {
+            for(int i=start; i<end; i++)
+                if(buf[i] < 0)
+                    return new String(buf, start, end - start, StandardCharsets.UTF_8);
+            return new String(buf, start, end - start, StandardCharsets.ISO_8859_1);
+        }
+    }
+}
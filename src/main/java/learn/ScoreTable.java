@@ -0,0 +1,354 @@
+package learn;
+
+import structures.BoundingBox;
+import structures.Document;
+import structures.Mention;
+import utilities.Logger;
+
+import java.util.*;
+
+/**ScoreTable stores the relation, affinity, cardinality, and
+ * nonvisual scores for a set of documents in dense primitive
+ * arrays, indexed by the position of mentions in
+ * Document.getMentionList() and of boxes in getBoxList()
+ * (boxes ordered by index); relation scores are stored as
+ * [i][j][label], affinity as [i][o][label], cardinality as
+ * [i][n], and nonvis as [i]. The table is filled once from
+ * the ID-keyed score maps, such that inference and evaluation
+ * need not construct and hash pair ID strings on each lookup;
+ * each document's DocumentScores is a read-only view that can
+ * be handed to a solver on its own
+ *
+ * @author ccervantes
+ */
+public class ScoreTable
+{
+    private Map<String, DocumentScores> _docScoreDict;
+    private int _numRelationLabels, _numAffinityLabels, _numCardinalityLabels;
+
+    /**Creates a new ScoreTable for the given documents, filled
+     * from the given ID-keyed score maps (any of which may be
+     * empty); mention/box pairs absent from a map are
+     * stored as missing
+     *
+     * @param docSet
+     * @param relationScores    - Keyed by Document.getMentionPairStr()
+     * @param affinityScores    - Keyed by Document.getMentionBoxStr()
+     * @param cardinalityScores - Keyed by mention ID
+     * @param nonvisScores      - Keyed by mention ID
+     */
+    public ScoreTable(Collection<Document> docSet, Map<String, double[]> relationScores,
+                      Map<String, double[]> affinityScores,
+                      Map<String, double[]> cardinalityScores,
+                      Map<String, Double> nonvisScores)
+    {
+        _numRelationLabels = _getMaxLength(relationScores);
+        _numAffinityLabels = _getMaxLength(affinityScores);
+        _numCardinalityLabels = _getMaxLength(cardinalityScores);
+
+        _docScoreDict = new HashMap<>();
+        for(Document d : docSet){
+            DocumentScores scores = new DocumentScores(d);
+            int numMentions = scores._mentionList.size();
+            int numBoxes = scores._boxList.size();
+            for(int i=0; i<numMentions; i++){
+                Mention m_i = scores._mentionList.get(i);
+                if(!relationScores.isEmpty()){
+                    for(int j=0; j<numMentions; j++){
+                        if(i != j)
+                            _copyScores(relationScores.get(Document.getMentionPairStr(m_i,
+                                    scores._mentionList.get(j))), scores._relation,
+                                    (i * numMentions + j) * _numRelationLabels, _numRelationLabels);
+                    }
+                }
+                if(!affinityScores.isEmpty()){
+                    for(int o=0; o<numBoxes; o++){
+                        _copyScores(affinityScores.get(Document.getMentionBoxStr(m_i,
+                                scores._boxList.get(o))), scores._affinity,
+                                (i * numBoxes + o) * _numAffinityLabels, _numAffinityLabels);
+                    }
+                }
+                _copyScores(cardinalityScores.get(m_i.getUniqueID()), scores._cardinality,
+                        i * _numCardinalityLabels, _numCardinalityLabels);
+                Double nonvisScore = nonvisScores.get(m_i.getUniqueID());
+                if(nonvisScore != null)
+                    scores._nonvis[i] = nonvisScore;
+            }
+            _docScoreDict.put(d.getID(), scores);
+        }
+        Logger.log("Stored scores for %d documents (%d relation, %d affinity, "+
+                   "%d cardinality labels)", _docScoreDict.size(), _numRelationLabels,
+                   _numAffinityLabels, _numCardinalityLabels);
+    }
+
+    /**Returns the scores for the given document (or null, if the
+     * document was not in the table)
+     *
+     * @param docID
+     * @return
+     */
+    public DocumentScores get(String docID){return _docScoreDict.get(docID);}
+
+    /**Returns the number of relation labels per mention pair
+     *
+     * @return
+     */
+    public int getNumRelationLabels(){return _numRelationLabels;}
+
+    /**Returns the number of affinity labels per mention / box pair
+     *
+     * @return
+     */
+    public int getNumAffinityLabels(){return _numAffinityLabels;}
+
+    /**Returns the number of cardinality labels per mention
+     *
+     * @return
+     */
+    public int getNumCardinalityLabels(){return _numCardinalityLabels;}
+
+    /**Returns the length of the longest score array in the map
+     *
+     * @param scoreDict
+     * @return
+     */
+    private static int _getMaxLength(Map<String, double[]> scoreDict)
+    {
+        int maxLen = 0;
+        for(double[] scores : scoreDict.values())
+            maxLen = Math.max(maxLen, scores.length);
+        return maxLen;
+    }
+
+    /**Copies the given scores to dest, starting at destPos; null scores
+     * are stored as a missing entry (NaN in the first position)
+     *
+     * @param scores
+     * @param dest
+     * @param destPos
+     * @param numLabels
+     */
+    private static void _copyScores(double[] scores, double[] dest, int destPos, int numLabels)
+    {
+        if(numLabels == 0)
+            return;
+        if(scores == null)
+            dest[destPos] = Double.NaN;
+        else
+            System.arraycopy(scores, 0, dest, destPos, Math.min(scores.length, numLabels));
+    }
+
+    /**DocumentScores holds the dense score arrays for a single document,
+     * along with the mention and box orders by which they're indexed
+     */
+    public class DocumentScores
+    {
+        private String _docID;
+        private List<Mention> _mentionList;
+        private List<BoundingBox> _boxList;
+        private double[] _relation, _affinity, _cardinality, _nonvis;
+
+        private DocumentScores(Document d)
+        {
+            this(d.getID(), new ArrayList<>(d.getMentionList()), new ArrayList<>(d.getBoundingBoxSet()));
+        }
+
+        private DocumentScores(String docID, List<Mention> mentionList, List<BoundingBox> boxList)
+        {
+            _docID = docID;
+            _mentionList = Collections.unmodifiableList(mentionList);
+            boxList.sort(Comparator.comparingInt(BoundingBox::getIdx));
+            _boxList = Collections.unmodifiableList(boxList);
+            int numMentions = _mentionList.size(), numBoxes = _boxList.size();
+            _relation = new double[numMentions * numMentions * _numRelationLabels];
+            _affinity = new double[numMentions * numBoxes * _numAffinityLabels];
+            _cardinality = new double[numMentions * _numCardinalityLabels];
+            _nonvis = new double[numMentions];
+            Arrays.fill(_nonvis, Double.NaN);
+        }
+
+        /**Returns the ID of the document to which these scores belong
+         *
+         * @return
+         */
+        public String getDocID(){return _docID;}
+
+        /**Returns the mentions, in index order
+         *
+         * @return
+         */
+        public List<Mention> getMentionList(){return _mentionList;}
+
+        /**Returns the bounding boxes, in index order
+         *
+         * @return
+         */
+        public List<BoundingBox> getBoxList(){return _boxList;}
+
+        /**Returns whether there are relation scores for the i->j link
+         *
+         * @param i
+         * @param j
+         * @return
+         */
+        public boolean hasRelationScores(int i, int j)
+        {
+            return _numRelationLabels > 0 && i != j &&
+                   !Double.isNaN(_relation[(i * _mentionList.size() + j) * _numRelationLabels]);
+        }
+
+        /**Returns the score of the i->j link taking the given label
+         *
+         * @param i
+         * @param j
+         * @param label
+         * @return
+         */
+        public double getRelationScore(int i, int j, int label)
+        {
+            return _relation[(i * _mentionList.size() + j) * _numRelationLabels + label];
+        }
+
+        /**Returns the argmax label of the i->j link, or -1 if
+         * there are no scores for it
+         *
+         * @param i
+         * @param j
+         * @return
+         */
+        public int getRelationLabel(int i, int j)
+        {
+            if(!hasRelationScores(i, j))
+                return -1;
+            return _getMaxIdx(_relation, (i * _mentionList.size() + j) * _numRelationLabels,
+                    _numRelationLabels);
+        }
+
+        /**Returns whether there are affinity scores for mention i and box o
+         *
+         * @param i
+         * @param o
+         * @return
+         */
+        public boolean hasAffinityScores(int i, int o)
+        {
+            return _numAffinityLabels > 0 &&
+                   !Double.isNaN(_affinity[(i * _boxList.size() + o) * _numAffinityLabels]);
+        }
+
+        /**Returns the score of mention i and box o taking the given label
+         *
+         * @param i
+         * @param o
+         * @param label
+         * @return
+         */
+        public double getAffinityScore(int i, int o, int label)
+        {
+            return _affinity[(i * _boxList.size() + o) * _numAffinityLabels + label];
+        }
+
+        /**Returns the argmax label of mention i and box o, or -1 if
+         * there are no scores for them
+         *
+         * @param i
+         * @param o
+         * @return
+         */
+        public int getAffinityLabel(int i, int o)
+        {
+            if(!hasAffinityScores(i, o))
+                return -1;
+            return _getMaxIdx(_affinity, (i * _boxList.size() + o) * _numAffinityLabels,
+                    _numAffinityLabels);
+        }
+
+        /**Returns whether there are cardinality scores for mention i
+         *
+         * @param i
+         * @return
+         */
+        public boolean hasCardinalityScores(int i)
+        {
+            return _numCardinalityLabels > 0 &&
+                   !Double.isNaN(_cardinality[i * _numCardinalityLabels]);
+        }
+
+        /**Returns the score of mention i having cardinality n
+         *
+         * @param i
+         * @param n
+         * @return
+         */
+        public double getCardinalityScore(int i, int n)
+        {
+            return _cardinality[i * _numCardinalityLabels + n];
+        }
+
+        /**Returns the argmax cardinality of mention i, or -1 if
+         * there are no scores for it
+         *
+         * @param i
+         * @return
+         */
+        public int getCardinalityLabel(int i)
+        {
+            if(!hasCardinalityScores(i))
+                return -1;
+            return _getMaxIdx(_cardinality, i * _numCardinalityLabels, _numCardinalityLabels);
+        }
+
+        /**Returns the scores restricted to the mentions at the given
+         * indices (in the given order) and all of this document's
+         * boxes, such that part of a document can be solved on its own
+         *
+         * @param mentionIndices
+         * @return
+         */
+        public DocumentScores subset(List<Integer> mentionIndices)
+        {
+            List<Mention> mentionList = new ArrayList<>();
+            for(int i : mentionIndices)
+                mentionList.add(_mentionList.get(i));
+            DocumentScores scores = new DocumentScores(_docID, mentionList, new ArrayList<>(_boxList));
+            int numMentions = _mentionList.size(), numBoxes = _boxList.size();
+            int numSubset = mentionIndices.size();
+            for(int s_i=0; s_i<numSubset; s_i++){
+                int i = mentionIndices.get(s_i);
+                for(int s_j=0; s_j<numSubset; s_j++){
+                    System.arraycopy(_relation, (i * numMentions + mentionIndices.get(s_j)) * _numRelationLabels,
+                            scores._relation, (s_i * numSubset + s_j) * _numRelationLabels, _numRelationLabels);
+                }
+                System.arraycopy(_affinity, i * numBoxes * _numAffinityLabels, scores._affinity,
+                        s_i * numBoxes * _numAffinityLabels, numBoxes * _numAffinityLabels);
+                System.arraycopy(_cardinality, i * _numCardinalityLabels, scores._cardinality,
+                        s_i * _numCardinalityLabels, _numCardinalityLabels);
+                scores._nonvis[s_i] = _nonvis[i];
+            }
+            return scores;
+        }
+
+        /**Returns whether there is a nonvisual score for mention i
+         *
+         * @param i
+         * @return
+         */
+        public boolean hasNonvisScore(int i){return !Double.isNaN(_nonvis[i]);}
+
+        /**Returns the score of mention i being nonvisual
+         *
+         * @param i
+         * @return
+         */
+        public double getNonvisScore(int i){return _nonvis[i];}
+
+        private int _getMaxIdx(double[] arr, int start, int len)
+        {
+            int maxIdx = 0;
+            for(int y=1; y<len; y++)
+                if(arr[start + y] > arr[start + maxIdx])
+                    maxIdx = y;
+            return maxIdx;
+        }
+    }
+}
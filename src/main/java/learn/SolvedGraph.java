@@ -0,0 +1,256 @@
+package learn;
+
+import structures.BoundingBox;
+import structures.Document;
+import structures.Mention;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**SolvedGraph holds a document's predicted relation, grounding, and
+ * visual labels as byte arrays indexed by mention / box ordinal --
+ * the order of the document's ScoreTable.DocumentScores lists -- rather
+ * than as maps from pair ID strings to boxed labels. Links without a
+ * label (and graphs that were never set) read as UNSET
+ *
+ * @author ccervantes
+ */
+public class SolvedGraph implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+    public static final byte UNSET = -1;
+
+    private String _docID;
+    private int _numMentions, _numBoxes;
+    private byte[] _relation, _grounding, _visual;
+
+    /**Creates a new, empty graph for the given document
+     *
+     * @param docID
+     * @param numMentions
+     * @param numBoxes
+     */
+    public SolvedGraph(String docID, int numMentions, int numBoxes)
+    {
+        _docID = docID;
+        _numMentions = numMentions;
+        _numBoxes = numBoxes;
+        _relation = null;
+        _grounding = null;
+        _visual = null;
+    }
+
+    /**Returns a graph for the given document's scores, with labels
+     * taken from the given ID-keyed label dicts (as produced by the
+     * solver), any of which may be null
+     *
+     * @param scores
+     * @param relationLabels  - Mention pair IDs to relation labels
+     * @param groundingLabels - Mention / box IDs to grounding labels
+     * @param visualLabels    - Mention IDs to visual labels
+     * @return
+     */
+    public static SolvedGraph fromLabelDicts(ScoreTable.DocumentScores scores,
+                                             Map<String, Integer> relationLabels,
+                                             Map<String, Integer> groundingLabels,
+                                             Map<String, Integer> visualLabels)
+    {
+        List<Mention> mentions = scores.getMentionList();
+        List<BoundingBox> boxes = scores.getBoxList();
+        SolvedGraph graph = new SolvedGraph(scores.getDocID(), mentions.size(), boxes.size());
+        for(int i=0; i<mentions.size(); i++){
+            Mention m_i = mentions.get(i);
+            if(relationLabels != null && !relationLabels.isEmpty())
+                for(int j=0; j<mentions.size(); j++)
+                    if(i != j)
+                        graph._setLabel(relationLabels.get(Document.getMentionPairStr(m_i, mentions.get(j))),
+                                        0, i * mentions.size() + j);
+            if(groundingLabels != null && !groundingLabels.isEmpty())
+                for(int o=0; o<boxes.size(); o++)
+                    graph._setLabel(groundingLabels.get(Document.getMentionBoxStr(m_i, boxes.get(o))),
+                                    1, i * boxes.size() + o);
+            if(visualLabels != null && !visualLabels.isEmpty())
+                graph._setLabel(visualLabels.get(m_i.getUniqueID()), 2, i);
+        }
+        return graph;
+    }
+
+    /**Returns the ID of the document to which this graph belongs
+     *
+     * @return
+     */
+    public String getDocID(){return _docID;}
+
+    /**Returns the number of mentions this graph is indexed by
+     *
+     * @return
+     */
+    public int getNumMentions(){return _numMentions;}
+
+    /**Returns the number of boxes this graph is indexed by
+     *
+     * @return
+     */
+    public int getNumBoxes(){return _numBoxes;}
+
+    /**Returns whether any relation labels have been set
+     *
+     * @return
+     */
+    public boolean hasRelations(){return _relation != null;}
+
+    /**Returns whether any grounding labels have been set
+     *
+     * @return
+     */
+    public boolean hasGroundings(){return _grounding != null;}
+
+    /**Returns whether any visual labels have been set
+     *
+     * @return
+     */
+    public boolean hasVisual(){return _visual != null;}
+
+    /**Returns whether no labels have been set
+     *
+     * @return
+     */
+    public boolean isEmpty(){return _relation == null && _grounding == null && _visual == null;}
+
+    /**Returns the relation label of the i->j link, or UNSET
+     *
+     * @param i
+     * @param j
+     * @return
+     */
+    public int getRelationLabel(int i, int j)
+    {
+        return _relation == null ? UNSET : _relation[i * _numMentions + j];
+    }
+
+    /**Returns the grounding label of mention i and box o, or UNSET
+     *
+     * @param i
+     * @param o
+     * @return
+     */
+    public int getGroundingLabel(int i, int o)
+    {
+        return _grounding == null ? UNSET : _grounding[i * _numBoxes + o];
+    }
+
+    /**Returns the visual label of mention i, or UNSET
+     *
+     * @param i
+     * @return
+     */
+    public int getVisualLabel(int i)
+    {
+        return _visual == null ? UNSET : _visual[i];
+    }
+
+    /**Sets the relation label of the i->j link
+     *
+     * @param i
+     * @param j
+     * @param label
+     */
+    public void setRelationLabel(int i, int j, int label){_setLabel(label, 0, i * _numMentions + j);}
+
+    /**Sets the grounding label of mention i and box o
+     *
+     * @param i
+     * @param o
+     * @param label
+     */
+    public void setGroundingLabel(int i, int o, int label){_setLabel(label, 1, i * _numBoxes + o);}
+
+    /**Sets the visual label of mention i
+     *
+     * @param i
+     * @param label
+     */
+    public void setVisualLabel(int i, int label){_setLabel(label, 2, i);}
+
+    /**Sets the label at the given index of the given array (0: relation,
+     * 1: grounding, 2: visual), allocating the array on its first label;
+     * null labels are left unset
+     *
+     * @param label
+     * @param arrIdx
+     * @param idx
+     */
+    private void _setLabel(Integer label, int arrIdx, int idx)
+    {
+        if(label == null)
+            return;
+        byte[] arr = arrIdx == 0 ? _relation : arrIdx == 1 ? _grounding : _visual;
+        if(arr == null){
+            int len = arrIdx == 0 ? _numMentions * _numMentions :
+                      arrIdx == 1 ? _numMentions * _numBoxes : _numMentions;
+            arr = new byte[len];
+            Arrays.fill(arr, UNSET);
+            if(arrIdx == 0)
+                _relation = arr;
+            else if(arrIdx == 1)
+                _grounding = arr;
+            else
+                _visual = arr;
+        }
+        arr[idx] = (byte)(int)label;
+    }
+
+    /**Writes this graph to the given stream, in the form read()
+     * expects
+     *
+     * @param out
+     * @throws IOException
+     */
+    void write(DataOutputStream out) throws IOException
+    {
+        out.writeUTF(_docID);
+        out.writeInt(_numMentions);
+        out.writeInt(_numBoxes);
+        for(byte[] arr : new byte[][]{_relation, _grounding, _visual}){
+            out.writeBoolean(arr != null);
+            if(arr != null)
+                out.write(arr);
+        }
+    }
+
+    /**Reads a graph written by write() from the given stream
+     *
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    static SolvedGraph read(DataInputStream in) throws IOException
+    {
+        SolvedGraph graph = new SolvedGraph(in.readUTF(), in.readInt(), in.readInt());
+        graph._relation = _readArr(in, graph._numMentions * graph._numMentions);
+        graph._grounding = _readArr(in, graph._numMentions * graph._numBoxes);
+        graph._visual = _readArr(in, graph._numMentions);
+        return graph;
+    }
+
+    /**Reads an optional array of the given length
+     *
+     * @param in
+     * @param len
+     * @return
+     * @throws IOException
+     */
+    private static byte[] _readArr(DataInputStream in, int len) throws IOException
+    {
+        if(!in.readBoolean())
+            return null;
+        byte[] arr = new byte[len];
+        in.readFully(arr);
+        return arr;
+    }
+}
@@ -0,0 +1,270 @@
+package out;
+
+import utilities.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**BinaryMatrixWriter streams dense feature rows to a
+ * little-endian float32 matrix file, alongside a sidecar
+ * text file holding each row's ID and label; intended
+ * for the multi-GB box feature lists, which downstream
+ * tools can then mmap rather than re-parse. Given a
+ * file root, the writer produces
+ *      ROOT.bin        32 byte header followed by
+ *                      rows x cols float32 values
+ *      ROOT_rows.txt   one "id,label" line per row
+ * where the header is laid out as
+ *      magic (ICLM) | version (int32) | dtype (int32) |
+ *      reserved (int32) | rows (int64) | cols (int64)
+ * so that, in numpy,
+ *      np.memmap(f, dtype='<f4', offset=32, shape=(rows, cols))
+ *
+ * @author ccervantes
+ */
+public class BinaryMatrixWriter
+{
+    public static final int HEADER_BYTES = 32;
+    private static final byte[] MAGIC = {'I', 'C', 'L', 'M'};
+    private static final int VERSION = 1;
+    private static final int DTYPE_FLOAT32 = 1;
+    private static final int MIN_BUFFER_BYTES = 1 << 20;
+
+    private String _fileRoot;
+    private FileChannel _channel;
+    private BufferedWriter _rowWriter;
+    private ByteBuffer _buffer;
+    private FloatBuffer _floatView;
+    private long _numRows;
+    private int _numCols;
+
+    //NaN rows written before the column count was known,
+    //as {id, label}, held until the first full row fixes it
+    private List<String[]> _pendingNaNRows;
+
+    /**Opens ROOT.bin and ROOT_rows.txt for writing; the
+     * number of columns is fixed by the first row written
+     *
+     * @param fileRoot
+     */
+    public BinaryMatrixWriter(String fileRoot)
+    {
+        _fileRoot = fileRoot;
+        _numRows = 0;
+        _numCols = -1;
+        _pendingNaNRows = new ArrayList<>();
+        try {
+            _channel = new RandomAccessFile(fileRoot + ".bin", "rw").getChannel();
+            _channel.truncate(0);
+            _channel.write(_getHeader(), 0);
+            _channel.position(HEADER_BYTES);
+            _rowWriter = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(fileRoot + "_rows.txt"), StandardCharsets.UTF_8));
+        } catch(IOException ioEx) {
+            Logger.log(ioEx);
+        }
+    }
+
+    /**Writes the given values as the next row; null
+     * values (as when a box's features couldn't be
+     * found) are written as a row of NaNs, so that
+     * the matrix stays aligned with any parallel files
+     *
+     * @param id
+     * @param label
+     * @param values
+     */
+    public void writeRow(String id, String label, List<Double> values)
+    {
+        if(values == null){
+            _writeNaNRow(id, label);
+            return;
+        }
+        if(!_reserveRow(id, values.size()))
+            return;
+        for(Double v : values)
+            _floatView.put(v == null ? Float.NaN : v.floatValue());
+        _commitRow(id, label);
+    }
+
+    /**Writes the given values as the next row
+     *
+     * @param id
+     * @param label
+     * @param values
+     */
+    public void writeRow(String id, String label, double[] values)
+    {
+        if(values == null){
+            _writeNaNRow(id, label);
+            return;
+        }
+        if(!_reserveRow(id, values.length))
+            return;
+        for(double v : values)
+            _floatView.put((float)v);
+        _commitRow(id, label);
+    }
+
+    /**Writes the given values as the next row, as a
+     * single bulk copy
+     *
+     * @param id
+     * @param label
+     * @param values
+     */
+    public void writeRow(String id, String label, float[] values)
+    {
+        if(values == null){
+            _writeNaNRow(id, label);
+            return;
+        }
+        if(!_reserveRow(id, values.length))
+            return;
+        _floatView.put(values);
+        _commitRow(id, label);
+    }
+
+    /**Returns the number of rows written so far
+     *
+     * @return
+     */
+    public long getNumRows(){return _numRows;}
+
+    /**Flushes any buffered rows, patches the final row count
+     * into the header, and closes both files; if only NaN rows
+     * were written, they remain as rows of a zero-column matrix
+     */
+    public void close()
+    {
+        for(String[] row : _pendingNaNRows)
+            _commitRow(row[0], row[1]);
+        _pendingNaNRows.clear();
+        try {
+            if(_channel != null){
+                _flush();
+                _channel.write(_getHeader(), 0);
+                _channel.close();
+            }
+            if(_rowWriter != null)
+                _rowWriter.close();
+        } catch(IOException ioEx) {
+            Logger.log(ioEx);
+        }
+        Logger.log("Wrote %d x %d matrix to %s.bin", _numRows,
+                Math.max(_numCols, 0), _fileRoot);
+    }
+
+    /**Writes a NaN-filled row; if no row has yet been
+     * written, there are no columns to fill, so the row
+     * is held until the first row fixes the column count
+     *
+     * @param id
+     * @param label
+     */
+    private void _writeNaNRow(String id, String label)
+    {
+        if(_numCols < 0){
+            _pendingNaNRows.add(new String[]{id, label});
+            return;
+        }
+        if(!_reserveRow(id, _numCols))
+            return;
+        for(int i=0; i<_numCols; i++)
+            _floatView.put(Float.NaN);
+        _commitRow(id, label);
+    }
+
+    /**Ensures the buffer has room for a row of the given width,
+     * fixing the column count on the first row (and writing any
+     * NaN rows held until then); returns false (and logs) if the
+     * row doesn't match the matrix width
+     *
+     * @param id
+     * @param numCols
+     * @return
+     */
+    private boolean _reserveRow(String id, int numCols)
+    {
+        if(_channel == null)
+            return false;
+        if(_numCols < 0){
+            _numCols = numCols;
+            int rowBytes = 4 * numCols;
+            int bufferBytes = Math.max(MIN_BUFFER_BYTES, rowBytes);
+            bufferBytes -= bufferBytes % Math.max(rowBytes, 1);
+            _buffer = ByteBuffer.allocateDirect(bufferBytes).order(ByteOrder.LITTLE_ENDIAN);
+            _floatView = _buffer.asFloatBuffer();
+            List<String[]> pendingRows = _pendingNaNRows;
+            _pendingNaNRows = new ArrayList<>();
+            for(String[] row : pendingRows)
+                _writeNaNRow(row[0], row[1]);
+        } else if(numCols != _numCols){
+            Logger.log("ERROR: row %s has %d columns; expected %d", id, numCols, _numCols);
+            return false;
+        }
+        if(_floatView.remaining() < numCols)
+            _flush();
+        return true;
+    }
+
+    /**Records the row in the sidecar file once its
+     * values have been buffered
+     *
+     * @param id
+     * @param label
+     */
+    private void _commitRow(String id, String label)
+    {
+        try {
+            _rowWriter.write(id == null ? "" : id);
+            _rowWriter.write(',');
+            _rowWriter.write(label == null ? "" : label);
+            _rowWriter.newLine();
+        } catch(IOException ioEx) {
+            Logger.log(ioEx);
+        }
+        _numRows++;
+    }
+
+    /**Writes all buffered floats to the matrix file
+     */
+    private void _flush()
+    {
+        if(_floatView == null)
+            return;
+        _buffer.position(0);
+        _buffer.limit(4 * _floatView.position());
+        try {
+            while(_buffer.hasRemaining())
+                _channel.write(_buffer);
+        } catch(IOException ioEx) {
+            Logger.log(ioEx);
+        }
+        _buffer.clear();
+        _floatView.clear();
+    }
+
+    /**Returns the header for the current row / column counts
+     *
+     * @return
+     */
+    private ByteBuffer _getHeader()
+    {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(DTYPE_FLOAT32);
+        header.putInt(0);
+        header.putLong(_numRows);
+        header.putLong(Math.max(_numCols, 0));
+        header.flip();
+        return header;
+    }
+}
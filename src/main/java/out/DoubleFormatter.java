@@ -0,0 +1,464 @@
+package out;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**DoubleFormatter writes the shortest decimal representation
+ * that round-trips to the given value straight into a byte
+ * buffer, without the intermediate String that
+ * Double.toString allocates for every number; output follows
+ * Double.toString's layout (plain decimals for magnitudes in
+ * [1e-3, 1e7), computerized scientific notation otherwise), so
+ * exported files look as they always have.
+ *
+ * Digit generation is an implementation of Ulf Adams'
+ * [Ryu][link], whose multiplier tables are computed once
+ * at class load. In FLOAT precision, values are narrowed to
+ * float32 first and the shortest float32 digits are written,
+ * which is what we want for box and word2vec features
+ * (float32 at the source).
+ * [link]: https://github.com/ulfjack/ryu
+ *
+ * @author ccervantes
+ */
+public class DoubleFormatter
+{
+    /**Max bytes needed for a single formatted value
+     * (e.g. -2.2250738585072014E-308)
+     */
+    public static final int MAX_CHARS = 25;
+
+    private static final int POW5_BITCOUNT = 125;
+    private static final int POW5_INV_BITCOUNT = 125;
+    private static final int POW5_TABLE_SIZE = 326;
+    private static final int POW5_INV_TABLE_SIZE = 342;
+    private static final long[][] POW5_SPLIT = new long[POW5_TABLE_SIZE][2];
+    private static final long[][] POW5_INV_SPLIT = new long[POW5_INV_TABLE_SIZE][2];
+    private static final BigInteger MASK_64 =
+            BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+    private static final ThreadLocal<byte[]> LINE_BUFFER =
+            ThreadLocal.withInitial(() -> new byte[1 << 16]);
+
+    static {
+        BigInteger five = BigInteger.valueOf(5);
+        for(int i=0; i<POW5_INV_TABLE_SIZE; i++){
+            BigInteger pow = five.pow(i);
+            int pow5len = pow.bitLength();
+            if(i < POW5_TABLE_SIZE){
+                BigInteger pow5 = pow.shiftRight(pow5len - POW5_BITCOUNT);
+                POW5_SPLIT[i][0] = pow5.and(MASK_64).longValue();
+                POW5_SPLIT[i][1] = pow5.shiftRight(64).longValue();
+            }
+            BigInteger inv = BigInteger.ONE.shiftLeft(pow5len - 1 + POW5_INV_BITCOUNT)
+                    .divide(pow).add(BigInteger.ONE);
+            POW5_INV_SPLIT[i][0] = inv.and(MASK_64).longValue();
+            POW5_INV_SPLIT[i][1] = inv.shiftRight(64).longValue();
+        }
+    }
+
+    /**Precision specifies whether values are formatted as
+     * float64 (the default) or narrowed to float32
+     */
+    public enum Precision {DOUBLE, FLOAT}
+
+    /**Writes the shortest round-trip representation of v to buf,
+     * starting at pos; returns the position after the last byte
+     * written (buf must have MAX_CHARS bytes available)
+     *
+     * @param v
+     * @param buf
+     * @param pos
+     * @return
+     */
+    public static int write(double v, byte[] buf, int pos)
+    {
+        return write(v, Precision.DOUBLE, buf, pos);
+    }
+
+    /**Writes the shortest representation of v that round-trips
+     * at the given precision to buf, starting at pos; returns the
+     * position after the last byte written
+     *
+     * @param v
+     * @param precision
+     * @param buf
+     * @param pos
+     * @return
+     */
+    public static int write(double v, Precision precision, byte[] buf, int pos)
+    {
+        if(precision == Precision.FLOAT)
+            v = (float)v;
+        if(Double.isNaN(v))
+            return _writeAscii("NaN", buf, pos);
+        if(Double.isInfinite(v))
+            return _writeAscii(v > 0 ? "Infinity" : "-Infinity", buf, pos);
+
+        long ieeeMantissa;
+        int ieeeExponent, mantissaBits, bias;
+        boolean sign;
+        if(precision == Precision.FLOAT){
+            int bits = Float.floatToRawIntBits((float)v);
+            sign = bits < 0;
+            ieeeMantissa = bits & 0x7fffff;
+            ieeeExponent = (bits >>> 23) & 0xff;
+            mantissaBits = 23;
+            bias = 127;
+        } else {
+            long bits = Double.doubleToRawLongBits(v);
+            sign = bits < 0;
+            ieeeMantissa = bits & 0xfffffffffffffL;
+            ieeeExponent = (int)((bits >>> 52) & 0x7ff);
+            mantissaBits = 52;
+            bias = 1023;
+        }
+        if(sign)
+            buf[pos++] = '-';
+        if(ieeeExponent == 0 && ieeeMantissa == 0){
+            buf[pos++] = '0'; buf[pos++] = '.'; buf[pos++] = '0';
+            return pos;
+        }
+
+        //Ryu operates on v = m2 * 2^e2, with two extra bits
+        //of precision for the interval bounds
+        int e2;
+        long m2;
+        if(ieeeExponent == 0){
+            e2 = 1 - bias - mantissaBits - 2;
+            m2 = ieeeMantissa;
+        } else {
+            e2 = ieeeExponent - bias - mantissaBits - 2;
+            m2 = (1L << mantissaBits) | ieeeMantissa;
+        }
+        boolean acceptBounds = (m2 & 1) == 0;
+        long mv = 4 * m2;
+        int mmShift = ieeeMantissa != 0 || ieeeExponent <= 1 ? 1 : 0;
+
+        //Convert the interval [mm, mp] to a decimal power base
+        long vr, vp, vm;
+        int e10;
+        boolean vmIsTrailingZeros = false, vrIsTrailingZeros = false;
+        if(e2 >= 0){
+            int q = _log10Pow2(e2) - (e2 > 3 ? 1 : 0);
+            e10 = q;
+            int k = POW5_INV_BITCOUNT + _pow5bits(q) - 1;
+            int i = -e2 + q + k;
+            long[] mul = POW5_INV_SPLIT[q];
+            vr = _mulShift64(4 * m2, mul, i);
+            vp = _mulShift64(4 * m2 + 2, mul, i);
+            vm = _mulShift64(4 * m2 - 1 - mmShift, mul, i);
+            if(q <= 21){
+                //only one of mp, mv, and mm can be a multiple of 5, if any
+                if(mv % 5 == 0)
+                    vrIsTrailingZeros = _pow5Factor(mv) >= q;
+                else if(acceptBounds)
+                    vmIsTrailingZeros = _pow5Factor(mv - 1 - mmShift) >= q;
+                else if(_pow5Factor(mv + 2) >= q)
+                    vp--;
+            }
+        } else {
+            int q = _log10Pow5(-e2) - (-e2 > 1 ? 1 : 0);
+            e10 = q + e2;
+            int i = -e2 - q;
+            int k = _pow5bits(i) - POW5_BITCOUNT;
+            int j = q - k;
+            long[] mul = POW5_SPLIT[i];
+            vr = _mulShift64(4 * m2, mul, j);
+            vp = _mulShift64(4 * m2 + 2, mul, j);
+            vm = _mulShift64(4 * m2 - 1 - mmShift, mul, j);
+            if(q <= 1){
+                //mv = 4 * m2, so it always has at least two trailing 0 bits
+                vrIsTrailingZeros = true;
+                if(acceptBounds)
+                    vmIsTrailingZeros = mmShift == 1;
+                else
+                    vp--;
+            } else if(q < 63) {
+                vrIsTrailingZeros = (mv & ((1L << q) - 1)) == 0;
+            }
+        }
+
+        //Find the shortest representation in the interval
+        int removed = 0;
+        int lastRemovedDigit = 0;
+        long output;
+        if(vmIsTrailingZeros || vrIsTrailingZeros){
+            while(vp / 10 > vm / 10){
+                vmIsTrailingZeros &= vm % 10 == 0;
+                vrIsTrailingZeros &= lastRemovedDigit == 0;
+                lastRemovedDigit = (int)(vr % 10);
+                vr /= 10; vp /= 10; vm /= 10;
+                removed++;
+            }
+            if(vmIsTrailingZeros){
+                while(vm % 10 == 0){
+                    vrIsTrailingZeros &= lastRemovedDigit == 0;
+                    lastRemovedDigit = (int)(vr % 10);
+                    vr /= 10; vp /= 10; vm /= 10;
+                    removed++;
+                }
+            }
+            //round to even if the exact number is .....50..0
+            if(vrIsTrailingZeros && lastRemovedDigit == 5 && vr % 2 == 0)
+                lastRemovedDigit = 4;
+            boolean roundUp = (vr == vm && (!acceptBounds || !vmIsTrailingZeros)) ||
+                              lastRemovedDigit >= 5;
+            output = vr + (roundUp ? 1 : 0);
+        } else {
+            boolean roundUp = false;
+            while(vp / 10 > vm / 10){
+                roundUp = vr % 10 >= 5;
+                vr /= 10; vp /= 10; vm /= 10;
+                removed++;
+            }
+            output = vr + (vr == vm || roundUp ? 1 : 0);
+        }
+        return _writeDigits(output, e10 + removed, buf, pos);
+    }
+
+    /**Appends the shortest round-trip representation of v
+     * to the given builder
+     *
+     * @param v
+     * @param sb
+     */
+    public static void append(double v, StringBuilder sb)
+    {
+        append(v, Precision.DOUBLE, sb);
+    }
+
+    /**Appends the shortest representation of v at the given
+     * precision to the given builder
+     *
+     * @param v
+     * @param precision
+     * @param sb
+     */
+    public static void append(double v, Precision precision, StringBuilder sb)
+    {
+        byte[] buf = LINE_BUFFER.get();
+        int end = write(v, precision, buf, 0);
+        for(int i=0; i<end; i++)
+            sb.append((char)buf[i]);
+    }
+
+    /**Returns the shortest round-trip representation of v
+     *
+     * @param v
+     * @return
+     */
+    public static String toString(double v)
+    {
+        return toString(v, Precision.DOUBLE);
+    }
+
+    /**Returns the shortest representation of v at the given precision
+     *
+     * @param v
+     * @param precision
+     * @return
+     */
+    public static String toString(double v, Precision precision)
+    {
+        byte[] buf = LINE_BUFFER.get();
+        int end = write(v, precision, buf, 0);
+        return new String(buf, 0, end, StandardCharsets.ISO_8859_1);
+    }
+
+    /**Joins the given values with the given separator; a drop-in
+     * replacement for StringUtil.listToString over numeric lists,
+     * which allocates only the returned line rather than one
+     * String per value. Null values are written as "null", as
+     * listToString would
+     *
+     * @param values
+     * @param sep
+     * @param precision
+     * @return
+     */
+    public static String join(List<Double> values, char sep, Precision precision)
+    {
+        if(values == null)
+            return "null";
+        byte[] buf = LINE_BUFFER.get();
+        int pos = 0;
+        for(int i=0; i<values.size(); i++){
+            if(buf.length - pos < MAX_CHARS + 1){
+                buf = java.util.Arrays.copyOf(buf, 2 * buf.length);
+                LINE_BUFFER.set(buf);
+            }
+            if(i > 0)
+                buf[pos++] = (byte)sep;
+            Double v = values.get(i);
+            if(v == null)
+                pos = _writeAscii("null", buf, pos);
+            else
+                pos = write(v, precision, buf, pos);
+        }
+        return new String(buf, 0, pos, StandardCharsets.ISO_8859_1);
+    }
+
+    /**Joins the given values with the given separator
+     *
+     * @param values
+     * @param sep
+     * @return
+     */
+    public static String join(List<Double> values, char sep)
+    {
+        return join(values, sep, Precision.DOUBLE);
+    }
+
+    /**Lays out the decimal significand / exponent pair as
+     * Double.toString would: plain notation for scientific
+     * exponents in [-3, 7), computerized scientific otherwise
+     *
+     * @param output
+     * @param exp
+     * @param buf
+     * @param pos
+     * @return
+     */
+    private static int _writeDigits(long output, int exp, byte[] buf, int pos)
+    {
+        int olength = _decimalLength(output);
+        int sciExp = exp + olength - 1;
+
+        //write the digits to the tail of the region we'll use,
+        //so we can index them left to right
+        int digitStart = pos + MAX_CHARS - olength;
+        long o = output;
+        for(int i=olength-1; i>=0; i--){
+            buf[digitStart + i] = (byte)('0' + (int)(o % 10));
+            o /= 10;
+        }
+
+        if(sciExp >= -3 && sciExp < 7){
+            if(sciExp < 0){
+                buf[pos++] = '0'; buf[pos++] = '.';
+                for(int i=-1; i>sciExp; i--)
+                    buf[pos++] = '0';
+                System.arraycopy(buf, digitStart, buf, pos, olength);
+                pos += olength;
+            } else {
+                int intDigits = sciExp + 1;
+                if(olength <= intDigits){
+                    System.arraycopy(buf, digitStart, buf, pos, olength);
+                    pos += olength;
+                    for(int i=olength; i<intDigits; i++)
+                        buf[pos++] = '0';
+                    buf[pos++] = '.'; buf[pos++] = '0';
+                } else {
+                    System.arraycopy(buf, digitStart, buf, pos, intDigits);
+                    pos += intDigits;
+                    buf[pos++] = '.';
+                    System.arraycopy(buf, digitStart + intDigits, buf, pos, olength - intDigits);
+                    pos += olength - intDigits;
+                }
+            }
+        } else {
+            buf[pos++] = buf[digitStart];
+            buf[pos++] = '.';
+            if(olength > 1){
+                System.arraycopy(buf, digitStart + 1, buf, pos, olength - 1);
+                pos += olength - 1;
+            } else {
+                buf[pos++] = '0';
+            }
+            buf[pos++] = 'E';
+            if(sciExp < 0){
+                buf[pos++] = '-';
+                sciExp = -sciExp;
+            }
+            if(sciExp >= 100)
+                buf[pos++] = (byte)('0' + sciExp / 100);
+            if(sciExp >= 10)
+                buf[pos++] = (byte)('0' + (sciExp / 10) % 10);
+            buf[pos++] = (byte)('0' + sciExp % 10);
+        }
+        return pos;
+    }
+
+    private static int _writeAscii(String s, byte[] buf, int pos)
+    {
+        for(int i=0; i<s.length(); i++)
+            buf[pos++] = (byte)s.charAt(i);
+        return pos;
+    }
+
+    private static int _decimalLength(long v)
+    {
+        int length = 1;
+        while(v >= 10){
+            v /= 10;
+            length++;
+        }
+        return length;
+    }
+
+    /**Returns e == 0 ? 1 : ceil(log_2(5^e)), for e in [0, 3528]
+     */
+    private static int _pow5bits(int e)
+    {
+        return (int)(((long)e * 1217359L) >>> 19) + 1;
+    }
+
+    /**Returns floor(log_10(2^e)), for e in [0, 1650]
+     */
+    private static int _log10Pow2(int e)
+    {
+        return (int)(((long)e * 78913L) >>> 18);
+    }
+
+    /**Returns floor(log_10(5^e)), for e in [0, 2620]
+     */
+    private static int _log10Pow5(int e)
+    {
+        return (int)(((long)e * 732923L) >>> 20);
+    }
+
+    private static int _pow5Factor(long v)
+    {
+        int count = 0;
+        while(v > 0 && v % 5 == 0){
+            v /= 5;
+            count++;
+        }
+        return count;
+    }
+
+    /**Returns ((m * mul) >> j) for the 128-bit multiplier
+     * mul = {low, high}, where j >= 64
+     *
+     * @param m
+     * @param mul
+     * @param j
+     * @return
+     */
+    private static long _mulShift64(long m, long[] mul, int j)
+    {
+        long b0High = _unsignedMultiplyHigh(m, mul[0]);
+        long b2Low = m * mul[1];
+        long b2High = _unsignedMultiplyHigh(m, mul[1]);
+        long sumLow = b0High + b2Low;
+        long sumHigh = b2High + (Long.compareUnsigned(sumLow, b0High) < 0 ? 1 : 0);
+        int shift = j - 64;
+        if(shift == 0)
+            return sumLow;
+        if(shift >= 64)
+            return sumHigh >>> (shift - 64);
+        return (sumLow >>> shift) | (sumHigh << (64 - shift));
+    }
+
+    private static long _unsignedMultiplyHigh(long a, long b)
+    {
+        long aLow = a & 0xffffffffL, aHigh = a >>> 32;
+        long bLow = b & 0xffffffffL, bHigh = b >>> 32;
+        long lowLow = aLow * bLow;
+        long highLow = aHigh * bLow;
+        long lowHigh = aLow * bHigh;
+        long cross = (lowLow >>> 32) + (highLow & 0xffffffffL) + lowHigh;
+        return aHigh * bHigh + (highLow >>> 32) + (cross >>> 32);
+    }
+}